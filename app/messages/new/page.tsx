@@ -223,17 +223,6 @@ export default function NewMessagePage() {
     loadStudents();
   }, [canCreate, year, studentPage, debouncedStudentSearch, studentPageSize]);
 
-  const fileToBase64 = (file: File) =>
-    new Promise<string>((resolve, reject) => {
-      const reader = new FileReader();
-      reader.onload = () => {
-        const res = reader.result as string;
-        resolve(res.includes(',') ? res.split(',')[1] : res);
-      };
-      reader.onerror = reject;
-      reader.readAsDataURL(file);
-    });
-
   const handleSubmit = async (e: React.FormEvent) => {
     e.preventDefault();
     if (!canCreate) return;
@@ -286,7 +275,7 @@ export default function NewMessagePage() {
     const attachments: {
       fileName: string;
       mimeType: string;
-      base64: string;
+      uploadId: string;
       inline?: boolean;
       cid?: string;
     }[] = [];
@@ -297,11 +286,11 @@ export default function NewMessagePage() {
           setSendError('La imagen supera los 10MB permitidos.');
           return;
         }
-        const base64 = await fileToBase64(attachedFile);
+        const { data: uploaded } = await apiClient.uploadAttachment(attachedFile);
         attachments.push({
           fileName: attachedFile.name,
           mimeType: attachedFile.type || 'image/*',
-          base64,
+          uploadId: uploaded.uploadId,
           inline: true,
           cid: 'inline-image-1',
         });
@@ -312,28 +301,23 @@ export default function NewMessagePage() {
           setSendError(`El archivo ${file.name} supera los 10MB permitidos.`);
           return;
         }
-        const base64 = await fileToBase64(file);
+        const { data: uploaded } = await apiClient.uploadAttachment(file);
         attachments.push({
           fileName: file.name,
           mimeType: file.type || 'application/octet-stream',
-          base64,
+          uploadId: uploaded.uploadId,
           inline: false,
         });
       }
     } catch (err) {
-      setSendError('No se pudieron procesar los adjuntos.');
+      setSendError('No se pudieron subir los adjuntos.');
       return;
     }
 
-    const primaryRecipient =
-      selectedUserIds.length === 1 ? users.find((u) => u.id === selectedUserIds[0]) : null;
+    // {{nombre}}, {{curso}}, {{alumno}}, {{apoderado}} y {{colegio}} se completan en el backend por destinatario
     const now = new Date().toLocaleDateString();
     const replaceTokens = (text: string) =>
       (text ?? '')
-        .split('{{nombre}}')
-        .join(primaryRecipient?.name ?? '')
-        .split('{{curso}}')
-        .join('')
         .split('{{fecha}}')
         .join(now)
         .split('{{remitente}}')
@@ -422,6 +406,7 @@ export default function NewMessagePage() {
         year,
         groupIds: selectedGroups,
         reason: finalReason,
+        templateId: selectedTemplate || undefined,
         attachments,
       })
       .then((res) => {
@@ -439,6 +439,17 @@ export default function MessagesPage() {
     load();
   }, [canList, year, page, pageSize, debouncedSearch]);
 
+  // el listado solo trae firmadas las imágenes inline; el detalle firma todos los adjuntos
+  const withSignedAttachments = async (message: MessageItem): Promise<MessageItem> => {
+    if (!message.attachments?.length) return message;
+    try {
+      const res = await apiClient.getMessageById(message.id);
+      return { ...message, attachments: res.data?.attachments ?? message.attachments };
+    } catch {
+      return message;
+    }
+  };
+
   const totalPages = Math.max(1, Math.ceil(total / pageSize));
   const paginated = useMemo(
     () =>
@@ -541,9 +552,11 @@ export default function MessagesPage() {
                       {Array.isArray(message.attachments) && message.attachments.length > 0 && (
                         <button
                           type="button"
-                          onClick={() => {
+                          onClick={async () => {
                             setAttachmentsToShow(message.attachments || []);
                             setShowAttachmentsModal(true);
+                            const signed = await withSignedAttachments(message);
+                            setAttachmentsToShow(signed.attachments || []);
                           }}
                           className="mt-2 inline-flex items-center gap-2 text-xs text-primary bg-primary/5 px-2 py-1 rounded-md hover:bg-primary/10"
                         >
@@ -640,9 +653,11 @@ export default function MessagesPage() {
                         <button
                           type="button"
                           className="inline-flex items-center px-3 py-1.5 rounded-md bg-primary text-white text-xs font-semibold hover:bg-primary-dark transition-colors"
-                          onClick={() => {
+                          onClick={async () => {
                             setSelectedMessage(message);
                             setShowDetails(true);
+                            const signed = await withSignedAttachments(message);
+                            setSelectedMessage((current) => (current?.id === message.id ? signed : current));
                           }}
                         >
                           Ver más detalles
@@ -23,6 +23,7 @@ type SchoolItem = {
   name: string;
   currentYear?: string;
   logoUrl?: string;
+  logoAppUrl?: string;
 };
 
 export default function SettingsPage() {
@@ -79,6 +80,7 @@ export default function SettingsPage() {
   const [aiPolicy, setAiPolicy] = useState({
     rewritePrompt: '',
     moderationRules: '',
+    blockedTerms: '',
     updatedBy: '',
     updatedAt: '',
   });
@@ -215,6 +217,7 @@ Información sensible no académica`;
       setAiPolicy({
         rewritePrompt: data.rewritePrompt || defaultRewritePrompt,
         moderationRules: (data.moderationRules || []).join('\n') || defaultRules,
+        blockedTerms: (data.blockedTerms || []).join('\n'),
         updatedBy: data.updatedBy || '',
         updatedAt: data.updatedAt || '',
       });
@@ -240,9 +243,14 @@ Información sensible no académica`;
         .split('\n')
         .map((r) => r.trim())
         .filter(Boolean);
+      const blockedArr = aiPolicy.blockedTerms
+        .split('\n')
+        .map((t) => t.trim())
+        .filter(Boolean);
       await apiClient.updateAiPolicy({
         rewritePrompt: aiPolicy.rewritePrompt,
         moderationRules: rulesArr,
+        blockedTerms: blockedArr,
       });
       setAiSuccess('Política de IA guardada correctamente.');
     } catch (err: any) {
@@ -1030,7 +1038,7 @@ Información sensible no académica`;
                   className="border border-gray-200 rounded-lg p-3 hover:shadow-sm transition-shadow flex items-center gap-3"
                 >
                   {s.logoUrl ? (
-                    <img src={s.logoUrl} alt={s.name} className="w-10 h-10 rounded object-cover border" />
+                    <img src={s.logoAppUrl || s.logoUrl} alt={s.name} className="w-10 h-10 rounded object-cover border" />
                   ) : (
                     <div className="w-10 h-10 rounded bg-gray-100 flex items-center justify-center text-sm font-semibold text-gray-700">
                       {s.name?.charAt(0) || '?'}
@@ -1260,6 +1268,17 @@ Información sensible no académica`;
             />
             <p className="text-xs text-gray-500 mt-1">Una regla por línea. La IA marcará como sensible si detecta estos temas.</p>
           </div>
+          <div>
+            <label className="block text-sm font-medium text-gray-700 mb-1">Términos bloqueados</label>
+            <textarea
+              value={aiPolicy.blockedTerms}
+              onChange={(e) => setAiPolicy((p) => ({ ...p, blockedTerms: e.target.value }))}
+              className="w-full px-3 py-2 border rounded-lg text-sm focus:outline-none focus:ring-2 focus:ring-primary focus:border-transparent border-gray-200 min-h-[80px]"
+            />
+            <p className="text-xs text-gray-500 mt-1">
+              Una palabra o frase por línea (sin importar mayúsculas ni tildes). Los mensajes que las contengan se rechazan sin consultar a la IA.
+            </p>
+          </div>
           <div className="flex flex-wrap items-center justify-between gap-3">
             <div className="text-xs text-gray-500">
               {aiPolicy.updatedBy && (
@@ -1281,6 +1300,7 @@ Información sensible no académica`;
                   setAiPolicy({
                     rewritePrompt: defaultRewritePrompt,
                     moderationRules: defaultRules,
+                    blockedTerms: aiPolicy.blockedTerms,
                     updatedBy: aiPolicy.updatedBy,
                     updatedAt: aiPolicy.updatedAt,
                   })
@@ -0,0 +1,38 @@
+package com.notiflow.config;
+
+import jakarta.annotation.PostConstruct;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Profile;
+
+/**
+ * En prod no se arranca con secretos de firma vacíos o con los valores de ejemplo (change-me-*):
+ * cualquiera podría falsificar enlaces firmados con ellos.
+ */
+@Configuration
+@Profile("prod")
+public class ProdSecretsValidator {
+
+    private final String attachmentsLinkSecret;
+    private final String calendarFeedSecret;
+
+    public ProdSecretsValidator(
+            @Value("${app.attachments.link-secret:}") String attachmentsLinkSecret,
+            @Value("${app.calendar.feed-secret:}") String calendarFeedSecret
+    ) {
+        this.attachmentsLinkSecret = attachmentsLinkSecret;
+        this.calendarFeedSecret = calendarFeedSecret;
+    }
+
+    @PostConstruct
+    void validate() {
+        require("APP_ATTACHMENTS_LINK_SECRET", attachmentsLinkSecret);
+        require("APP_CALENDAR_FEED_SECRET", calendarFeedSecret);
+    }
+
+    private void require(String envVar, String value) {
+        if (value == null || value.isBlank() || value.startsWith("change-me")) {
+            throw new IllegalStateException(envVar + " no está configurado; es obligatorio en prod");
+        }
+    }
+}
@@ -1,5 +1,6 @@
 package com.notiflow.config;
 
+import jakarta.servlet.DispatcherType;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.http.HttpMethod;
@@ -30,9 +31,13 @@ public class SecurityConfig {
                 .sessionManagement(session -> session.sessionCreationPolicy(SessionCreationPolicy.STATELESS))
                 .authorizeHttpRequests(auth -> auth
                         .requestMatchers(HttpMethod.OPTIONS, "/**").permitAll()
+                        // re-despacho async de respuestas en streaming (SSE): la petición original ya fue autorizada
+                        .dispatcherTypeMatchers(DispatcherType.ASYNC).permitAll()
                         .requestMatchers("/auth/**", "/actuator/health").permitAll()
                         .requestMatchers(HttpMethod.GET, "/messages/*/track").permitAll()
+                        .requestMatchers(HttpMethod.GET, "/messages/*/attachments/*").permitAll()
                         .requestMatchers(HttpMethod.POST, "/messages/process-scheduled").permitAll()
+                        .requestMatchers(HttpMethod.GET, "/calendar/*/feed.ics").permitAll()
                         .anyRequest().authenticated()
                 )
                 .addFilterBefore(jwtAuthFilter, UsernamePasswordAuthenticationFilter.class);
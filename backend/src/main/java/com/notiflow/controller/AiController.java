@@ -1,5 +1,7 @@
 package com.notiflow.controller;
 
+import com.notiflow.dto.AiBatchModerationRequest;
+import com.notiflow.dto.AiBatchModerationResponse;
 import com.notiflow.dto.AiModerationRequest;
 import com.notiflow.dto.AiModerationResponse;
 import com.notiflow.dto.AiRewriteRequest;
@@ -12,7 +14,10 @@ import com.notiflow.service.AccessControlService;
 import com.notiflow.service.VertexAiService;
 import com.notiflow.util.CurrentUser;
 import jakarta.validation.Valid;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.PostMapping;
 import org.springframework.web.bind.annotation.GetMapping;
@@ -21,13 +26,23 @@ import org.springframework.web.bind.annotation.RequestBody;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
 
 @RestController
 @RequestMapping("/ai")
 public class AiController {
 
+    private static final Logger log = LoggerFactory.getLogger(AiController.class);
+    private static final long STREAM_TIMEOUT_MS = 120_000;
+
     private final VertexAiService vertexAiService;
     private final AccessControlService accessControlService;
     private final AiPolicyService aiPolicyService;
@@ -48,6 +63,46 @@ public class AiController {
         return ResponseEntity.ok(new AiRewriteResponse(suggestion));
     }
 
+    /**
+     * Igual que /rewrite pero emitiendo la sugerencia por SSE a medida que el modelo la genera:
+     * eventos "token" con cada fragmento y un "done" final con el texto completo.
+     */
+    @PostMapping(value = "/rewrite/stream", produces = MediaType.TEXT_EVENT_STREAM_VALUE)
+    public SseEmitter rewriteStream(@Valid @RequestBody AiRewriteRequest request) {
+        CurrentUser user = CurrentUser.fromContext()
+                .orElseThrow(() -> new org.springframework.web.server.ResponseStatusException(HttpStatus.UNAUTHORIZED));
+        accessControlService.check(user, "messages.create", user.schoolId(), Optional.empty());
+        String schoolId = user.schoolId() == null ? "global" : user.schoolId();
+        SseEmitter emitter = new SseEmitter(STREAM_TIMEOUT_MS);
+        CompletableFuture<String> stream = vertexAiService.rewriteStream(request.text(), request.tone(), schoolId, chunk -> {
+            try {
+                emitter.send(SseEmitter.event().name("token").data(Map.of("text", chunk)));
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+        stream.whenComplete((suggestion, error) -> {
+            try {
+                if (error == null) {
+                    emitter.send(SseEmitter.event().name("done").data(new AiRewriteResponse(suggestion)));
+                    emitter.complete();
+                } else if (!(error instanceof CancellationException)) {
+                    log.warn("Reescritura en streaming falló: {}", error.getMessage());
+                    emitter.send(SseEmitter.event().name("error").data(Map.of("message", "No se pudo generar la sugerencia")));
+                    emitter.complete();
+                }
+            } catch (IOException | IllegalStateException e) {
+                // el cliente ya se fue
+                emitter.completeWithError(e);
+            }
+        });
+        // desconexión o timeout del cliente: cancelar la generación en Vertex
+        emitter.onCompletion(() -> stream.cancel(true));
+        emitter.onTimeout(() -> stream.cancel(true));
+        emitter.onError(e -> stream.cancel(true));
+        return emitter;
+    }
+
     @PostMapping("/moderate")
     public ResponseEntity<AiModerationResponse> moderate(@Valid @RequestBody AiModerationRequest request) {
         CurrentUser user = CurrentUser.fromContext()
@@ -58,6 +113,18 @@ public class AiController {
         return ResponseEntity.ok(new AiModerationResponse(result.allowed(), result.reasons()));
     }
 
+    @PostMapping("/moderate/batch")
+    public ResponseEntity<AiBatchModerationResponse> moderateBatch(@Valid @RequestBody AiBatchModerationRequest request) {
+        CurrentUser user = CurrentUser.fromContext()
+                .orElseThrow(() -> new org.springframework.web.server.ResponseStatusException(HttpStatus.UNAUTHORIZED));
+        accessControlService.check(user, "messages.create", user.schoolId(), Optional.empty());
+        String schoolId = user.schoolId() == null ? "global" : user.schoolId();
+        List<AiModerationResponse> results = vertexAiService.moderateBatch(request.texts(), schoolId).stream()
+                .map(result -> new AiModerationResponse(result.allowed(), result.reasons()))
+                .toList();
+        return ResponseEntity.ok(new AiBatchModerationResponse(results));
+    }
+
     @PostMapping("/rewrite-moderate")
     public ResponseEntity<AiRewriteModerateResponse> rewriteModerate(@Valid @RequestBody AiRewriteRequest request) {
         CurrentUser user = CurrentUser.fromContext()
@@ -78,6 +145,18 @@ public class AiController {
         ));
     }
 
+    @GetMapping("/stats")
+    public ResponseEntity<java.util.Map<String, ?>> stats() {
+        CurrentUser user = CurrentUser.fromContext()
+                .orElseThrow(() -> new org.springframework.web.server.ResponseStatusException(HttpStatus.UNAUTHORIZED));
+        accessControlService.check(user, "schools.manage", user.schoolId(), Optional.empty());
+        return ResponseEntity.ok(java.util.Map.of(
+                "cache", vertexAiService.cacheStats(),
+                "preModeration", vertexAiService.preModerationStats(),
+                "resilience", vertexAiService.resilienceStats()
+        ));
+    }
+
     @GetMapping("/policy")
     public ResponseEntity<AiPolicyResponse> getPolicy(@RequestParam(value = "schoolId", required = false) String schoolId) {
         CurrentUser user = CurrentUser.fromContext()
@@ -104,6 +183,7 @@ public class AiController {
                 targetSchool,
                 request.rewritePrompt(),
                 request.moderationRules(),
+                request.blockedTerms(),
                 user.email() == null ? user.name() : user.email()
         );
         return ResponseEntity.ok(saved);
@@ -0,0 +1,44 @@
+package com.notiflow.controller;
+
+import com.notiflow.dto.AttachmentUploadResponse;
+import com.notiflow.service.AccessControlService;
+import com.notiflow.service.AttachmentUploadService;
+import com.notiflow.util.CurrentUser;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.*;
+import org.springframework.web.multipart.MultipartFile;
+
+import java.util.Optional;
+
+@RestController
+@RequestMapping("/attachments")
+public class AttachmentController {
+
+    private final AttachmentUploadService attachmentUploadService;
+    private final AccessControlService accessControlService;
+
+    public AttachmentController(AttachmentUploadService attachmentUploadService, AccessControlService accessControlService) {
+        this.attachmentUploadService = attachmentUploadService;
+        this.accessControlService = accessControlService;
+    }
+
+    @PostMapping(consumes = MediaType.MULTIPART_FORM_DATA_VALUE)
+    public ResponseEntity<AttachmentUploadResponse> upload(@RequestParam("file") MultipartFile file) {
+        CurrentUser user = CurrentUser.fromContext()
+                .orElseThrow(() -> new org.springframework.web.server.ResponseStatusException(HttpStatus.UNAUTHORIZED));
+        accessControlService.check(user, "messages.create", user.schoolId(), Optional.empty());
+        return ResponseEntity.ok(attachmentUploadService.upload(file, user.schoolId(), user.email()));
+    }
+
+    /** Permite al cliente saltarse la subida si el colegio ya tiene ese contenido (SHA-256 en hex). */
+    @GetMapping("/{digest}")
+    public ResponseEntity<AttachmentUploadResponse> find(@PathVariable String digest) {
+        CurrentUser user = CurrentUser.fromContext()
+                .orElseThrow(() -> new org.springframework.web.server.ResponseStatusException(HttpStatus.UNAUTHORIZED));
+        accessControlService.check(user, "messages.create", user.schoolId(), Optional.empty());
+        AttachmentUploadResponse existing = attachmentUploadService.find(digest.toLowerCase(), user.schoolId());
+        return existing != null ? ResponseEntity.ok(existing) : ResponseEntity.notFound().build();
+    }
+}
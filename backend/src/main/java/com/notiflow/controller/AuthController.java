@@ -39,8 +39,10 @@ public class AuthController {
     private final PasswordResetService passwordResetService;
     private final OtpService otpService;
     private final UsageService usageService;
+    private final int trustedProxyHops;
 
-    public AuthController(AuthService authService, JwtService jwtService, RefreshJwtService refreshJwtService, RefreshTokenStore refreshTokenStore, PasswordResetService passwordResetService, OtpService otpService, UsageService usageService) {
+    public AuthController(AuthService authService, JwtService jwtService, RefreshJwtService refreshJwtService, RefreshTokenStore refreshTokenStore, PasswordResetService passwordResetService, OtpService otpService, UsageService usageService,
+                          @org.springframework.beans.factory.annotation.Value("${app.otp.trusted-proxy-hops:1}") int trustedProxyHops) {
         this.authService = authService;
         this.jwtService = jwtService;
         this.refreshJwtService = refreshJwtService;
@@ -48,6 +50,7 @@ public class AuthController {
         this.passwordResetService = passwordResetService;
         this.otpService = otpService;
         this.usageService = usageService;
+        this.trustedProxyHops = trustedProxyHops;
     }
 
     @PostMapping("/login")
@@ -141,8 +144,8 @@ public class AuthController {
     }
 
     @PostMapping("/otp/request")
-    public ResponseEntity<?> requestOtp(@Valid @RequestBody OtpRequest request) {
-        otpService.requestCode(request.email());
+    public ResponseEntity<?> requestOtp(@Valid @RequestBody OtpRequest request, jakarta.servlet.http.HttpServletRequest httpRequest) {
+        otpService.requestCode(request.email(), clientIp(httpRequest));
         return ResponseEntity.ok(Map.of("message", "Código enviado si el correo existe"));
     }
 
@@ -160,8 +163,8 @@ public class AuthController {
                     request.studentId(),
                     Boolean.TRUE.equals(request.studentsOnly())
             );
-            // Solo contar login de app aquí
-            try { usageService.recordAppLogin(request.email()); } catch (Exception ignored) {}
+            // Solo contar login de app aquí (asíncrono, con el colegio ya resuelto en el login)
+            usageService.recordAppLogin(request.email(), resp.user() != null ? resp.user().schoolId() : null);
             return ResponseEntity.ok(resp);
         } catch (MultiStudentMatchException ex) {
             return ResponseEntity.status(HttpStatus.CONFLICT).body(
@@ -175,4 +178,16 @@ public class AuthController {
                     .body(Map.of("message", ex.getMessage() != null ? ex.getMessage() : "No se pudo validar el código"));
         }
     }
+
+    private String clientIp(jakarta.servlet.http.HttpServletRequest request) {
+        // Los primeros valores de X-Forwarded-For los controla el cliente; solo son confiables los que agregan
+        // nuestros balanceadores al final (app.otp.trusted-proxy-hops), así que se toma el de más a la derecha
+        String forwarded = request.getHeader("X-Forwarded-For");
+        if (trustedProxyHops > 0 && forwarded != null && !forwarded.isBlank()) {
+            String[] hops = forwarded.split(",");
+            String ip = hops[Math.max(0, hops.length - trustedProxyHops)].trim();
+            if (!ip.isBlank()) return ip;
+        }
+        return request.getRemoteAddr();
+    }
 }
@@ -0,0 +1,58 @@
+package com.notiflow.controller;
+
+import com.notiflow.service.EventFeedService;
+import org.springframework.http.CacheControl;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.context.request.WebRequest;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
+
+@RestController
+@RequestMapping("/calendar")
+public class CalendarFeedController {
+
+    private static final MediaType TEXT_CALENDAR = MediaType.parseMediaType("text/calendar;charset=UTF-8");
+
+    private final EventFeedService feedService;
+
+    public CalendarFeedController(EventFeedService feedService) {
+        this.feedService = feedService;
+    }
+
+    // Público (las apps de calendario no envían JWT): se autoriza con el token firmado de la URL
+    @GetMapping("/{schoolId}/feed.ics")
+    public ResponseEntity<StreamingResponseBody> feed(
+            @PathVariable String schoolId,
+            @RequestParam(value = "user", required = false) String user,
+            @RequestParam(value = "token", required = false) String token,
+            WebRequest request
+    ) {
+        String userEmail = user == null || user.isBlank() ? null : user.trim().toLowerCase();
+        if (!feedService.verifyToken(schoolId, userEmail, token)) {
+            throw new org.springframework.web.server.ResponseStatusException(HttpStatus.NOT_FOUND);
+        }
+        String etag = feedService.etag(schoolId, userEmail);
+        EventFeedService.FeedVersion version = feedService.version(schoolId);
+        long lastModified = version.updatedAt() == null ? -1 : version.updatedAt().toEpochMilli();
+        CacheControl cache = CacheControl.noCache().cachePrivate();
+        if (request.checkNotModified(etag, lastModified)) {
+            return ResponseEntity.status(HttpStatus.NOT_MODIFIED).eTag(etag).cacheControl(cache).build();
+        }
+        String name = userEmail == null ? "Calendario escolar" : "Mi calendario escolar";
+        StreamingResponseBody body = out -> feedService.writeFeed(schoolId, userEmail, name, out);
+        ResponseEntity.BodyBuilder builder = ResponseEntity.ok()
+                .contentType(TEXT_CALENDAR)
+                .eTag(etag)
+                .cacheControl(cache);
+        if (lastModified > 0) {
+            builder.lastModified(lastModified);
+        }
+        return builder.body(body);
+    }
+}
@@ -5,6 +5,8 @@ import com.notiflow.dto.EventRequest;
 import com.notiflow.service.EventService;
 import com.notiflow.util.CurrentUser;
 import jakarta.validation.Valid;
+import org.springframework.http.CacheControl;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
@@ -34,6 +36,30 @@ public class EventController {
         return ResponseEntity.ok(eventService.listForUser(user, fromIso, toIso, type, page, pageSize));
     }
 
+    @GetMapping("/month/{month}")
+    public ResponseEntity<List<EventDto>> month(
+            @PathVariable String month,
+            @RequestParam(value = "type", required = false) String type,
+            @RequestParam(value = "schoolId", required = false) String schoolId,
+            @RequestHeader(value = HttpHeaders.IF_NONE_MATCH, required = false) String ifNoneMatch
+    ) {
+        CurrentUser user = CurrentUser.fromContext()
+                .orElseThrow(() -> new org.springframework.web.server.ResponseStatusException(HttpStatus.UNAUTHORIZED));
+        EventService.MonthView view = eventService.listMonth(user, month, type, schoolId);
+        CacheControl cache = CacheControl.noCache().cachePrivate();
+        if (view.etag().equals(ifNoneMatch)) {
+            return ResponseEntity.status(HttpStatus.NOT_MODIFIED).eTag(view.etag()).cacheControl(cache).build();
+        }
+        return ResponseEntity.ok().eTag(view.etag()).cacheControl(cache).body(view.events());
+    }
+
+    @GetMapping("/feed")
+    public ResponseEntity<java.util.Map<String, String>> feedUrls() {
+        CurrentUser user = CurrentUser.fromContext()
+                .orElseThrow(() -> new org.springframework.web.server.ResponseStatusException(HttpStatus.UNAUTHORIZED));
+        return ResponseEntity.ok(eventService.feedUrls(user));
+    }
+
     @PostMapping
     public ResponseEntity<EventDto> create(@Valid @RequestBody EventRequest request) {
         CurrentUser user = CurrentUser.fromContext()
@@ -3,7 +3,9 @@ package com.notiflow.controller;
 import com.notiflow.dto.MessageDto;
 import com.notiflow.dto.MessageListResponse;
 import com.notiflow.dto.MessageRequest;
+import com.notiflow.model.AttachmentMetadata;
 import com.notiflow.service.AccessControlService;
+import com.notiflow.service.AttachmentUploadService;
 import com.notiflow.service.MessageService;
 import com.notiflow.util.CurrentUser;
 import jakarta.validation.Valid;
@@ -11,6 +13,7 @@ import org.springframework.beans.factory.annotation.Value;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 
 import java.security.Principal;
 import java.util.Optional;
@@ -21,15 +24,18 @@ public class MessageController {
 
     private final MessageService messageService;
     private final AccessControlService accessControlService;
+    private final AttachmentUploadService attachmentUploadService;
     private final String cronSecret;
 
     public MessageController(
             MessageService messageService,
             AccessControlService accessControlService,
+            AttachmentUploadService attachmentUploadService,
             @Value("${app.cron.secret:}") String cronSecret
     ) {
         this.messageService = messageService;
         this.accessControlService = accessControlService;
+        this.attachmentUploadService = attachmentUploadService;
         this.cronSecret = cronSecret;
     }
 
@@ -175,4 +181,36 @@ public class MessageController {
                 .cacheControl(org.springframework.http.CacheControl.noCache())
                 .body(pixel);
     }
+
+    // Descarga de adjuntos enviados como enlace: sin auth, autorizada por el token firmado del correo
+    @GetMapping("/{id}/attachments/{index}")
+    public ResponseEntity<StreamingResponseBody> downloadAttachment(
+            @PathVariable("id") String messageId,
+            @PathVariable("index") int index,
+            @RequestParam("recipient") String recipient,
+            @RequestParam("token") String token
+    ) {
+        AttachmentMetadata meta = messageService.attachmentForDownload(messageId, index, recipient, token);
+        // se consulta antes de armar la respuesta: con el 200 ya enviado un objeto borrado llegaría truncado
+        com.google.cloud.storage.Blob blob = attachmentUploadService.stat(meta.getObjectPath());
+        if (blob == null) {
+            throw new org.springframework.web.server.ResponseStatusException(HttpStatus.NOT_FOUND, "Adjunto no disponible");
+        }
+        StreamingResponseBody body = out -> attachmentUploadService.writeTo(blob, out);
+        org.springframework.http.MediaType type = meta.getMimeType() != null && !meta.getMimeType().isBlank()
+                ? org.springframework.http.MediaType.parseMediaType(meta.getMimeType())
+                : org.springframework.http.MediaType.APPLICATION_OCTET_STREAM;
+        ResponseEntity.BodyBuilder builder = ResponseEntity.ok()
+                .contentType(type)
+                .header(org.springframework.http.HttpHeaders.CONTENT_DISPOSITION,
+                        org.springframework.http.ContentDisposition.attachment()
+                                .filename(meta.getFileName() != null ? meta.getFileName() : "adjunto", java.nio.charset.StandardCharsets.UTF_8)
+                                .build().toString())
+                .cacheControl(org.springframework.http.CacheControl.noStore());
+        Long size = blob.getSize() != null ? blob.getSize() : meta.getSizeBytes();
+        if (size != null) {
+            builder.contentLength(size);
+        }
+        return builder.body(body);
+    }
 }
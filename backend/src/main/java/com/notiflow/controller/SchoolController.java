@@ -84,11 +84,8 @@ public class SchoolController {
             throw new org.springframework.web.server.ResponseStatusException(HttpStatus.BAD_REQUEST, "Bucket de logos no configurado");
         }
         try {
-            String url = storageService.uploadLogo(id, file);
-            SchoolDocument current = schoolService.getById(id);
-            SchoolRequest req = new SchoolRequest(id, current.getName(), current.getCurrentYear(), url);
-            SchoolDocument updated = schoolService.update(id, req);
-            return ResponseEntity.ok(updated);
+            StorageService.LogoUpload logo = storageService.uploadLogo(id, file);
+            return ResponseEntity.ok(schoolService.updateLogo(id, logo));
         } catch (Exception e) {
             throw new org.springframework.web.server.ResponseStatusException(HttpStatus.BAD_REQUEST, "No se pudo subir el logo: " + e.getMessage());
         }
@@ -26,13 +26,12 @@ public class UsageController {
                 .orElseThrow(() -> new org.springframework.web.server.ResponseStatusException(HttpStatus.UNAUTHORIZED));
         // Permitir solo roles con reports.view
         // No tenemos accessControlService aquí, pero el filtro de seguridad ya valida el token.
-        long appActive = usageService.countAppActiveUsers();
-        long usersEmail = usageService.countUsersWithEmail();
-        Map<String, Long> appActiveBySchool = usageService.countAppActiveBySchool();
+        // Agregados precalculados: unas pocas lecturas sin importar la cantidad de usuarios
+        UsageService.UsageReport report = usageService.report();
         return ResponseEntity.ok(Map.of(
-                "appActiveUsers", appActive,
-                "usersWithEmail", usersEmail,
-                "appActiveBySchool", appActiveBySchool
+                "appActiveUsers", report.appActiveUsers(),
+                "usersWithEmail", report.usersWithEmail(),
+                "appActiveBySchool", report.appActiveBySchool()
         ));
     }
 }
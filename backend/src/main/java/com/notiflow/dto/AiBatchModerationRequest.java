@@ -0,0 +1,10 @@
+package com.notiflow.dto;
+
+import jakarta.validation.constraints.NotBlank;
+import jakarta.validation.constraints.NotEmpty;
+import jakarta.validation.constraints.Size;
+
+import java.util.List;
+
+public record AiBatchModerationRequest(@NotEmpty @Size(max = 100) List<@NotBlank String> texts) {
+}
@@ -0,0 +1,8 @@
+package com.notiflow.dto;
+
+import java.util.List;
+
+public record AiBatchModerationResponse(
+        List<AiModerationResponse> results
+) {
+}
@@ -5,6 +5,7 @@ import java.util.List;
 public record AiPolicyRequest(
         String schoolId,
         String rewritePrompt,
-        List<String> moderationRules
+        List<String> moderationRules,
+        List<String> blockedTerms
 ) {
 }
@@ -7,7 +7,9 @@ public record AiPolicyResponse(
         String schoolId,
         String rewritePrompt,
         List<String> moderationRules,
+        List<String> blockedTerms,
         String updatedBy,
-        Instant updatedAt
+        Instant updatedAt,
+        long version
 ) {
 }
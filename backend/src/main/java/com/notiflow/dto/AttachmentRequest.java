@@ -1,10 +1,15 @@
 package com.notiflow.dto;
 
+/**
+ * Adjunto de un mensaje: referencia a un archivo ya subido con POST /attachments ({@code uploadId})
+ * o, para clientes antiguos, su contenido en base64.
+ */
 public record AttachmentRequest(
         String fileName,
         String mimeType,
         String base64,
         Boolean inline,
-        String cid
+        String cid,
+        String uploadId
 ) {
 }
@@ -30,6 +30,8 @@ public record MessageDto(
         List<AttachmentMetadata> attachments,
         String reason,
         Boolean canDelete,
-        Boolean broadcast
+        Boolean broadcast,
+        List<String> moderationReasons,
+        Map<String, List<Long>> attachmentDownloads
 ) {
 }
@@ -7,6 +7,7 @@ public record TemplateDto(
         String name,
         String content,
         Instant createdAt,
-        Instant updatedAt
+        Instant updatedAt,
+        Long version
 ) {
 }
@@ -8,6 +8,8 @@ public class AttachmentMetadata {
     private Boolean inline;
     private String cid;
     private String objectPath;
+    // digest del contenido (adjuntos deduplicados); null en adjuntos antiguos
+    private String sha256;
 
     public AttachmentMetadata() {}
 
@@ -41,4 +43,7 @@ public class AttachmentMetadata {
 
     public String getObjectPath() { return objectPath; }
     public void setObjectPath(String objectPath) { this.objectPath = objectPath; }
+
+    public String getSha256() { return sha256; }
+    public void setSha256(String sha256) { this.sha256 = sha256; }
 }
@@ -0,0 +1,80 @@
+package com.notiflow.model;
+
+import java.time.Instant;
+import java.util.List;
+
+/**
+ * Proyección de un evento dentro de un bucket de calendario mensual: solo lo que pinta la vista de mes.
+ * Los destinatarios directos no se copian (el bucket tiene que caber en 1 MiB); audienceHash los resume,
+ * y es null cuando el evento no tiene destinatarios directos.
+ */
+public class CalendarEntry {
+
+    private String id;
+    private String title;
+    private Instant startDateTime;
+    private Instant endDateTime;
+    private String type;
+    private List<String> audienceGroupIds;
+    private String audienceHash;
+
+    public CalendarEntry() {
+    }
+
+    // getters y setters
+    public String getId() {
+        return id;
+    }
+
+    public void setId(String id) {
+        this.id = id;
+    }
+
+    public String getTitle() {
+        return title;
+    }
+
+    public void setTitle(String title) {
+        this.title = title;
+    }
+
+    public Instant getStartDateTime() {
+        return startDateTime;
+    }
+
+    public void setStartDateTime(Instant startDateTime) {
+        this.startDateTime = startDateTime;
+    }
+
+    public Instant getEndDateTime() {
+        return endDateTime;
+    }
+
+    public void setEndDateTime(Instant endDateTime) {
+        this.endDateTime = endDateTime;
+    }
+
+    public String getType() {
+        return type;
+    }
+
+    public void setType(String type) {
+        this.type = type;
+    }
+
+    public List<String> getAudienceGroupIds() {
+        return audienceGroupIds;
+    }
+
+    public void setAudienceGroupIds(List<String> audienceGroupIds) {
+        this.audienceGroupIds = audienceGroupIds;
+    }
+
+    public String getAudienceHash() {
+        return audienceHash;
+    }
+
+    public void setAudienceHash(String audienceHash) {
+        this.audienceHash = audienceHash;
+    }
+}
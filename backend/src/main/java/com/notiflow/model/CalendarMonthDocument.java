@@ -0,0 +1,57 @@
+package com.notiflow.model;
+
+import java.time.Instant;
+import java.util.List;
+
+public class CalendarMonthDocument {
+
+    private String schoolId;
+    private String month; // yyyy-MM en la zona del calendario
+    private long version;
+    private Instant updatedAt;
+    private List<CalendarEntry> entries;
+
+    public CalendarMonthDocument() {
+    }
+
+    // getters y setters
+    public String getSchoolId() {
+        return schoolId;
+    }
+
+    public void setSchoolId(String schoolId) {
+        this.schoolId = schoolId;
+    }
+
+    public String getMonth() {
+        return month;
+    }
+
+    public void setMonth(String month) {
+        this.month = month;
+    }
+
+    public long getVersion() {
+        return version;
+    }
+
+    public void setVersion(long version) {
+        this.version = version;
+    }
+
+    public Instant getUpdatedAt() {
+        return updatedAt;
+    }
+
+    public void setUpdatedAt(Instant updatedAt) {
+        this.updatedAt = updatedAt;
+    }
+
+    public List<CalendarEntry> getEntries() {
+        return entries;
+    }
+
+    public void setEntries(List<CalendarEntry> entries) {
+        this.entries = entries;
+    }
+}
@@ -17,6 +17,7 @@ public class EventDocument {
     private Instant createdAt;
     private List<String> audienceUserIds;
     private List<String> audienceGroupIds;
+    private List<String> audienceKeys; // índice plano "u:{email}" / "g:{groupId}" para consultas array-contains-any
 
     public EventDocument() {
     }
@@ -117,4 +118,12 @@ public class EventDocument {
     public void setAudienceGroupIds(List<String> audienceGroupIds) {
         this.audienceGroupIds = audienceGroupIds;
     }
+
+    public List<String> getAudienceKeys() {
+        return audienceKeys;
+    }
+
+    public void setAudienceKeys(List<String> audienceKeys) {
+        this.audienceKeys = audienceKeys;
+    }
 }
@@ -23,12 +23,16 @@ public class MessageDocument {
     private List<String> groupIds;
     private List<AttachmentMetadata> attachments;
     private String reason;
+    private String templateId;
+    private List<String> moderationReasons;
     // destinatarios que ya leyeron en la app
     private List<String> appReadBy;
     // estado por destinatario para la app (PENDING/READ)
     private Map<String, MessageStatus> appStatuses;
     // estado por destinatario para email (PENDING/SENT/FAILED)
     private Map<String, MessageStatus> emailStatuses;
+    // adjuntos enviados como enlace que descargó cada destinatario (correo -> índices)
+    private Map<String, List<Long>> attachmentDownloads;
     // nombre por destinatario (correo -> nombre)
     private Map<String, String> recipientNames;
     // listado de destinatarios con nombre y correo
@@ -191,6 +195,22 @@ public class MessageDocument {
         this.reason = reason;
     }
 
+    public String getTemplateId() {
+        return templateId;
+    }
+
+    public void setTemplateId(String templateId) {
+        this.templateId = templateId;
+    }
+
+    public List<String> getModerationReasons() {
+        return moderationReasons;
+    }
+
+    public void setModerationReasons(List<String> moderationReasons) {
+        this.moderationReasons = moderationReasons;
+    }
+
     public List<String> getAppReadBy() {
         return appReadBy;
     }
@@ -223,6 +243,14 @@ public class MessageDocument {
         this.emailStatuses = emailStatuses;
     }
 
+    public Map<String, List<Long>> getAttachmentDownloads() {
+        return attachmentDownloads;
+    }
+
+    public void setAttachmentDownloads(Map<String, List<Long>> attachmentDownloads) {
+        this.attachmentDownloads = attachmentDownloads;
+    }
+
     public java.util.List<com.notiflow.dto.RecipientDetail> getRecipientsDetails() {
         return recipientsDetails;
     }
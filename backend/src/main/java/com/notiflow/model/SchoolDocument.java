@@ -5,6 +5,10 @@ public class SchoolDocument {
     private String name;
     private String currentYear;
     private String logoUrl;
+    // variantes optimizadas del logo (null si se cargó solo una URL externa)
+    private String logoEmailUrl;
+    private String logoAppUrl;
+    private String faviconUrl;
 
     public SchoolDocument() {}
 
@@ -46,4 +50,28 @@ public class SchoolDocument {
     public void setLogoUrl(String logoUrl) {
         this.logoUrl = logoUrl;
     }
+
+    public String getLogoEmailUrl() {
+        return logoEmailUrl;
+    }
+
+    public void setLogoEmailUrl(String logoEmailUrl) {
+        this.logoEmailUrl = logoEmailUrl;
+    }
+
+    public String getLogoAppUrl() {
+        return logoAppUrl;
+    }
+
+    public void setLogoAppUrl(String logoAppUrl) {
+        this.logoAppUrl = logoAppUrl;
+    }
+
+    public String getFaviconUrl() {
+        return faviconUrl;
+    }
+
+    public void setFaviconUrl(String faviconUrl) {
+        this.faviconUrl = faviconUrl;
+    }
 }
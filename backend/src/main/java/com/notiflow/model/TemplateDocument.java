@@ -10,9 +10,12 @@ public class TemplateDocument {
     private String schoolId;
     private Instant createdAt;
     private Instant updatedAt;
+    private Long version;
 
     public TemplateDocument() {}
 
+    public Long getVersion() { return version; }
+    public void setVersion(Long version) { this.version = version; }
     public String getId() { return id; }
     public void setId(String id) { this.id = id; }
     public String getName() { return name; }
@@ -1,22 +1,30 @@
 package com.notiflow.service;
 
 import com.google.api.core.ApiFuture;
+import com.google.cloud.Timestamp;
+import com.google.cloud.firestore.DocumentChange;
 import com.google.cloud.firestore.DocumentReference;
 import com.google.cloud.firestore.DocumentSnapshot;
 import com.google.cloud.firestore.Firestore;
+import com.google.cloud.firestore.ListenerRegistration;
 import com.notiflow.util.CurrentUser;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.stereotype.Service;
 
 import java.time.Instant;
 import java.util.Collections;
-import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.stream.Collectors;
 
 @Service
@@ -24,13 +32,54 @@ public class AccessControlService {
 
     private static final Logger log = LoggerFactory.getLogger(AccessControlService.class);
     private final Firestore firestore;
-    private final Map<String, CachedPermissions> cache = new HashMap<>();
+    private final Map<String, CachedPermissions> cache = new ConcurrentHashMap<>();
+    // Cargas en curso por rol: las peticiones concurrentes comparten una sola lectura a Firestore
+    private final Map<String, CompletableFuture<CachedPermissions>> inFlight = new ConcurrentHashMap<>();
+    private final ExecutorService refresher = Executors.newFixedThreadPool(2, r -> {
+        Thread t = new Thread(r, "permissions-refresh");
+        t.setDaemon(true);
+        return t;
+    });
+    private ListenerRegistration listener;
     private static final long CACHE_TTL_SECONDS = 300; // 5 minutos
+    private static final long REFRESH_AHEAD_SECONDS = 60; // refresco anticipado en el último minuto
 
     public AccessControlService(Firestore firestore) {
         this.firestore = firestore;
     }
 
+    @PostConstruct
+    void listenForChanges() {
+        try {
+            listener = firestore.collection("rolePermissions").addSnapshotListener((snapshots, error) -> {
+                if (error != null) {
+                    log.warn("Listener de rolePermissions con error, se mantiene TTL: {}", error.getMessage());
+                    return;
+                }
+                if (snapshots == null) return;
+                for (DocumentChange change : snapshots.getDocumentChanges()) {
+                    DocumentSnapshot doc = change.getDocument();
+                    String key = doc.getId().toUpperCase();
+                    if (change.getType() == DocumentChange.Type.REMOVED) {
+                        cache.put(key, new CachedPermissions(Collections.emptySet(), Instant.now().plusSeconds(CACHE_TTL_SECONDS), 0L));
+                    } else {
+                        cache.put(key, fromSnapshot(doc));
+                    }
+                }
+            });
+        } catch (Exception e) {
+            log.warn("No se pudo registrar listener de rolePermissions: {}", e.getMessage());
+        }
+    }
+
+    @PreDestroy
+    void shutdown() {
+        if (listener != null) {
+            listener.remove();
+        }
+        refresher.shutdownNow();
+    }
+
     public void check(CurrentUser user, String permission, String resourceSchoolId, Optional<String> ownerId) {
         if (user == null) {
             throw forbidden("Sin usuario en contexto");
@@ -70,35 +119,86 @@ public class AccessControlService {
 
     public Set<String> getPermissions(String role) {
         if (role == null) return Collections.emptySet();
-        String key = role.toUpperCase();
+        return resolve(role.toUpperCase()).permissions();
+    }
+
+    /**
+     * Versión de los permisos del rol (updateTime del documento en microsegundos, 0 si no existe).
+     * Es estable entre instancias, por lo que puede viajar en el JWT para detectar permisos obsoletos.
+     */
+    public long getPermissionsVersion(String role) {
+        if (role == null) return 0L;
+        return resolve(role.toUpperCase()).version();
+    }
+
+    private CachedPermissions resolve(String key) {
         CachedPermissions cached = cache.get(key);
-        if (cached != null && cached.expiresAt().isAfter(Instant.now())) {
-            return cached.permissions();
+        if (cached != null) {
+            // Tras el primer load nunca bloqueamos: se sirve lo cacheado y se refresca en segundo plano
+            if (Instant.now().isAfter(cached.expiresAt().minusSeconds(REFRESH_AHEAD_SECONDS))) {
+                load(key);
+            }
+            return cached;
+        }
+        try {
+            return load(key).get();
+        } catch (InterruptedException | ExecutionException e) {
+            Thread.currentThread().interrupt();
+            log.error("Error cargando permisos para rol {}", key, e);
+            return new CachedPermissions(Collections.emptySet(), Instant.now(), 0L);
+        }
+    }
+
+    private CompletableFuture<CachedPermissions> load(String key) {
+        CompletableFuture<CachedPermissions> created = new CompletableFuture<>();
+        CompletableFuture<CachedPermissions> existing = inFlight.putIfAbsent(key, created);
+        if (existing != null) {
+            return existing;
         }
+        refresher.execute(() -> {
+            try {
+                CachedPermissions loaded = fetch(key);
+                // El listener puede haber escrito una versión más nueva mientras leíamos: no la pisamos
+                CachedPermissions current = cache.merge(key, loaded, (a, b) -> b.version() >= a.version() ? b : a);
+                created.complete(current);
+            } catch (Exception e) {
+                log.error("Error cargando permisos para rol {}", key, e);
+                created.completeExceptionally(e);
+            } finally {
+                inFlight.remove(key, created);
+            }
+        });
+        return created;
+    }
+
+    private CachedPermissions fetch(String key) {
         try {
             DocumentReference ref = firestore.collection("rolePermissions").document(key);
             ApiFuture<DocumentSnapshot> future = ref.get();
             DocumentSnapshot snap = future.get();
             if (!snap.exists()) {
                 log.warn("No hay permisos definidos para el rol {}", key);
-                cache.put(key, new CachedPermissions(Collections.emptySet(), Instant.now().plusSeconds(CACHE_TTL_SECONDS)));
-                return Collections.emptySet();
+                return new CachedPermissions(Collections.emptySet(), Instant.now().plusSeconds(CACHE_TTL_SECONDS), 0L);
             }
-            @SuppressWarnings("unchecked")
-            List<String> raw = (List<String>) snap.get("permissions");
-            Set<String> perms = raw == null ? Collections.emptySet() : raw.stream().map(String::toLowerCase).collect(Collectors.toSet());
-            cache.put(key, new CachedPermissions(perms, Instant.now().plusSeconds(CACHE_TTL_SECONDS)));
-            return perms;
+            return fromSnapshot(snap);
         } catch (InterruptedException | ExecutionException e) {
             Thread.currentThread().interrupt();
-            log.error("Error cargando permisos para rol {}", key, e);
-            return Collections.emptySet();
+            throw new RuntimeException("Error cargando permisos para rol " + key, e);
         }
     }
 
+    private CachedPermissions fromSnapshot(DocumentSnapshot snap) {
+        @SuppressWarnings("unchecked")
+        List<String> raw = (List<String>) snap.get("permissions");
+        Set<String> perms = raw == null ? Collections.emptySet() : raw.stream().map(String::toLowerCase).collect(Collectors.toUnmodifiableSet());
+        Timestamp updated = snap.getUpdateTime();
+        long version = updated == null ? 0L : updated.getSeconds() * 1_000_000L + updated.getNanos() / 1_000;
+        return new CachedPermissions(perms, Instant.now().plusSeconds(CACHE_TTL_SECONDS), version);
+    }
+
     private org.springframework.web.server.ResponseStatusException forbidden(String reason) {
         return new org.springframework.web.server.ResponseStatusException(org.springframework.http.HttpStatus.FORBIDDEN, reason);
     }
 
-    private record CachedPermissions(Set<String> permissions, Instant expiresAt) {}
+    private record CachedPermissions(Set<String> permissions, Instant expiresAt, long version) {}
 }
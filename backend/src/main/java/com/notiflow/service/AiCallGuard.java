@@ -0,0 +1,169 @@
+package com.notiflow.service;
+
+import com.notiflow.util.CircuitBreaker;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpStatus;
+import org.springframework.stereotype.Service;
+
+import java.time.Duration;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Protección de las llamadas a Vertex AI: bulkhead (cupo fijo de llamadas simultáneas, el resto falla al
+ * instante), presupuesto de tiempo por operación y circuit breaker por modelo. Así una caída o lentitud
+ * de la IA ocupa como máximo {@code max-concurrent} hilos de Tomcat y no arrastra a mensajes ni login.
+ */
+@Service
+public class AiCallGuard {
+
+    private static final Logger log = LoggerFactory.getLogger(AiCallGuard.class);
+
+    private final Semaphore bulkhead;
+    private final int maxConcurrent;
+    private final long acquireWaitMillis;
+    private final int failureThreshold;
+    private final Duration openDuration;
+    private final Duration moderateBudget;
+    private final Duration rewriteBudget;
+    private final Duration streamBudget;
+    private final MeterRegistry meterRegistry;
+    private final Map<String, CircuitBreaker> breakers = new ConcurrentHashMap<>();
+
+    public AiCallGuard(
+            @Value("${app.ai.resilience.max-concurrent:16}") int maxConcurrent,
+            @Value("${app.ai.resilience.acquire-wait-ms:200}") long acquireWaitMillis,
+            @Value("${app.ai.resilience.failure-threshold:5}") int failureThreshold,
+            @Value("${app.ai.resilience.open-seconds:30}") long openSeconds,
+            @Value("${app.ai.resilience.moderate-timeout-seconds:15}") long moderateTimeoutSeconds,
+            @Value("${app.ai.resilience.rewrite-timeout-seconds:40}") long rewriteTimeoutSeconds,
+            @Value("${app.ai.resilience.stream-timeout-seconds:90}") long streamTimeoutSeconds,
+            MeterRegistry meterRegistry
+    ) {
+        this.maxConcurrent = Math.max(1, maxConcurrent);
+        this.bulkhead = new Semaphore(this.maxConcurrent);
+        this.acquireWaitMillis = acquireWaitMillis;
+        this.failureThreshold = failureThreshold;
+        this.openDuration = Duration.ofSeconds(openSeconds);
+        this.moderateBudget = Duration.ofSeconds(moderateTimeoutSeconds);
+        this.rewriteBudget = Duration.ofSeconds(rewriteTimeoutSeconds);
+        this.streamBudget = Duration.ofSeconds(streamTimeoutSeconds);
+        this.meterRegistry = meterRegistry;
+        Gauge.builder("notiflow.ai.bulkhead.available", bulkhead, Semaphore::availablePermits).register(meterRegistry);
+    }
+
+    /** Tiempo máximo total (token, envío y respuesta) para la operación. */
+    public Duration budget(String op) {
+        return switch (op) {
+            case "moderate" -> moderateBudget;
+            case "rewrite-stream" -> streamBudget;
+            default -> rewriteBudget;
+        };
+    }
+
+    /**
+     * Reserva cupo para una llamada o falla con 503 si el modelo está degradado o el bulkhead lleno.
+     * El permiso devuelto debe cerrarse siempre con {@link Permit#done(Outcome)}.
+     */
+    public Permit acquire(String op, String model) {
+        boolean acquired;
+        try {
+            acquired = bulkhead.tryAcquire(acquireWaitMillis, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw unavailable();
+        }
+        if (!acquired) {
+            meterRegistry.counter("notiflow.ai.calls.rejected", "model", model, "reason", "bulkhead").increment();
+            throw unavailable();
+        }
+        CircuitBreaker breaker = breaker(model);
+        if (!breaker.tryAcquire()) {
+            bulkhead.release();
+            meterRegistry.counter("notiflow.ai.calls.rejected", "model", model, "reason", "open").increment();
+            throw unavailable();
+        }
+        return new Permit(op, model, breaker, System.nanoTime());
+    }
+
+    public Map<String, Object> stats() {
+        Map<String, String> states = new LinkedHashMap<>();
+        breakers.forEach((model, breaker) -> states.put(model, breaker.state().name()));
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("maxConcurrent", maxConcurrent);
+        stats.put("inFlight", maxConcurrent - bulkhead.availablePermits());
+        stats.put("breakers", states);
+        return stats;
+    }
+
+    private CircuitBreaker breaker(String model) {
+        return breakers.computeIfAbsent(model, m -> {
+            CircuitBreaker breaker = new CircuitBreaker(failureThreshold, openDuration);
+            Gauge.builder("notiflow.ai.breaker.state", breaker, b -> b.state().ordinal())
+                    .tag("model", m)
+                    .description("0 cerrado, 1 semiabierto, 2 abierto")
+                    .register(meterRegistry);
+            return breaker;
+        });
+    }
+
+    private org.springframework.web.server.ResponseStatusException unavailable() {
+        return new org.springframework.web.server.ResponseStatusException(
+                HttpStatus.SERVICE_UNAVAILABLE, "El asistente IA no está disponible en este momento, intenta más tarde");
+    }
+
+    public enum Outcome {
+        SUCCESS,
+        /** Error atribuible a la petición (4xx); el modelo responde, no cuenta para el breaker. */
+        CLIENT_ERROR,
+        ERROR,
+        TIMEOUT,
+        CANCELLED
+    }
+
+    public final class Permit {
+
+        private final String op;
+        private final String model;
+        private final CircuitBreaker breaker;
+        private final long startedAt;
+        private final AtomicBoolean closed = new AtomicBoolean();
+
+        private Permit(String op, String model, CircuitBreaker breaker, long startedAt) {
+            this.op = op;
+            this.model = model;
+            this.breaker = breaker;
+            this.startedAt = startedAt;
+        }
+
+        public void done(Outcome outcome) {
+            if (!closed.compareAndSet(false, true)) return;
+            bulkhead.release();
+            switch (outcome) {
+                case SUCCESS, CLIENT_ERROR -> breaker.onSuccess();
+                case ERROR, TIMEOUT -> {
+                    breaker.onFailure();
+                    if (breaker.state() == CircuitBreaker.State.OPEN) {
+                        log.warn("Circuit breaker de Vertex AI abierto para {} tras fallo en {}", model, op);
+                    }
+                }
+                case CANCELLED -> breaker.onIgnored();
+            }
+            Timer.builder("notiflow.ai.calls")
+                    .tag("model", model)
+                    .tag("op", op)
+                    .tag("outcome", outcome.name().toLowerCase())
+                    .register(meterRegistry)
+                    .record(System.nanoTime() - startedAt, TimeUnit.NANOSECONDS);
+        }
+    }
+}
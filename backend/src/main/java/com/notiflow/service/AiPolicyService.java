@@ -1,26 +1,45 @@
 package com.notiflow.service;
 
 import com.google.api.core.ApiFuture;
+import com.google.cloud.firestore.DocumentChange;
 import com.google.cloud.firestore.DocumentReference;
 import com.google.cloud.firestore.DocumentSnapshot;
+import com.google.cloud.firestore.FieldValue;
 import com.google.cloud.firestore.Firestore;
+import com.google.cloud.firestore.ListenerRegistration;
+import com.google.cloud.firestore.SetOptions;
 import com.notiflow.dto.AiPolicyResponse;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 
 import java.time.Instant;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutionException;
 
+/**
+ * Políticas IA por colegio (aiPolicies/{schoolId}), cacheadas en memoria.
+ * Cada guardado incrementa "version"; un listener propaga los cambios a todas las instancias,
+ * y el TTL solo actúa de red de seguridad si el listener no está activo.
+ */
 @Service
 public class AiPolicyService {
 
     private static final Logger log = LoggerFactory.getLogger(AiPolicyService.class);
     private final Firestore firestore;
+    private final long cacheTtlSeconds;
+    private final Map<String, CachedPolicy> cache = new ConcurrentHashMap<>();
+    private volatile boolean listening;
+    private ListenerRegistration listener;
 
     // Placeholders permitidos: {tone}, {texto} o {text}, {rules}
     private static final String DEFAULT_REWRITE_PROMPT = """
@@ -39,60 +58,129 @@ public class AiPolicyService {
             "Información sensible no académica"
     );
 
-    public AiPolicyService(Firestore firestore) {
+    public AiPolicyService(Firestore firestore, @Value("${app.ai.policy-cache-ttl-seconds:600}") long cacheTtlSeconds) {
         this.firestore = firestore;
+        this.cacheTtlSeconds = cacheTtlSeconds;
+    }
+
+    @PostConstruct
+    void listenForChanges() {
+        try {
+            listener = firestore.collection("aiPolicies").addSnapshotListener((snapshots, error) -> {
+                if (error != null) {
+                    log.warn("Listener de políticas IA con error: {}", error.getMessage());
+                    listening = false;
+                    cache.clear();
+                    return;
+                }
+                if (snapshots == null) return;
+                listening = true;
+                for (DocumentChange change : snapshots.getDocumentChanges()) {
+                    DocumentSnapshot doc = change.getDocument();
+                    AiPolicyResponse policy = change.getType() == DocumentChange.Type.REMOVED
+                            ? defaults(doc.getId())
+                            : fromSnapshot(doc.getId(), doc);
+                    cache.put(doc.getId(), new CachedPolicy(policy, Instant.now()));
+                }
+            });
+        } catch (Exception e) {
+            log.warn("No se pudo registrar listener de políticas IA: {}", e.getMessage());
+        }
+    }
+
+    @PreDestroy
+    void shutdown() {
+        if (listener != null) {
+            listener.remove();
+        }
     }
 
     public AiPolicyResponse getPolicy(String schoolId) {
         String id = schoolId == null || schoolId.isBlank() ? "global" : schoolId.toLowerCase();
+        CachedPolicy cached = cache.get(id);
+        if (cached != null && (listening || cached.loadedAt().plusSeconds(cacheTtlSeconds).isAfter(Instant.now()))) {
+            return cached.policy();
+        }
         try {
             DocumentReference ref = firestore.collection("aiPolicies").document(id);
             ApiFuture<DocumentSnapshot> future = ref.get();
-            DocumentSnapshot snap = future.get();
-            if (!snap.exists()) {
-                return new AiPolicyResponse(id, DEFAULT_REWRITE_PROMPT, DEFAULT_RULES, null, null);
-            }
-            String rewritePrompt = snap.getString("rewritePrompt");
-            @SuppressWarnings("unchecked")
-            List<String> rules = (List<String>) snap.get("moderationRules");
-            String updatedBy = snap.getString("updatedBy");
-            Instant updatedAt = snap.contains("updatedAt")
-                    ? snap.getTimestamp("updatedAt").toDate().toInstant()
-                    : null;
-            return new AiPolicyResponse(
-                    id,
-                    rewritePrompt != null && !rewritePrompt.isBlank() ? rewritePrompt : DEFAULT_REWRITE_PROMPT,
-                    rules != null && !rules.isEmpty() ? rules : DEFAULT_RULES,
-                    updatedBy,
-                    updatedAt
-            );
+            AiPolicyResponse policy = fromSnapshot(id, future.get());
+            remember(id, policy);
+            return policy;
         } catch (InterruptedException | ExecutionException e) {
             Thread.currentThread().interrupt();
             log.error("No se pudo leer política IA para {}", schoolId, e);
-            return new AiPolicyResponse("global", DEFAULT_REWRITE_PROMPT, DEFAULT_RULES, null, null);
+            return defaults("global");
         }
     }
 
-    public AiPolicyResponse savePolicy(String schoolId, String rewritePrompt, List<String> rules, String updatedBy) {
+    public AiPolicyResponse savePolicy(String schoolId, String rewritePrompt, List<String> rules, List<String> blockedTerms, String updatedBy) {
         String id = schoolId == null || schoolId.isBlank() ? "global" : schoolId.toLowerCase();
         String promptToSave = (rewritePrompt == null || rewritePrompt.isBlank()) ? DEFAULT_REWRITE_PROMPT : rewritePrompt;
         List<String> rulesToSave = (rules == null || rules.isEmpty()) ? DEFAULT_RULES : new ArrayList<>(rules);
         rulesToSave = rulesToSave.stream().map(String::trim).filter(s -> !s.isBlank()).toList();
-        Map<String, Object> data = Map.of(
+        Map<String, Object> data = new HashMap<>(Map.of(
                 "rewritePrompt", promptToSave,
                 "moderationRules", rulesToSave,
                 "updatedBy", updatedBy,
-                "updatedAt", com.google.cloud.Timestamp.now()
-        );
+                "updatedAt", com.google.cloud.Timestamp.now(),
+                "version", FieldValue.increment(1)
+        ));
+        if (blockedTerms != null) {
+            // null = no se envió la lista (clientes antiguos); se conserva la guardada
+            data.put("blockedTerms", blockedTerms.stream()
+                    .filter(Objects::nonNull)
+                    .map(String::trim)
+                    .filter(s -> !s.isBlank())
+                    .distinct()
+                    .toList());
+        }
         try {
-            firestore.collection("aiPolicies").document(id).set(data).get();
-            return new AiPolicyResponse(id, promptToSave, rulesToSave, updatedBy, Instant.now());
+            DocumentReference ref = firestore.collection("aiPolicies").document(id);
+            ref.set(data, SetOptions.merge()).get();
+            // se relee para conocer la versión confirmada; el listener la propaga al resto de instancias
+            AiPolicyResponse saved = fromSnapshot(id, ref.get().get());
+            remember(id, saved);
+            return saved;
         } catch (InterruptedException | ExecutionException e) {
             Thread.currentThread().interrupt();
             throw new RuntimeException("No se pudo guardar la política IA", e);
         }
     }
 
+    private void remember(String id, AiPolicyResponse policy) {
+        cache.put(id, new CachedPolicy(policy, Instant.now()));
+    }
+
+    private AiPolicyResponse fromSnapshot(String id, DocumentSnapshot snap) {
+        if (!snap.exists()) {
+            return defaults(id);
+        }
+        String rewritePrompt = snap.getString("rewritePrompt");
+        @SuppressWarnings("unchecked")
+        List<String> rules = (List<String>) snap.get("moderationRules");
+        String updatedBy = snap.getString("updatedBy");
+        Instant updatedAt = snap.contains("updatedAt")
+                ? snap.getTimestamp("updatedAt").toDate().toInstant()
+                : null;
+        @SuppressWarnings("unchecked")
+        List<String> blocked = (List<String>) snap.get("blockedTerms");
+        Long version = snap.getLong("version");
+        return new AiPolicyResponse(
+                id,
+                rewritePrompt != null && !rewritePrompt.isBlank() ? rewritePrompt : DEFAULT_REWRITE_PROMPT,
+                rules != null && !rules.isEmpty() ? rules.stream().filter(Objects::nonNull).toList() : DEFAULT_RULES,
+                blocked != null ? blocked.stream().filter(Objects::nonNull).toList() : List.of(),
+                updatedBy,
+                updatedAt,
+                version == null ? 0 : version
+        );
+    }
+
+    private AiPolicyResponse defaults(String id) {
+        return new AiPolicyResponse(id, DEFAULT_REWRITE_PROMPT, DEFAULT_RULES, List.of(), null, null, 0);
+    }
+
     public String defaultRewritePrompt() {
         return DEFAULT_REWRITE_PROMPT;
     }
@@ -100,4 +188,7 @@ public class AiPolicyService {
     public List<String> defaultRules() {
         return Collections.unmodifiableList(DEFAULT_RULES);
     }
+
+    private record CachedPolicy(AiPolicyResponse policy, Instant loadedAt) {
+    }
 }
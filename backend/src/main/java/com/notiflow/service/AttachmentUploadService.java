@@ -0,0 +1,492 @@
+package com.notiflow.service;
+
+import com.google.cloud.ReadChannel;
+import com.google.cloud.Timestamp;
+import com.google.cloud.WriteChannel;
+import com.google.cloud.firestore.DocumentReference;
+import com.google.cloud.firestore.DocumentSnapshot;
+import com.google.cloud.firestore.FieldValue;
+import com.google.cloud.firestore.Firestore;
+import com.google.cloud.firestore.QueryDocumentSnapshot;
+import com.google.cloud.firestore.SetOptions;
+import com.google.cloud.storage.Blob;
+import com.google.cloud.storage.BlobId;
+import com.google.cloud.storage.BlobInfo;
+import com.google.cloud.storage.Storage;
+import com.google.cloud.storage.StorageException;
+import com.notiflow.dto.AttachmentUploadResponse;
+import com.notiflow.model.AttachmentMetadata;
+import com.notiflow.util.ResultCache;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpStatus;
+import org.springframework.stereotype.Service;
+import org.springframework.web.multipart.MultipartFile;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Supplier;
+import java.util.regex.Pattern;
+
+/**
+ * Adjuntos direccionados por contenido: cada archivo se guarda una sola vez por colegio en
+ * messages/{tenant}/blobs/{sha256} y los mensajes lo referencian por su digest. Si el digest ya existe
+ * no se vuelve a subir. tenants/{tenant}/attachmentBlobs/{sha256} lleva la cuenta de mensajes que lo usan.
+ * Un contenido sin referencias (subido y nunca usado, o liberado por todos sus mensajes) queda marcado con
+ * unreferencedSince y un barrido periódico lo borra pasado el plazo de gracia, nunca en el momento: así un
+ * mensaje que lo está creando alcanza a retenerlo. Mientras se borra queda marcado "deleting" y no se
+ * puede retener.
+ * Las URLs de descarga se firman al leer (no al guardar) y se cachean poco tiempo por ruta de objeto.
+ */
+@Service
+public class AttachmentUploadService {
+
+    private static final Logger log = LoggerFactory.getLogger(AttachmentUploadService.class);
+    public static final long MAX_ATTACHMENT_BYTES = 10L * 1024 * 1024; // 10MB
+    private static final int COPY_BUFFER_BYTES = 64 * 1024;
+    private static final Pattern DIGEST = Pattern.compile("[0-9a-f]{64}");
+    private static final int SWEEP_BATCH = 200;
+
+    private final Storage storage;
+    private final Firestore firestore;
+    private final MeterRegistry meterRegistry;
+    private final String attachmentsBucket;
+    private final long signedUrlValidityMinutes;
+    private final ResultCache<String, String> signedUrls;
+    // E/S de adjuntos en paralelo (subidas, lecturas, referencias), acotado para no saturar el bucket
+    private final ExecutorService io;
+    private final Duration unreferencedGrace;
+    private final long sweepMinutes;
+    private final ScheduledExecutorService sweeper = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "attachments-sweep");
+        t.setDaemon(true);
+        return t;
+    });
+
+    public AttachmentUploadService(
+            Storage storage,
+            Firestore firestore,
+            MeterRegistry meterRegistry,
+            @Value("${ATTACHMENTS_BUCKET:}") String attachmentsBucket,
+            @Value("${app.attachments.parallelism:4}") int parallelism,
+            @Value("${app.attachments.signed-url-validity-minutes:60}") long signedUrlValidityMinutes,
+            @Value("${app.attachments.signed-url-cache-minutes:10}") long signedUrlCacheMinutes,
+            @Value("${app.attachments.unreferenced-grace-hours:24}") long unreferencedGraceHours,
+            @Value("${app.attachments.sweep-minutes:60}") long sweepMinutes
+    ) {
+        this.storage = storage;
+        this.firestore = firestore;
+        this.meterRegistry = meterRegistry;
+        this.attachmentsBucket = attachmentsBucket;
+        // la URL cacheada debe seguir vigente un buen rato después de entregarse
+        this.signedUrlValidityMinutes = Math.max(signedUrlValidityMinutes, signedUrlCacheMinutes * 2);
+        this.signedUrls = new ResultCache<>(10_000, Duration.ofMinutes(signedUrlCacheMinutes));
+        this.io = Executors.newFixedThreadPool(Math.max(1, parallelism), r -> {
+            Thread t = new Thread(r, "attachments-io");
+            t.setDaemon(true);
+            return t;
+        });
+        this.unreferencedGrace = Duration.ofHours(Math.max(1, unreferencedGraceHours));
+        this.sweepMinutes = Math.max(1, sweepMinutes);
+    }
+
+    @PostConstruct
+    void scheduleSweep() {
+        if (attachmentsBucket != null && !attachmentsBucket.isBlank()) {
+            sweeper.scheduleWithFixedDelay(this::sweepUnreferenced, sweepMinutes, sweepMinutes, TimeUnit.MINUTES);
+        }
+    }
+
+    @PreDestroy
+    void shutdown() {
+        sweeper.shutdownNow();
+        io.shutdown();
+    }
+
+    /**
+     * Ejecuta las tareas de adjuntos en paralelo (acotado por {@code app.attachments.parallelism}) y devuelve
+     * los resultados en el mismo orden. Una sola tarea se ejecuta en el hilo actual.
+     */
+    public <T> List<T> runAll(List<Supplier<T>> tasks) {
+        if (tasks.size() <= 1) {
+            return tasks.stream().map(Supplier::get).toList();
+        }
+        List<CompletableFuture<T>> futures = tasks.stream()
+                .map(task -> CompletableFuture.supplyAsync(task, io))
+                .toList();
+        try {
+            CompletableFuture.allOf(futures.toArray(CompletableFuture[]::new)).get(2, TimeUnit.MINUTES);
+            return futures.stream().map(CompletableFuture::join).toList();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            futures.forEach(f -> f.cancel(true));
+            throw new RuntimeException("Procesamiento de adjuntos interrumpido", e);
+        } catch (TimeoutException e) {
+            futures.forEach(f -> f.cancel(true));
+            throw new RuntimeException("Tiempo agotado procesando adjuntos", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException re) {
+                throw re;
+            }
+            throw new RuntimeException("Error procesando adjuntos", e.getCause());
+        }
+    }
+
+    /** URL firmada de descarga, generada al leer y reutilizada mientras esté en caché. */
+    public String downloadUrl(String objectPath) {
+        if (objectPath == null || attachmentsBucket == null || attachmentsBucket.isBlank()) return null;
+        try {
+            return signedUrls.get(objectPath, () -> {
+                java.net.URL signed = storage.signUrl(BlobInfo.newBuilder(attachmentsBucket, objectPath).build(),
+                        signedUrlValidityMinutes, TimeUnit.MINUTES);
+                return signed != null ? signed.toString() : null;
+            });
+        } catch (RuntimeException e) {
+            log.warn("No se pudo firmar URL de {}: {}", objectPath, e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Sube un archivo del multipart (que Spring deja en disco). Primero calcula el SHA-256 leyendo por
+     * bloques; si el colegio ya tiene ese contenido no se sube de nuevo.
+     */
+    public AttachmentUploadResponse upload(MultipartFile file, String schoolId, String uploaderEmail) {
+        requireBucket();
+        if (file == null || file.isEmpty()) {
+            throw new org.springframework.web.server.ResponseStatusException(HttpStatus.BAD_REQUEST, "El adjunto no contiene datos");
+        }
+        String fileName = file.getOriginalFilename() != null && !file.getOriginalFilename().isBlank()
+                ? file.getOriginalFilename()
+                : "adjunto";
+        if (file.getSize() > MAX_ATTACHMENT_BYTES) {
+            throw new org.springframework.web.server.ResponseStatusException(HttpStatus.BAD_REQUEST, "Adjunto excede el límite de 10MB: " + fileName);
+        }
+        String mimeType = file.getContentType() != null ? file.getContentType() : "application/octet-stream";
+        try {
+            String digest;
+            try (DigestInputStream in = new DigestInputStream(file.getInputStream(), sha256())) {
+                in.transferTo(OutputStream.nullOutputStream());
+                digest = HexFormat.of().formatHex(in.getMessageDigest().digest());
+            }
+            String path = objectPath(schoolId, digest);
+            BlobId blobId = BlobId.of(attachmentsBucket, path);
+            // aún sin mensajes: si nadie lo usa dentro del plazo de gracia lo borra el barrido
+            boolean reusable = markUnreferenced(schoolId, digest, path, file.getSize());
+            if (reusable && storage.get(blobId) != null) {
+                meterRegistry.counter("notiflow.attachments.uploads", "result", "deduplicated").increment();
+                return new AttachmentUploadResponse(digest, fileName, mimeType, file.getSize());
+            }
+            BlobInfo info = BlobInfo.newBuilder(blobId).setContentType(mimeType).build();
+            try (InputStream in = file.getInputStream(); WriteChannel writer = storage.writer(info)) {
+                byte[] buffer = new byte[COPY_BUFFER_BYTES];
+                int read;
+                while ((read = in.read(buffer)) > 0) {
+                    ByteBuffer chunk = ByteBuffer.wrap(buffer, 0, read);
+                    while (chunk.hasRemaining()) {
+                        writer.write(chunk);
+                    }
+                }
+            }
+            meterRegistry.counter("notiflow.attachments.uploads", "result", "stored").increment();
+            log.debug("Adjunto {} subido por {} ({} bytes)", digest, uploaderEmail, file.getSize());
+            return new AttachmentUploadResponse(digest, fileName, mimeType, file.getSize());
+        } catch (IOException e) {
+            throw new RuntimeException("Error subiendo adjunto", e);
+        }
+    }
+
+    /**
+     * Guarda contenido ya en memoria (adjuntos base64 de clientes antiguos), también deduplicado.
+     * Devuelve el digest.
+     */
+    public String storeBytes(String schoolId, byte[] data, String mimeType) {
+        requireBucket();
+        String digest = HexFormat.of().formatHex(sha256().digest(data));
+        String path = objectPath(schoolId, digest);
+        BlobId blobId = BlobId.of(attachmentsBucket, path);
+        boolean reusable = markUnreferenced(schoolId, digest, path, data.length);
+        if (reusable && storage.get(blobId) != null) {
+            meterRegistry.counter("notiflow.attachments.uploads", "result", "deduplicated").increment();
+            return digest;
+        }
+        storage.create(BlobInfo.newBuilder(blobId)
+                .setContentType(mimeType != null ? mimeType : "application/octet-stream")
+                .build(), data);
+        meterRegistry.counter("notiflow.attachments.uploads", "result", "stored").increment();
+        return digest;
+    }
+
+    /** Consulta si el colegio ya tiene un contenido, para que el cliente se salte la subida. */
+    public AttachmentUploadResponse find(String digest, String schoolId) {
+        requireBucket();
+        if (digest == null || !DIGEST.matcher(digest).matches()) return null;
+        Blob blob = storage.get(BlobId.of(attachmentsBucket, objectPath(schoolId, digest)));
+        if (blob == null) return null;
+        meterRegistry.counter("notiflow.attachments.uploads", "result", "skipped").increment();
+        return new AttachmentUploadResponse(digest, null, blob.getContentType(), blob.getSize() != null ? blob.getSize() : 0);
+    }
+
+    /**
+     * Valida que el contenido exista en el colegio y no exceda el límite, sin descargarlo.
+     * Nombre, inline, cid y la URL firmada los completa quien crea el mensaje.
+     */
+    public AttachmentMetadata resolve(String uploadId, String schoolId) {
+        requireBucket();
+        String digest = uploadId == null ? "" : uploadId.toLowerCase();
+        if (!DIGEST.matcher(digest).matches()) {
+            throw new org.springframework.web.server.ResponseStatusException(HttpStatus.BAD_REQUEST, "Adjunto inválido");
+        }
+        String path = objectPath(schoolId, digest);
+        Blob blob = storage.get(BlobId.of(attachmentsBucket, path));
+        if (blob == null || isDeleting(schoolId, digest)) {
+            throw new org.springframework.web.server.ResponseStatusException(HttpStatus.BAD_REQUEST, "Adjunto no encontrado: " + uploadId);
+        }
+        if (blob.getSize() != null && blob.getSize() > MAX_ATTACHMENT_BYTES) {
+            throw new org.springframework.web.server.ResponseStatusException(HttpStatus.BAD_REQUEST, "Adjunto excede el límite de 10MB");
+        }
+        AttachmentMetadata meta = new AttachmentMetadata("adjunto", blob.getContentType(), blob.getSize(), null, null, null, path);
+        meta.setSha256(digest);
+        return meta;
+    }
+
+    /**
+     * El objeto tal como está ahora en el bucket, o null si ya no existe: permite responder 404 antes de
+     * comprometer cabeceras. Trae la generación, y {@link #writeTo(Blob, OutputStream)} lee esa misma versión.
+     */
+    public Blob stat(String objectPath) {
+        if (objectPath == null || attachmentsBucket == null || attachmentsBucket.isBlank()) return null;
+        return storage.get(BlobId.of(attachmentsBucket, objectPath));
+    }
+
+    /** Copia el objeto del bucket a {@code out} por bloques, sin cargarlo entero en memoria. */
+    public void writeTo(Blob blob, OutputStream out) throws IOException {
+        try (ReadChannel reader = storage.reader(blob.getBlobId())) {
+            Channels.newInputStream(reader).transferTo(out);
+        }
+    }
+
+    public String objectPath(String schoolId, String digest) {
+        return "messages/" + safeTenant(schoolId) + "/blobs/" + digest;
+    }
+
+    /**
+     * Suma una referencia de mensaje al contenido, en transacción. Si no se puede registrar (o el contenido
+     * se está borrando) lanza excepción: el mensaje no debe enviarse apuntando a un objeto sin contar.
+     */
+    public void retain(String schoolId, AttachmentMetadata meta) {
+        if (meta.getSha256() == null) return;
+        DocumentReference ref = blobRef(schoolId, meta.getSha256());
+        try {
+            firestore.runTransaction(tx -> {
+                DocumentSnapshot snap = tx.get(ref).get();
+                if (snap.exists() && Boolean.TRUE.equals(snap.getBoolean("deleting"))) {
+                    throw new org.springframework.web.server.ResponseStatusException(HttpStatus.CONFLICT,
+                            "El adjunto ya no está disponible, vuelve a adjuntarlo: " + meta.getFileName());
+                }
+                Long refs = snap.exists() ? snap.getLong("refCount") : null;
+                Map<String, Object> data = new HashMap<>();
+                data.put("refCount", (refs == null || refs < 0 ? 0 : refs) + 1);
+                data.put("objectPath", meta.getObjectPath());
+                data.put("sizeBytes", meta.getSizeBytes());
+                data.put("lastUsedAt", Timestamp.now());
+                data.put("unreferencedSince", FieldValue.delete());
+                tx.set(ref, data, SetOptions.merge());
+                return null;
+            }).get();
+        } catch (InterruptedException | ExecutionException e) {
+            Thread.currentThread().interrupt();
+            for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+                if (cause instanceof org.springframework.web.server.ResponseStatusException status) {
+                    throw status;
+                }
+            }
+            throw new RuntimeException("No se pudo registrar referencia a adjunto " + meta.getSha256(), e);
+        }
+    }
+
+    /**
+     * Quita una referencia. Sin referencias el objeto no se borra en el acto: queda marcado y lo borra el
+     * barrido si sigue sin uso pasado el plazo de gracia.
+     */
+    public void release(String schoolId, String digest) {
+        if (digest == null || attachmentsBucket == null || attachmentsBucket.isBlank()) return;
+        DocumentReference ref = blobRef(schoolId, digest);
+        try {
+            firestore.runTransaction(tx -> {
+                DocumentSnapshot snap = tx.get(ref).get();
+                if (!snap.exists()) return null;
+                Long refs = snap.getLong("refCount");
+                if (refs == null || refs <= 1) {
+                    tx.update(ref, "refCount", 0L, "unreferencedSince", Timestamp.now());
+                } else {
+                    tx.update(ref, "refCount", refs - 1);
+                }
+                return null;
+            }).get();
+        } catch (InterruptedException | ExecutionException e) {
+            Thread.currentThread().interrupt();
+            log.warn("No se pudo liberar adjunto {}: {}", digest, e.getMessage());
+        }
+    }
+
+    /**
+     * Registra un contenido recién subido o reutilizado que todavía no tiene mensajes (o extiende su plazo
+     * de gracia). Devuelve false si el barrido lo está borrando: entonces hay que volver a subirlo.
+     */
+    private boolean markUnreferenced(String schoolId, String digest, String objectPath, long sizeBytes) {
+        DocumentReference ref = blobRef(schoolId, digest);
+        try {
+            return firestore.runTransaction(tx -> {
+                DocumentSnapshot snap = tx.get(ref).get();
+                if (!snap.exists()) {
+                    Map<String, Object> data = new HashMap<>();
+                    data.put("refCount", 0L);
+                    data.put("objectPath", objectPath);
+                    data.put("sizeBytes", sizeBytes);
+                    data.put("unreferencedSince", Timestamp.now());
+                    tx.create(ref, data);
+                    return true;
+                }
+                if (Boolean.TRUE.equals(snap.getBoolean("deleting"))) {
+                    return false;
+                }
+                Long refs = snap.getLong("refCount");
+                if (refs == null || refs <= 0) {
+                    tx.update(ref, "unreferencedSince", Timestamp.now());
+                }
+                return true;
+            }).get();
+        } catch (InterruptedException | ExecutionException e) {
+            Thread.currentThread().interrupt();
+            // sin registro el objeto no se barre; se prefiere eso a fallar la subida
+            log.warn("No se pudo registrar subida de adjunto {}: {}", digest, e.getMessage());
+            return true;
+        }
+    }
+
+    private boolean isDeleting(String schoolId, String digest) {
+        try {
+            return Boolean.TRUE.equals(blobRef(schoolId, digest).get().get().getBoolean("deleting"));
+        } catch (InterruptedException | ExecutionException e) {
+            Thread.currentThread().interrupt();
+            log.warn("No se pudo consultar estado de adjunto {}: {}", digest, e.getMessage());
+            return false;
+        }
+    }
+
+    /** Borra los contenidos que siguen sin referencias pasado el plazo de gracia. */
+    void sweepUnreferenced() {
+        Timestamp cutoff = Timestamp.ofTimeSecondsAndNanos(
+                java.time.Instant.now().minus(unreferencedGrace).getEpochSecond(), 0);
+        try {
+            List<QueryDocumentSnapshot> docs = firestore.collectionGroup("attachmentBlobs")
+                    .whereLessThan("unreferencedSince", cutoff)
+                    .limit(SWEEP_BATCH)
+                    .get().get().getDocuments();
+            int reclaimed = 0;
+            for (QueryDocumentSnapshot doc : docs) {
+                if (reclaim(doc.getReference(), doc.getString("objectPath"), cutoff)) {
+                    reclaimed++;
+                }
+            }
+            if (reclaimed > 0) {
+                meterRegistry.counter("notiflow.attachments.swept").increment(reclaimed);
+                log.info("Barrido de adjuntos: {} contenidos sin referencias borrados", reclaimed);
+            }
+        } catch (InterruptedException | ExecutionException e) {
+            Thread.currentThread().interrupt();
+            log.warn("No se pudo barrer adjuntos sin referencias: {}", e.getMessage());
+        } catch (RuntimeException e) {
+            log.warn("Barrido de adjuntos falló: {}", e.getMessage());
+        }
+    }
+
+    /**
+     * La generación del objeto se toma antes de marcarlo: si alguien lo vuelve a subir mientras tanto, la
+     * nueva generación no coincide y no se borra. La marca se confirma en transacción, así una retención
+     * o subida posterior a la consulta gana.
+     */
+    private boolean reclaim(DocumentReference ref, String objectPath, Timestamp cutoff)
+            throws InterruptedException, ExecutionException {
+        if (objectPath == null) return false;
+        Blob blob = storage.get(BlobId.of(attachmentsBucket, objectPath));
+        boolean marked = firestore.runTransaction(tx -> {
+            DocumentSnapshot snap = tx.get(ref).get();
+            Long refs = snap.getLong("refCount");
+            Timestamp since = snap.getTimestamp("unreferencedSince");
+            if (!snap.exists() || (refs != null && refs > 0) || since == null || since.compareTo(cutoff) >= 0
+                    || Boolean.TRUE.equals(snap.getBoolean("deleting"))) {
+                return false;
+            }
+            tx.update(ref, "deleting", true);
+            return true;
+        }).get();
+        if (!marked) return false;
+        boolean deleted = false;
+        try {
+            deleted = blob == null || storage.delete(BlobId.of(attachmentsBucket, objectPath, blob.getGeneration()),
+                    Storage.BlobSourceOption.generationMatch());
+        } catch (StorageException e) {
+            // 412: se volvió a subir después de tomar la generación
+            log.info("Adjunto {} cambió durante el barrido, se conserva: {}", objectPath, e.getMessage());
+        }
+        boolean stillThere = storage.get(BlobId.of(attachmentsBucket, objectPath)) != null;
+        firestore.runTransaction(tx -> {
+            DocumentSnapshot snap = tx.get(ref).get();
+            if (!snap.exists() || !Boolean.TRUE.equals(snap.getBoolean("deleting"))) return null;
+            if (stillThere) {
+                // hay un objeto nuevo: vuelve a contar su plazo de gracia
+                tx.update(ref, "deleting", FieldValue.delete(), "unreferencedSince", Timestamp.now());
+            } else {
+                tx.delete(ref);
+            }
+            return null;
+        }).get();
+        return deleted && !stillThere;
+    }
+
+    private DocumentReference blobRef(String schoolId, String digest) {
+        return firestore.collection("tenants").document(safeTenant(schoolId)).collection("attachmentBlobs").document(digest);
+    }
+
+    private void requireBucket() {
+        if (attachmentsBucket == null || attachmentsBucket.isBlank()) {
+            throw new org.springframework.web.server.ResponseStatusException(HttpStatus.BAD_REQUEST, "Bucket de adjuntos no configurado");
+        }
+    }
+
+    private static String safeTenant(String schoolId) {
+        return schoolId == null || schoolId.isBlank() ? "global" : schoolId;
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -109,9 +109,9 @@ public class AuthService {
             String schoolName = "Colegio";
             try {
                 if (schoolService != null && schoolId != null && !schoolId.isBlank()) {
-                    var school = schoolService.getById(schoolId);
-                    if (school != null && school.getName() != null && !school.getName().isBlank()) {
-                        schoolName = school.getName();
+                    var school = schoolService.branding(schoolId);
+                    if (school.name() != null && !school.name().isBlank()) {
+                        schoolName = school.name();
                     }
                 }
             } catch (Exception ex) {
@@ -181,6 +181,9 @@ public class AuthService {
         try {
             Set<String> perms = accessControlService != null ? accessControlService.getPermissions(user.role().name()) : Set.of();
             claims.put("permissions", perms);
+            if (accessControlService != null) {
+                claims.put("permissionsVersion", accessControlService.getPermissionsVersion(user.role().name()));
+            }
         } catch (Exception ignored) {}
         if (linkedStudents != null && !linkedStudents.isEmpty()) {
             claims.put("studentIds", linkedStudents.stream().map(StudentOption::studentId).toList());
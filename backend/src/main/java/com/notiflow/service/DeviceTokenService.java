@@ -9,6 +9,7 @@ import org.springframework.stereotype.Service;
 
 import java.time.Instant;
 import java.util.List;
+import java.util.Map;
 import java.util.UUID;
 import java.util.concurrent.ExecutionException;
 import java.util.stream.Collectors;
@@ -65,8 +66,16 @@ public class DeviceTokenService {
     }
 
     public List<String> tokensForRecipients(List<String> recipients, String schoolId) {
+        return tokensByRecipient(recipients, schoolId).values().stream()
+                .flatMap(List::stream)
+                .distinct()
+                .toList();
+    }
+
+    /** Tokens de cada destinatario (email en minúsculas); quien no tiene dispositivos no aparece. */
+    public Map<String, List<String>> tokensByRecipient(List<String> recipients, String schoolId) {
         try {
-            if (recipients == null || recipients.isEmpty()) return List.of();
+            if (recipients == null || recipients.isEmpty()) return Map.of();
             var emails = recipients.stream().map(String::toLowerCase).collect(Collectors.toList());
             com.google.cloud.firestore.Query base = firestore.collectionGroup("deviceTokens")
                     .whereIn("email", emails);
@@ -75,10 +84,12 @@ public class DeviceTokenService {
             }
             ApiFuture<QuerySnapshot> snap = base.get();
             return snap.get().getDocuments().stream()
-                    .map(d -> d.toObject(DeviceToken.class).getToken())
-                    .filter(t -> t != null && !t.isBlank())
-                    .distinct()
-                    .toList();
+                    .map(d -> d.toObject(DeviceToken.class))
+                    .filter(t -> t.getEmail() != null && t.getToken() != null && !t.getToken().isBlank())
+                    .collect(Collectors.groupingBy(
+                            t -> t.getEmail().toLowerCase(),
+                            Collectors.mapping(DeviceToken::getToken, Collectors.toList())
+                    ));
         } catch (InterruptedException | ExecutionException e) {
             Thread.currentThread().interrupt();
             throw new RuntimeException("No se pudieron obtener tokens", e);
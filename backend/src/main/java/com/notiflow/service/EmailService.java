@@ -1,6 +1,5 @@
 package com.notiflow.service;
 
-import com.notiflow.dto.AttachmentRequest;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Value;
@@ -15,6 +14,7 @@ import software.amazon.awssdk.services.ses.SesClient;
 import software.amazon.awssdk.services.ses.model.RawMessage;
 import software.amazon.awssdk.services.ses.model.SendRawEmailRequest;
 
+import jakarta.activation.DataHandler;
 import jakarta.mail.Message;
 import jakarta.mail.MessagingException;
 import jakarta.mail.Session;
@@ -22,24 +22,39 @@ import jakarta.mail.internet.InternetAddress;
 import jakarta.mail.internet.MimeBodyPart;
 import jakarta.mail.internet.MimeMessage;
 import jakarta.mail.internet.MimeMultipart;
+import jakarta.mail.util.ByteArrayDataSource;
 import java.io.ByteArrayOutputStream;
 import java.nio.charset.StandardCharsets;
 import java.time.Instant;
 import java.time.ZoneId;
 import java.time.format.DateTimeFormatter;
-import java.util.Base64;
 import java.util.List;
 import java.util.Objects;
 import java.util.Properties;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 @Service
 public class EmailService {
 
     private static final Logger log = LoggerFactory.getLogger(EmailService.class);
+    // límite de destinatarios por mensaje de SES
+    public static final int MAX_BULK_DESTINATIONS = 50;
     private final SesClient sesClient;
     private final boolean enabled;
     private final String senderEmail;
     private final String frontendBaseUrl;
+    // Carril prioritario (OTP y similares): hilos propios para no quedar detrás de los envíos masivos
+    private final ThreadPoolExecutor priorityLane = new ThreadPoolExecutor(
+            2, 2, 60, TimeUnit.SECONDS,
+            new ArrayBlockingQueue<>(500),
+            r -> {
+                Thread t = new Thread(r, "email-priority");
+                t.setDaemon(true);
+                return t;
+            }
+    );
 
     public EmailService(
             @Value("${AWS_SES_ACCESS_KEY:}") String accessKey,
@@ -104,7 +119,7 @@ public class EmailService {
         return sendPlainEmail(to, "Recupera tu contraseña", text);
     }
 
-    public boolean sendMessageEmail(String to, String subject, String htmlBody, String textBody, List<AttachmentRequest> attachments) {
+    public boolean sendMessageEmail(String to, String subject, String htmlBody, String textBody, List<Attachment> attachments) {
         if (!enabled || sesClient == null) {
             log.warn("SES no configurado; se omite envío a {}", to);
             return false;
@@ -118,6 +133,64 @@ public class EmailService {
         }
     }
 
+    /**
+     * Un mismo correo para varios destinatarios (hasta {@link #MAX_BULK_DESTINATIONS}) en una sola llamada a SES.
+     * Los destinatarios van solo como destinos del envío, no en las cabeceras, así no se ven entre sí.
+     */
+    public boolean sendBulkEmail(List<String> recipients, String subject, String htmlBody, String textBody) {
+        if (!enabled || sesClient == null) {
+            log.warn("SES no configurado; se omite envío masivo a {} destinatarios", recipients == null ? 0 : recipients.size());
+            return false;
+        }
+        if (recipients == null || recipients.isEmpty()) return true;
+        if (recipients.size() > MAX_BULK_DESTINATIONS) {
+            throw new IllegalArgumentException("Máximo " + MAX_BULK_DESTINATIONS + " destinatarios por envío");
+        }
+        try {
+            Session session = Session.getInstance(new Properties());
+            MimeMessage message = new MimeMessage(session);
+            message.setFrom(new InternetAddress(senderEmail, "Notiflow"));
+            message.setHeader("To", "undisclosed-recipients:;");
+            message.setSubject(subject, StandardCharsets.UTF_8.name());
+            MimeMultipart alternative = new MimeMultipart("alternative");
+            MimeBodyPart textPart = new MimeBodyPart();
+            textPart.setText(textBody != null ? textBody : stripHtml(htmlBody), StandardCharsets.UTF_8.name());
+            MimeBodyPart htmlPart = new MimeBodyPart();
+            htmlPart.setContent(htmlBody, "text/html; charset=UTF-8");
+            alternative.addBodyPart(textPart);
+            alternative.addBodyPart(htmlPart);
+            message.setContent(alternative);
+            message.saveChanges();
+            return sendRaw(message, recipients);
+        } catch (Exception e) {
+            log.error("No se pudo armar correo masivo: {}", e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * Encola un correo en el carril prioritario y retorna de inmediato.
+     * Retorna false si SES no está configurado o la cola está llena.
+     */
+    public boolean enqueuePriority(String to, String subject, String htmlBody, String textBody) {
+        if (!enabled || sesClient == null) {
+            log.warn("SES no configurado; se omite envío prioritario a {}", to);
+            return false;
+        }
+        try {
+            priorityLane.execute(() -> sendMessageEmail(to, subject, htmlBody, textBody, null));
+            return true;
+        } catch (java.util.concurrent.RejectedExecutionException e) {
+            log.error("Cola prioritaria de correo llena; se descarta envío a {}", to);
+            return false;
+        }
+    }
+
+    @jakarta.annotation.PreDestroy
+    void shutdownPriorityLane() {
+        priorityLane.shutdown();
+    }
+
     private String stripHtml(String html) {
         if (html == null) return "";
         return html.replaceAll("<[^>]*>", "").replace("&nbsp;", " ");
@@ -178,7 +251,7 @@ public class EmailService {
             String subject,
             String htmlBody,
             String textBody,
-            List<AttachmentRequest> attachments
+            List<Attachment> attachments
     ) throws Exception {
         MimeMessage message = baseMessage(to, subject);
 
@@ -202,12 +275,13 @@ public class EmailService {
 
         // Inline attachments
         if (attachments != null) {
-            for (AttachmentRequest att : attachments) {
-                if (att == null || att.base64() == null || att.fileName() == null) continue;
-                byte[] data = Base64.getDecoder().decode(att.base64());
+            for (Attachment att : attachments) {
+                if (att == null || att.data() == null || att.fileName() == null) continue;
                 MimeBodyPart part = new MimeBodyPart();
                 part.setFileName(att.fileName());
-                part.setContent(data, att.mimeType() != null ? att.mimeType() : "application/octet-stream");
+                // el mismo arreglo se comparte entre todos los destinatarios, sin copiarlo ni recodificarlo
+                part.setDataHandler(new DataHandler(new ByteArrayDataSource(
+                        att.data(), att.mimeType() != null ? att.mimeType() : "application/octet-stream")));
                 if (Boolean.TRUE.equals(att.inline())) {
                     part.setDisposition(jakarta.mail.Part.INLINE);
                     if (att.cid() != null) {
@@ -233,18 +307,28 @@ public class EmailService {
     }
 
     private boolean sendRaw(MimeMessage message) {
+        return sendRaw(message, null);
+    }
+
+    private boolean sendRaw(MimeMessage message, List<String> destinations) {
         try {
             ByteArrayOutputStream out = new ByteArrayOutputStream();
             message.writeTo(out);
             byte[] bytes = out.toByteArray();
-            SendRawEmailRequest request = SendRawEmailRequest.builder()
-                    .rawMessage(RawMessage.builder().data(SdkBytes.fromByteArray(bytes)).build())
-                    .build();
-            sesClient.sendRawEmail(request);
+            SendRawEmailRequest.Builder request = SendRawEmailRequest.builder()
+                    .rawMessage(RawMessage.builder().data(SdkBytes.fromByteArray(bytes)).build());
+            if (destinations != null && !destinations.isEmpty()) {
+                request.destinations(destinations);
+            }
+            sesClient.sendRawEmail(request.build());
             return true;
         } catch (Exception e) {
             log.error("SES sendRawEmail error: {}", e.getMessage());
             return false;
         }
     }
+
+    /** Adjunto ya decodificado, listo para armar el MIME de cada destinatario. */
+    public record Attachment(String fileName, String mimeType, byte[] data, Boolean inline, String cid) {
+    }
 }
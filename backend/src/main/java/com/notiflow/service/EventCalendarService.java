@@ -0,0 +1,243 @@
+package com.notiflow.service;
+
+import com.google.cloud.firestore.DocumentReference;
+import com.google.cloud.firestore.DocumentSnapshot;
+import com.google.cloud.firestore.Firestore;
+import com.google.cloud.firestore.QueryDocumentSnapshot;
+import com.notiflow.model.CalendarEntry;
+import com.notiflow.model.CalendarMonthDocument;
+import com.notiflow.model.EventDocument;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpStatus;
+import org.springframework.stereotype.Service;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Instant;
+import java.time.YearMonth;
+import java.time.ZoneId;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.function.Consumer;
+
+/**
+ * Vistas de calendario materializadas por colegio y mes (tenants/{schoolId}/calendarMonths/{yyyy-MM}).
+ * Cada bucket guarda una proyección de los eventos que empiezan en el mes (sin descripción ni destinatarios
+ * directos, para no acercarse al límite de 1 MiB por documento), un número de versión y su fecha de
+ * actualización (juntos forman el ETag: la versión se reinicia si el bucket se descarta y reconstruye);
+ * se actualiza en transacción al crear o borrar eventos y se reconstruye desde events si falta o si aún
+ * tiene el formato anterior con eventos completos.
+ */
+@Service
+public class EventCalendarService {
+
+    private static final Logger log = LoggerFactory.getLogger(EventCalendarService.class);
+    private static final Comparator<CalendarEntry> BY_START = Comparator.comparing(
+            CalendarEntry::getStartDateTime, Comparator.nullsLast(Comparator.naturalOrder()));
+
+    private final Firestore firestore;
+    private final ZoneId zone;
+    private final long ttlSeconds;
+    private final Map<String, CachedMonth> months = new ConcurrentHashMap<>();
+
+    public EventCalendarService(
+            Firestore firestore,
+            @Value("${app.calendar.zone:America/Santiago}") String zone,
+            @Value("${app.calendar.month-cache-ttl-seconds:30}") long ttlSeconds
+    ) {
+        this.firestore = firestore;
+        this.zone = ZoneId.of(zone);
+        this.ttlSeconds = ttlSeconds;
+    }
+
+    public MonthBucket month(String schoolId, String month) {
+        String tenant = safeTenant(schoolId);
+        YearMonth ym = parseMonth(month);
+        String key = tenant + "|" + ym;
+        CachedMonth cached = months.get(key);
+        if (cached != null && cached.expiresAt().isAfter(Instant.now())) {
+            return cached.bucket();
+        }
+        try {
+            DocumentSnapshot snap = monthRef(tenant, ym).get().get();
+            CalendarMonthDocument doc = snap.exists() ? snap.toObject(CalendarMonthDocument.class) : null;
+            MonthBucket bucket = doc != null && doc.getEntries() != null ? toBucket(ym, doc) : update(tenant, ym, null);
+            months.put(key, new CachedMonth(bucket, Instant.now().plusSeconds(ttlSeconds)));
+            return bucket;
+        } catch (InterruptedException | ExecutionException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Error leyendo calendario", e);
+        }
+    }
+
+    /**
+     * Ids de los eventos del mes dirigidos directamente al usuario (audienceKeys contiene "u:{email}"). El bucket
+     * no guarda destinatarios directos, así que se consultan en events; usa el índice audienceKeys + startDateTime.
+     */
+    public Set<String> directAudienceIds(String schoolId, String month, String email) {
+        String tenant = safeTenant(schoolId);
+        YearMonth ym = parseMonth(month);
+        try {
+            return tenantEvents(tenant)
+                    .whereArrayContains("audienceKeys", EventService.userKey(email))
+                    .whereGreaterThanOrEqualTo("startDateTime", monthStart(ym))
+                    .whereLessThan("startDateTime", monthStart(ym.plusMonths(1)))
+                    .get()
+                    .get()
+                    .getDocuments()
+                    .stream()
+                    .map(QueryDocumentSnapshot::getId)
+                    .collect(Collectors.toSet());
+        } catch (InterruptedException | ExecutionException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Error leyendo eventos del calendario", e);
+        }
+    }
+
+    public void onEventSaved(EventDocument ev) {
+        if (ev.getStartDateTime() == null) return;
+        CalendarEntry entry = toEntry(ev);
+        apply(ev.getSchoolId(), ev.getStartDateTime(), entries -> {
+            entries.removeIf(e -> ev.getId().equals(e.getId()));
+            entries.add(entry);
+        });
+    }
+
+    public void onEventDeleted(EventDocument ev) {
+        if (ev.getStartDateTime() == null) return;
+        apply(ev.getSchoolId(), ev.getStartDateTime(), entries -> entries.removeIf(e -> ev.getId().equals(e.getId())));
+    }
+
+    private void apply(String schoolId, Instant start, Consumer<List<CalendarEntry>> mutation) {
+        String tenant = safeTenant(schoolId);
+        YearMonth ym = YearMonth.from(start.atZone(zone));
+        try {
+            MonthBucket bucket = update(tenant, ym, mutation);
+            months.put(tenant + "|" + ym, new CachedMonth(bucket, Instant.now().plusSeconds(ttlSeconds)));
+        } catch (InterruptedException | ExecutionException e) {
+            Thread.currentThread().interrupt();
+            // si el bucket no pudo actualizarse se descarta para que se reconstruya desde events
+            log.warn("No se pudo actualizar calendario {} {}: {}", tenant, ym, e.getMessage());
+            months.remove(tenant + "|" + ym);
+            monthRef(tenant, ym).delete();
+        }
+    }
+
+    /**
+     * Lee (o construye desde events) el bucket del mes dentro de una transacción y aplica la mutación.
+     * Sin mutación y con bucket existente no escribe nada.
+     */
+    private MonthBucket update(String tenant, YearMonth ym, Consumer<List<CalendarEntry>> mutation)
+            throws ExecutionException, InterruptedException {
+        DocumentReference ref = monthRef(tenant, ym);
+        return firestore.runTransaction(tx -> {
+            DocumentSnapshot snap = tx.get(ref).get();
+            CalendarMonthDocument doc = snap.exists() ? snap.toObject(CalendarMonthDocument.class) : null;
+            // un bucket sin entries es del formato anterior (eventos completos): se reconstruye
+            boolean current = doc != null && doc.getEntries() != null;
+            if (current && mutation == null) {
+                return toBucket(ym, doc);
+            }
+            List<CalendarEntry> entries = new ArrayList<>();
+            if (current) {
+                entries.addAll(doc.getEntries());
+            } else {
+                for (QueryDocumentSnapshot eventDoc : tx.get(tenantEvents(tenant)
+                        .whereGreaterThanOrEqualTo("startDateTime", monthStart(ym))
+                        .whereLessThan("startDateTime", monthStart(ym.plusMonths(1)))).get().getDocuments()) {
+                    EventDocument ev = eventDoc.toObject(EventDocument.class);
+                    ev.setId(eventDoc.getId());
+                    entries.add(toEntry(ev));
+                }
+            }
+            if (mutation != null) {
+                mutation.accept(entries);
+            }
+            entries.sort(BY_START);
+            CalendarMonthDocument next = new CalendarMonthDocument();
+            next.setSchoolId(tenant);
+            next.setMonth(ym.toString());
+            next.setVersion((doc == null ? 0 : doc.getVersion()) + 1);
+            next.setUpdatedAt(Instant.now());
+            next.setEntries(entries);
+            tx.set(ref, next);
+            return toBucket(ym, next);
+        }).get();
+    }
+
+    private MonthBucket toBucket(YearMonth ym, CalendarMonthDocument doc) {
+        List<CalendarEntry> entries = doc.getEntries() == null ? List.of() : List.copyOf(doc.getEntries());
+        return new MonthBucket(ym.toString(), doc.getVersion(), doc.getUpdatedAt(), entries);
+    }
+
+    private CalendarEntry toEntry(EventDocument ev) {
+        CalendarEntry entry = new CalendarEntry();
+        entry.setId(ev.getId());
+        entry.setTitle(ev.getTitle());
+        entry.setStartDateTime(ev.getStartDateTime());
+        entry.setEndDateTime(ev.getEndDateTime());
+        entry.setType(ev.getType());
+        entry.setAudienceGroupIds(ev.getAudienceGroupIds());
+        entry.setAudienceHash(audienceHash(ev.getAudienceUserIds()));
+        return entry;
+    }
+
+    /** Resumen estable de los destinatarios directos (null si no hay): cambia si cambia la lista. */
+    private String audienceHash(List<String> userIds) {
+        if (userIds == null) return null;
+        String joined = userIds.stream()
+                .filter(u -> u != null && !u.isBlank())
+                .map(u -> u.trim().toLowerCase())
+                .distinct()
+                .sorted()
+                .collect(Collectors.joining(","));
+        if (joined.isEmpty()) return null;
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(joined.getBytes(StandardCharsets.UTF_8));
+            return HexFormat.of().formatHex(digest, 0, 8);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 no disponible", e);
+        }
+    }
+
+    private Instant monthStart(YearMonth ym) {
+        return ym.atDay(1).atStartOfDay(zone).toInstant();
+    }
+
+    private YearMonth parseMonth(String month) {
+        try {
+            return YearMonth.parse(month);
+        } catch (DateTimeParseException | NullPointerException e) {
+            throw new org.springframework.web.server.ResponseStatusException(HttpStatus.BAD_REQUEST, "Mes inválido, usa el formato yyyy-MM");
+        }
+    }
+
+    private String safeTenant(String tenantId) {
+        return tenantId == null || tenantId.isBlank() ? "global" : tenantId;
+    }
+
+    private DocumentReference monthRef(String tenant, YearMonth ym) {
+        return firestore.collection("tenants").document(tenant).collection("calendarMonths").document(ym.toString());
+    }
+
+    private com.google.cloud.firestore.CollectionReference tenantEvents(String tenant) {
+        return firestore.collection("tenants").document(tenant).collection("events");
+    }
+
+    public record MonthBucket(String month, long version, Instant updatedAt, List<CalendarEntry> entries) {
+    }
+
+    private record CachedMonth(MonthBucket bucket, Instant expiresAt) {
+    }
+}
@@ -0,0 +1,399 @@
+package com.notiflow.service;
+
+import com.google.cloud.Timestamp;
+import com.google.cloud.firestore.DocumentChange;
+import com.google.cloud.firestore.DocumentReference;
+import com.google.cloud.firestore.DocumentSnapshot;
+import com.google.cloud.firestore.FieldValue;
+import com.google.cloud.firestore.Firestore;
+import com.google.cloud.firestore.ListenerRegistration;
+import com.google.cloud.firestore.Query;
+import com.google.cloud.firestore.QueryDocumentSnapshot;
+import com.google.cloud.firestore.SetOptions;
+import com.google.cloud.firestore.WriteBatch;
+import com.notiflow.model.EventDocument;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Feed iCalendar (.ics) por colegio y por usuario.
+ * La versión de eventos de cada colegio (tenants/{schoolId}/meta/events) se mantiene en memoria con un listener,
+ * de modo que el ETag/Last-Modified se resuelven sin leer Firestore y los 304 salen gratis. Si el listener falla
+ * se vuelve a registrar con espera exponencial y, entretanto, las versiones se releen con TTL.
+ */
+@Service
+public class EventFeedService {
+
+    private static final Logger log = LoggerFactory.getLogger(EventFeedService.class);
+    private static final long MIN_RETRY_SECONDS = 5;
+    private static final long MAX_RETRY_SECONDS = 300;
+    private static final int PAGE_SIZE = 200;
+    private static final int MAX_ANY_VALUES = 30;
+    private static final Duration PAST_WINDOW = Duration.ofDays(90);
+    private static final DateTimeFormatter ICS_TIME = DateTimeFormatter.ofPattern("yyyyMMdd'T'HHmmss'Z'").withZone(ZoneOffset.UTC);
+
+    private final Firestore firestore;
+    private final GroupService groupService;
+    private final byte[] feedSecret;
+    private final long versionTtlSeconds;
+    private final Map<String, FeedVersion> versions = new ConcurrentHashMap<>();
+    // versiones leídas por consulta (solo relevante sin listener)
+    private final Map<String, Instant> loadedAt = new ConcurrentHashMap<>();
+    private final Set<String> indexedSchools = ConcurrentHashMap.newKeySet();
+    private volatile boolean listening;
+    private volatile boolean stopped;
+    private ListenerRegistration listener;
+    private long retrySeconds = MIN_RETRY_SECONDS;
+    private final ScheduledExecutorService reconnector = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "event-versions-listener");
+        t.setDaemon(true);
+        return t;
+    });
+
+    public EventFeedService(
+            Firestore firestore,
+            GroupService groupService,
+            @Value("${app.calendar.feed-secret:change-me-dev-feed-secret}") String feedSecret,
+            @Value("${app.calendar.version-ttl-seconds:30}") long versionTtlSeconds
+    ) {
+        this.firestore = firestore;
+        this.groupService = groupService;
+        this.feedSecret = feedSecret.getBytes(StandardCharsets.UTF_8);
+        this.versionTtlSeconds = versionTtlSeconds;
+    }
+
+    @PostConstruct
+    synchronized void listenForChanges() {
+        if (stopped) return;
+        try {
+            listener = firestore.collectionGroup("meta").whereEqualTo("kind", "events").addSnapshotListener((snapshots, error) -> {
+                if (error != null) {
+                    log.warn("Listener de versiones de eventos con error: {}", error.getMessage());
+                    listening = false;
+                    versions.clear();
+                    loadedAt.clear();
+                    scheduleReconnect();
+                    return;
+                }
+                if (snapshots == null) return;
+                for (DocumentChange change : snapshots.getDocumentChanges()) {
+                    DocumentSnapshot doc = change.getDocument();
+                    String schoolId = doc.getReference().getParent().getParent().getId();
+                    if (change.getType() == DocumentChange.Type.REMOVED) {
+                        versions.remove(schoolId);
+                    } else {
+                        versions.put(schoolId, fromSnapshot(doc));
+                    }
+                }
+                // el primer snapshot trae todas las versiones: desde aquí la copia en memoria es confiable
+                if (!listening) {
+                    synchronized (this) {
+                        retrySeconds = MIN_RETRY_SECONDS;
+                    }
+                }
+                listening = true;
+            });
+        } catch (Exception e) {
+            log.warn("No se pudo registrar listener de versiones de eventos: {}", e.getMessage());
+            scheduleReconnect();
+        }
+    }
+
+    /**
+     * Un listener que recibió un error ya no entrega cambios: se descarta y se registra otro tras la espera.
+     * Mientras tanto las versiones se releen de Firestore con el TTL.
+     */
+    private synchronized void scheduleReconnect() {
+        if (stopped) return;
+        if (listener != null) {
+            listener.remove();
+            listener = null;
+        }
+        long delay = retrySeconds;
+        retrySeconds = Math.min(MAX_RETRY_SECONDS, retrySeconds * 2);
+        log.info("Se volverá a registrar el listener de versiones de eventos en {} s", delay);
+        reconnector.schedule(this::listenForChanges, delay, TimeUnit.SECONDS);
+    }
+
+    @PreDestroy
+    synchronized void shutdown() {
+        stopped = true;
+        reconnector.shutdownNow();
+        if (listener != null) {
+            listener.remove();
+        }
+    }
+
+    /** Incrementa la versión de eventos del colegio (alta/baja de eventos). */
+    public void bumpVersion(String schoolId) {
+        String tenant = safeTenant(schoolId);
+        try {
+            metaRef(tenant).set(Map.of(
+                    "kind", "events",
+                    "version", FieldValue.increment(1),
+                    "updatedAt", Timestamp.now()
+            ), SetOptions.merge()).get();
+        } catch (InterruptedException | ExecutionException e) {
+            Thread.currentThread().interrupt();
+            log.warn("No se pudo actualizar versión de eventos de {}: {}", tenant, e.getMessage());
+        }
+        // se descarta la copia local; el listener trae el valor confirmado
+        versions.remove(tenant);
+        loadedAt.remove(tenant);
+    }
+
+    /**
+     * Con el listener activo la versión en memoria está siempre al día. Sin él (error o registro fallido)
+     * se relee de Firestore cada app.calendar.version-ttl-seconds, para que el ETag no quede congelado.
+     */
+    public FeedVersion version(String schoolId) {
+        String tenant = safeTenant(schoolId);
+        FeedVersion cached = versions.get(tenant);
+        if (cached != null && (listening || isFresh(tenant))) return cached;
+        try {
+            FeedVersion loaded = fromSnapshot(metaRef(tenant).get().get());
+            if (listening) {
+                // no pisar lo que el listener haya escrito mientras leíamos
+                versions.putIfAbsent(tenant, loaded);
+            } else {
+                versions.put(tenant, loaded);
+                loadedAt.put(tenant, Instant.now());
+            }
+            return loaded;
+        } catch (InterruptedException | ExecutionException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Error leyendo versión de eventos", e);
+        }
+    }
+
+    private boolean isFresh(String tenant) {
+        Instant at = loadedAt.get(tenant);
+        return at != null && at.isAfter(Instant.now().minusSeconds(versionTtlSeconds));
+    }
+
+    /**
+     * ETag fuerte: versión del colegio y, en feeds personales, identidad y grupos del usuario.
+     */
+    public String etag(String schoolId, String userEmail) {
+        FeedVersion v = version(schoolId);
+        StringBuilder variant = new StringBuilder(safeTenant(schoolId)).append('|').append(v.version());
+        if (userEmail != null) {
+            variant.append('|').append(userEmail.toLowerCase())
+                    .append('|').append(new TreeSet<>(groupService.findGroupSetForMember(userEmail, schoolId)));
+        }
+        return "\"" + sign(variant.toString()).substring(0, 16) + "-" + v.version() + "\"";
+    }
+
+    public String feedToken(String schoolId, String userEmail) {
+        return sign(safeTenant(schoolId) + "|" + (userEmail == null ? "" : userEmail.toLowerCase()));
+    }
+
+    public boolean verifyToken(String schoolId, String userEmail, String token) {
+        if (token == null || token.isBlank()) return false;
+        return MessageDigest.isEqual(
+                feedToken(schoolId, userEmail).getBytes(StandardCharsets.UTF_8),
+                token.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Migración única por colegio: completa audienceKeys en eventos creados antes del índice. La usan tanto
+     * las consultas de eventos como el feed personal, que filtra por audienceKeys.
+     * El marcador queda en tenants/{schoolId}/meta/events para no repetir el recorrido.
+     */
+    public void ensureAudienceKeys(String schoolId) {
+        String tenant = safeTenant(schoolId);
+        if (indexedSchools.contains(tenant)) return;
+        try {
+            DocumentReference meta = metaRef(tenant);
+            var metaSnap = meta.get().get();
+            if (!Boolean.TRUE.equals(metaSnap.getBoolean("audienceKeysIndexed"))) {
+                List<QueryDocumentSnapshot> docs = firestore.collection("tenants").document(tenant).collection("events").get().get().getDocuments();
+                WriteBatch batch = firestore.batch();
+                int pending = 0;
+                for (QueryDocumentSnapshot doc : docs) {
+                    if (doc.contains("audienceKeys")) continue;
+                    EventDocument ev = doc.toObject(EventDocument.class);
+                    batch.update(doc.getReference(), "audienceKeys", EventService.buildAudienceKeys(ev.getAudienceUserIds(), ev.getAudienceGroupIds()));
+                    if (++pending == 500) {
+                        batch.commit().get();
+                        batch = firestore.batch();
+                        pending = 0;
+                    }
+                }
+                if (pending > 0) {
+                    batch.commit().get();
+                }
+                meta.set(Map.of("audienceKeysIndexed", true), SetOptions.merge()).get();
+            }
+            indexedSchools.add(tenant);
+        } catch (InterruptedException | ExecutionException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Error indexando audiencia de eventos", e);
+        }
+    }
+
+    /**
+     * Escribe el calendario directamente al stream, página a página (cursor startAfter), sin acumular eventos.
+     * Con usuario, solo los eventos cuya audiencia lo incluye (directamente o por grupo).
+     */
+    public void writeFeed(String schoolId, String userEmail, String calendarName, OutputStream out) throws IOException {
+        String tenant = safeTenant(schoolId);
+        Query base = firestore.collection("tenants").document(tenant).collection("events")
+                .whereGreaterThanOrEqualTo("startDateTime", Instant.now().minus(PAST_WINDOW));
+        Set<String> audience = null;
+        if (userEmail != null) {
+            ensureAudienceKeys(tenant);
+            List<String> keys = new ArrayList<>();
+            keys.add(EventService.userKey(userEmail));
+            groupService.findGroupSetForMember(userEmail, tenant).forEach(gid -> keys.add(EventService.groupKey(gid)));
+            if (keys.size() <= MAX_ANY_VALUES) {
+                base = base.whereArrayContainsAny("audienceKeys", keys);
+            } else {
+                // demasiadas claves para array-contains-any: se recorre el colegio y se filtra al escribir
+                audience = Set.copyOf(keys);
+            }
+        }
+        Query ordered = base.orderBy("startDateTime", Query.Direction.ASCENDING);
+
+        Writer writer = new OutputStreamWriter(out, StandardCharsets.UTF_8);
+        line(writer, "BEGIN:VCALENDAR");
+        line(writer, "VERSION:2.0");
+        line(writer, "PRODID:-//Notiflow//Calendario//ES");
+        line(writer, "CALSCALE:GREGORIAN");
+        line(writer, "METHOD:PUBLISH");
+        line(writer, "X-WR-CALNAME:" + escape(calendarName));
+        line(writer, "REFRESH-INTERVAL;VALUE=DURATION:PT15M");
+        try {
+            DocumentSnapshot last = null;
+            while (true) {
+                Query page = last == null ? ordered.limit(PAGE_SIZE) : ordered.startAfter(last).limit(PAGE_SIZE);
+                List<QueryDocumentSnapshot> docs = page.get().get().getDocuments();
+                for (QueryDocumentSnapshot doc : docs) {
+                    EventDocument ev = doc.toObject(EventDocument.class);
+                    ev.setId(doc.getId());
+                    if (audience != null && (ev.getAudienceKeys() == null || ev.getAudienceKeys().stream().noneMatch(audience::contains))) {
+                        continue;
+                    }
+                    writeEvent(writer, ev);
+                }
+                writer.flush();
+                if (docs.size() < PAGE_SIZE) break;
+                last = docs.get(docs.size() - 1);
+            }
+        } catch (InterruptedException | ExecutionException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Error generando calendario", e);
+        }
+        line(writer, "END:VCALENDAR");
+        writer.flush();
+    }
+
+    private void writeEvent(Writer writer, EventDocument ev) throws IOException {
+        if (ev.getStartDateTime() == null) return;
+        Instant end = ev.getEndDateTime() != null ? ev.getEndDateTime() : ev.getStartDateTime().plus(Duration.ofHours(1));
+        line(writer, "BEGIN:VEVENT");
+        line(writer, "UID:" + ev.getId() + "@notiflow");
+        line(writer, "DTSTAMP:" + ICS_TIME.format(ev.getCreatedAt() != null ? ev.getCreatedAt() : ev.getStartDateTime()));
+        line(writer, "DTSTART:" + ICS_TIME.format(ev.getStartDateTime()));
+        line(writer, "DTEND:" + ICS_TIME.format(end));
+        line(writer, "SUMMARY:" + escape(ev.getTitle()));
+        if (ev.getDescription() != null && !ev.getDescription().isBlank()) {
+            line(writer, "DESCRIPTION:" + escape(ev.getDescription()));
+        }
+        if (ev.getType() != null) {
+            line(writer, "CATEGORIES:" + escape(ev.getType()));
+        }
+        line(writer, "END:VEVENT");
+    }
+
+    /** Escribe una línea con CRLF, plegando a 75 octetos como exige RFC 5545. */
+    private void line(Writer writer, String content) throws IOException {
+        byte[] bytes = content.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length <= 75) {
+            writer.write(content);
+            writer.write("\r\n");
+            return;
+        }
+        int limit = 75;
+        int count = 0;
+        StringBuilder sb = new StringBuilder(content.length() + 8);
+        for (int i = 0; i < content.length(); ) {
+            int cp = content.codePointAt(i);
+            int size = new String(Character.toChars(cp)).getBytes(StandardCharsets.UTF_8).length;
+            if (count + size > limit) {
+                sb.append("\r\n ");
+                count = 1;
+                limit = 75;
+            }
+            sb.appendCodePoint(cp);
+            count += size;
+            i += Character.charCount(cp);
+        }
+        writer.write(sb.toString());
+        writer.write("\r\n");
+    }
+
+    private String escape(String value) {
+        if (value == null) return "";
+        return value.replace("\\", "\\\\")
+                .replace(";", "\\;")
+                .replace(",", "\\,")
+                .replace("\r\n", "\\n")
+                .replace("\n", "\\n");
+    }
+
+    private String sign(String value) {
+        try {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(new SecretKeySpec(feedSecret, "HmacSHA256"));
+            return Base64.getUrlEncoder().withoutPadding().encodeToString(mac.doFinal(value.getBytes(StandardCharsets.UTF_8)));
+        } catch (Exception e) {
+            throw new IllegalStateException("No se pudo firmar token de calendario", e);
+        }
+    }
+
+    private FeedVersion fromSnapshot(DocumentSnapshot doc) {
+        Long version = doc.exists() ? doc.getLong("version") : null;
+        Timestamp updatedAt = doc.exists() ? doc.getTimestamp("updatedAt") : null;
+        return new FeedVersion(version == null ? 0 : version, updatedAt == null ? null : updatedAt.toDate().toInstant());
+    }
+
+    private String safeTenant(String tenantId) {
+        return tenantId == null || tenantId.isBlank() ? "global" : tenantId;
+    }
+
+    private DocumentReference metaRef(String tenant) {
+        return firestore.collection("tenants").document(tenant).collection("meta").document("events");
+    }
+
+    public record FeedVersion(long version, Instant updatedAt) {
+    }
+}
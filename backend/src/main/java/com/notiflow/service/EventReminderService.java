@@ -0,0 +1,398 @@
+package com.notiflow.service;
+
+import com.google.cloud.firestore.DocumentReference;
+import com.google.cloud.firestore.DocumentSnapshot;
+import com.google.cloud.firestore.FieldValue;
+import com.google.cloud.firestore.Firestore;
+import com.google.cloud.firestore.QueryDocumentSnapshot;
+import com.google.cloud.firestore.SetOptions;
+import com.notiflow.model.EventDocument;
+import com.notiflow.model.GroupDocument;
+import com.notiflow.util.TimerWheel;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Recordatorios de eventos (por defecto 24 h y 1 h antes del inicio).
+ * Los próximos eventos se cargan periódicamente desde Firestore a una TimerWheel; al vencer, cada instancia
+ * intenta reclamar el recordatorio en tenants/{schoolId}/eventReminders/{id} con un lease y solo la que lo toma
+ * envía. El documento registra a quién ya se envió (correo y push), así si la instancia cae o un lote falla,
+ * otra instancia retoma el recordatorio al vencer el lease y solo envía a los pendientes.
+ */
+@Service
+public class EventReminderService {
+
+    private static final Logger log = LoggerFactory.getLogger(EventReminderService.class);
+    private static final int EMAIL_BATCH = EmailService.MAX_BULK_DESTINATIONS;
+    private static final int TOKEN_LOOKUP_BATCH = 30; // límite de whereIn
+    private static final Duration LATE_GRACE = Duration.ofMinutes(10);
+    private static final Duration CLAIM_LEASE = Duration.ofMinutes(5);
+    private static final Duration RETRY_DELAY = Duration.ofMinutes(1);
+    private static final int MAX_ATTEMPTS = 3;
+
+    private final Firestore firestore;
+    private final GroupService groupService;
+    private final EmailService emailService;
+    private final PushService pushService;
+    private final DeviceTokenService deviceTokenService;
+    private final boolean enabled;
+    private final List<Duration> offsets;
+    private final Duration rehydrateEvery;
+    private final Duration horizon;
+    private final DateTimeFormatter formatter;
+
+    private final ThreadPoolExecutor dispatcher = new ThreadPoolExecutor(
+            2, 2, 60, TimeUnit.SECONDS, new ArrayBlockingQueue<>(1000),
+            r -> {
+                Thread t = new Thread(r, "event-reminders");
+                t.setDaemon(true);
+                return t;
+            });
+    private final TimerWheel wheel = new TimerWheel("event-reminder-wheel", Duration.ofSeconds(1), 4096, this::dispatch);
+    // recordatorios agendados en esta instancia: schoolId|eventId|offset -> timeout
+    private final Map<String, Scheduled> scheduled = new ConcurrentHashMap<>();
+
+    public EventReminderService(
+            Firestore firestore,
+            GroupService groupService,
+            EmailService emailService,
+            PushService pushService,
+            DeviceTokenService deviceTokenService,
+            @Value("${app.reminders.enabled:true}") boolean enabled,
+            @Value("${app.reminders.offsets-minutes:1440,60}") String offsetsMinutes,
+            @Value("${app.reminders.rehydrate-minutes:15}") long rehydrateMinutes,
+            @Value("${app.calendar.zone:America/Santiago}") String zone
+    ) {
+        this.firestore = firestore;
+        this.groupService = groupService;
+        this.emailService = emailService;
+        this.pushService = pushService;
+        this.deviceTokenService = deviceTokenService;
+        this.enabled = enabled;
+        this.offsets = Arrays.stream(offsetsMinutes.split(","))
+                .map(String::trim)
+                .filter(v -> !v.isBlank())
+                .map(v -> Duration.ofMinutes(Long.parseLong(v)))
+                .filter(d -> !d.isNegative() && !d.isZero())
+                .distinct()
+                .toList();
+        this.rehydrateEvery = Duration.ofMinutes(Math.max(1, rehydrateMinutes));
+        Duration maxOffset = offsets.stream().max(Duration::compareTo).orElse(Duration.ZERO);
+        // la ventana cubre el mayor offset más dos ciclos de recarga, así ningún recordatorio queda fuera
+        this.horizon = maxOffset.plus(rehydrateEvery.multipliedBy(2));
+        this.formatter = DateTimeFormatter.ofPattern("EEEE d 'de' MMMM, HH:mm", new Locale("es", "CL"))
+                .withZone(ZoneId.of(zone));
+    }
+
+    @PostConstruct
+    void start() {
+        if (!enabled || offsets.isEmpty()) return;
+        // primera carga diferida para no bloquear el arranque
+        wheel.schedule(this::rehydrate, Duration.ofSeconds(15));
+    }
+
+    @PreDestroy
+    void shutdown() {
+        wheel.close();
+        dispatcher.shutdown();
+    }
+
+    public void onEventSaved(EventDocument ev) {
+        if (!enabled || ev == null || ev.getStartDateTime() == null) return;
+        scheduleEvent(ev, Instant.now());
+    }
+
+    public void onEventDeleted(EventDocument ev) {
+        if (ev == null) return;
+        String prefix = safeTenant(ev.getSchoolId()) + "|" + ev.getId() + "|";
+        scheduled.entrySet().removeIf(entry -> {
+            if (!entry.getKey().startsWith(prefix)) return false;
+            entry.getValue().timeout().cancel();
+            return true;
+        });
+    }
+
+    public int scheduledCount() {
+        return scheduled.size();
+    }
+
+    private void rehydrate() {
+        Instant now = Instant.now();
+        try {
+            List<QueryDocumentSnapshot> docs = firestore.collectionGroup("events")
+                    .whereGreaterThan("startDateTime", now)
+                    .whereLessThanOrEqualTo("startDateTime", now.plus(horizon))
+                    .get()
+                    .get()
+                    .getDocuments();
+            for (QueryDocumentSnapshot doc : docs) {
+                EventDocument ev = doc.toObject(EventDocument.class);
+                ev.setId(doc.getId());
+                scheduleEvent(ev, now);
+            }
+            log.debug("Recordatorios de eventos agendados: {}", scheduled.size());
+        } catch (InterruptedException | ExecutionException e) {
+            Thread.currentThread().interrupt();
+            log.warn("No se pudieron cargar eventos para recordatorios: {}", e.getMessage());
+        } catch (Exception e) {
+            log.warn("Fallo recargando recordatorios: {}", e.getMessage());
+        } finally {
+            if (enabled) {
+                wheel.schedule(this::rehydrate, rehydrateEvery);
+            }
+        }
+    }
+
+    private void scheduleEvent(EventDocument ev, Instant now) {
+        String tenant = safeTenant(ev.getSchoolId());
+        for (Duration offset : offsets) {
+            Instant fireAt = ev.getStartDateTime().minus(offset);
+            if (fireAt.isBefore(now.minus(LATE_GRACE)) || fireAt.isAfter(now.plus(horizon))) continue;
+            String key = tenant + "|" + ev.getId() + "|" + offset.toMinutes();
+            Scheduled existing = scheduled.get(key);
+            if (existing != null && existing.startDateTime().equals(ev.getStartDateTime())) continue;
+            if (existing != null) existing.timeout().cancel();
+            Reminder reminder = new Reminder(tenant, ev.getId(), ev.getStartDateTime(), offset);
+            Duration delay = Duration.between(now, fireAt);
+            TimerWheel.Timeout timeout = wheel.schedule(() -> fire(key, reminder), delay.isNegative() ? Duration.ZERO : delay);
+            scheduled.put(key, new Scheduled(ev.getStartDateTime(), timeout));
+        }
+    }
+
+    private void dispatch(Runnable task) {
+        try {
+            dispatcher.execute(task);
+        } catch (RejectedExecutionException e) {
+            log.error("Cola de recordatorios llena; se descarta un envío");
+        }
+    }
+
+    private void fire(String key, Reminder reminder) {
+        scheduled.remove(key);
+        try {
+            // releer el evento: pudo borrarse o moverse desde que se agendó
+            DocumentSnapshot snap = tenantEvents(reminder.schoolId()).document(reminder.eventId()).get().get();
+            if (!snap.exists()) return;
+            EventDocument ev = snap.toObject(EventDocument.class);
+            if (ev == null || !reminder.startDateTime().equals(ev.getStartDateTime())) return;
+            ev.setId(reminder.eventId());
+            Claim claim = claim(reminder);
+            if (claim.done()) return;
+            if (!claim.acquired()) {
+                // otra instancia lo tiene: revisar al vencer su lease por si cayó a mitad del envío
+                retryLater(key, reminder, Duration.between(Instant.now(), claim.leaseUntil()).plusSeconds(5));
+                return;
+            }
+
+            Set<String> recipients = resolveAudience(ev, reminder.schoolId());
+            String title = "Recordatorio: " + (ev.getTitle() == null ? "evento" : ev.getTitle());
+            String when = formatter.format(ev.getStartDateTime());
+            List<String> emailPending = recipients.stream().filter(r -> !claim.emailed().contains(r)).toList();
+            List<String> pushPending = recipients.stream().filter(r -> !claim.pushed().contains(r)).toList();
+            boolean emailsDone = sendEmails(reminder, emailPending, title, ev, when);
+            boolean pushDone = sendPush(reminder, pushPending, title, when, ev.getId());
+            if (emailsDone && pushDone) {
+                claimRef(reminder).set(Map.of(
+                        "status", "SENT",
+                        "recipients", recipients.size(),
+                        "sentAt", Instant.now().toString()
+                ), SetOptions.merge());
+                return;
+            }
+            // liberar el lease para reintentar solo con los pendientes
+            claimRef(reminder).set(Map.of("status", "PARTIAL", "leaseUntil", Instant.now().toString()), SetOptions.merge());
+            if (claim.attempts() < MAX_ATTEMPTS) {
+                retryLater(key, reminder, RETRY_DELAY);
+            } else {
+                log.warn("Recordatorio {} incompleto tras {} intentos", key, claim.attempts());
+            }
+        } catch (InterruptedException | ExecutionException e) {
+            Thread.currentThread().interrupt();
+            log.warn("No se pudo enviar recordatorio {}: {}", key, e.getMessage());
+        } catch (Exception e) {
+            log.warn("Fallo enviando recordatorio {}: {}", key, e.getMessage());
+        }
+    }
+
+    private void retryLater(String key, Reminder reminder, Duration delay) {
+        Duration wait = delay.isNegative() ? Duration.ZERO : delay;
+        if (Instant.now().plus(wait).isAfter(reminder.startDateTime())) return;
+        TimerWheel.Timeout timeout = wheel.schedule(() -> fire(key, reminder), wait);
+        scheduled.put(key, new Scheduled(reminder.startDateTime(), timeout));
+    }
+
+    /**
+     * Toma el recordatorio en transacción: lo crea si no existe o retoma uno cuyo lease venció sin terminar.
+     * Devuelve además a quiénes ya se envió, para no repetir en un reintento.
+     */
+    private Claim claim(Reminder reminder) throws InterruptedException, ExecutionException {
+        DocumentReference ref = claimRef(reminder);
+        return firestore.runTransaction(tx -> {
+            DocumentSnapshot snap = tx.get(ref).get();
+            Instant now = Instant.now();
+            Instant lease = now.plus(CLAIM_LEASE);
+            if (!snap.exists()) {
+                tx.create(ref, Map.of(
+                        "eventId", reminder.eventId(),
+                        "offsetMinutes", reminder.offset().toMinutes(),
+                        "startDateTime", reminder.startDateTime().toString(),
+                        "status", "CLAIMED",
+                        "claimedAt", now.toString(),
+                        "leaseUntil", lease.toString(),
+                        "attempts", 1
+                ));
+                return new Claim(true, false, 1, Set.of(), Set.of(), lease);
+            }
+            if ("SENT".equals(snap.getString("status"))) {
+                return new Claim(false, true, 0, Set.of(), Set.of(), now);
+            }
+            String rawLease = snap.getString("leaseUntil");
+            Instant currentLease = rawLease == null ? Instant.EPOCH : Instant.parse(rawLease);
+            Long previous = snap.getLong("attempts");
+            int attempts = previous == null ? 1 : previous.intValue();
+            if (currentLease.isAfter(now)) {
+                return new Claim(false, false, attempts, Set.of(), Set.of(), currentLease);
+            }
+            if (attempts >= MAX_ATTEMPTS) {
+                return new Claim(false, true, attempts, Set.of(), Set.of(), now);
+            }
+            tx.update(ref, "status", "CLAIMED", "leaseUntil", lease.toString(), "attempts", attempts + 1);
+            return new Claim(true, false, attempts + 1, stringSet(snap.get("emailedTo")), stringSet(snap.get("pushedTo")), lease);
+        }).get();
+    }
+
+    private Set<String> stringSet(Object raw) {
+        if (!(raw instanceof List<?> list)) return Set.of();
+        return list.stream().filter(Objects::nonNull).map(Object::toString).collect(java.util.stream.Collectors.toSet());
+    }
+
+    private Set<String> resolveAudience(EventDocument ev, String schoolId) {
+        Set<String> recipients = new LinkedHashSet<>();
+        if (ev.getAudienceUserIds() != null) {
+            ev.getAudienceUserIds().stream()
+                    .filter(Objects::nonNull)
+                    .map(e -> e.trim().toLowerCase())
+                    .filter(e -> e.contains("@"))
+                    .forEach(recipients::add);
+        }
+        if (ev.getAudienceGroupIds() != null) {
+            for (String gid : ev.getAudienceGroupIds()) {
+                groupService.findById(gid, schoolId)
+                        .map(GroupDocument::getMemberIds)
+                        .ifPresent(members -> members.stream()
+                                .filter(Objects::nonNull)
+                                .map(e -> e.trim().toLowerCase())
+                                .filter(e -> e.contains("@"))
+                                .forEach(recipients::add));
+            }
+        }
+        return recipients;
+    }
+
+    /**
+     * Un envío a SES por lote de hasta 50 destinatarios (el contenido es el mismo para todos); cada lote enviado
+     * queda registrado en emailedTo. Devuelve false si algún lote falló.
+     */
+    private boolean sendEmails(Reminder reminder, List<String> recipients, String title, EventDocument ev, String when)
+            throws InterruptedException, ExecutionException {
+        if (!emailService.isEnabled() || recipients.isEmpty()) return true;
+        String html = """
+                <div style="font-family: Arial, sans-serif; padding:16px; background:#f5f7fb;">
+                  <div style="max-width:520px;margin:0 auto;background:#fff;padding:20px;border-radius:12px;border:1px solid #e5e7eb;">
+                    <h2 style="margin:0 0 8px 0;color:#0f766e;">%s</h2>
+                    <p style="margin:0 0 12px 0;color:#111827;">%s</p>
+                    <p style="margin:0;color:#6b7280;">%s</p>
+                  </div>
+                </div>
+                """.formatted(escape(ev.getTitle()), escape(when), escape(ev.getDescription()));
+        String text = title + "\n" + when + (ev.getDescription() != null ? "\n\n" + ev.getDescription() : "");
+        boolean ok = true;
+        for (int i = 0; i < recipients.size(); i += EMAIL_BATCH) {
+            List<String> batch = recipients.subList(i, Math.min(recipients.size(), i + EMAIL_BATCH));
+            if (emailService.sendBulkEmail(batch, title, html, text)) {
+                claimRef(reminder).update("emailedTo", FieldValue.arrayUnion(batch.toArray())).get();
+            } else {
+                ok = false;
+            }
+        }
+        return ok;
+    }
+
+    /**
+     * Queda en pushedTo quien recibió el push en al menos uno de sus dispositivos (o no tiene ninguno registrado);
+     * el resto se reintenta. Devuelve false si a alguno no se le pudo entregar.
+     */
+    private boolean sendPush(Reminder reminder, List<String> recipients, String title, String when, String eventId)
+            throws InterruptedException, ExecutionException {
+        if (!pushService.isEnabled() || recipients.isEmpty()) return true;
+        boolean ok = true;
+        for (int i = 0; i < recipients.size(); i += TOKEN_LOOKUP_BATCH) {
+            List<String> batch = recipients.subList(i, Math.min(recipients.size(), i + TOKEN_LOOKUP_BATCH));
+            Map<String, List<String>> tokensByRecipient = deviceTokenService.tokensByRecipient(batch, reminder.schoolId());
+            List<String> tokens = tokensByRecipient.values().stream().flatMap(List::stream).distinct().toList();
+            Set<String> delivered = pushService.send(tokens, title, when, "eventId", eventId, reminder.schoolId());
+            List<String> done = batch.stream()
+                    .filter(r -> {
+                        List<String> own = tokensByRecipient.getOrDefault(r.toLowerCase(), List.of());
+                        return own.isEmpty() || own.stream().anyMatch(delivered::contains);
+                    })
+                    .toList();
+            if (!done.isEmpty()) {
+                claimRef(reminder).update("pushedTo", FieldValue.arrayUnion(done.toArray())).get();
+            }
+            if (done.size() < batch.size()) {
+                ok = false;
+            }
+        }
+        return ok;
+    }
+
+    private String escape(String value) {
+        if (value == null) return "";
+        return value.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;");
+    }
+
+    private String safeTenant(String tenantId) {
+        return tenantId == null || tenantId.isBlank() ? "global" : tenantId;
+    }
+
+    private DocumentReference claimRef(Reminder reminder) {
+        String id = reminder.eventId() + "_" + reminder.offset().toMinutes() + "_" + reminder.startDateTime().getEpochSecond();
+        return firestore.collection("tenants").document(reminder.schoolId()).collection("eventReminders").document(id);
+    }
+
+    private com.google.cloud.firestore.CollectionReference tenantEvents(String tenantId) {
+        return firestore.collection("tenants").document(tenantId).collection("events");
+    }
+
+    private record Reminder(String schoolId, String eventId, Instant startDateTime, Duration offset) {
+    }
+
+    private record Scheduled(Instant startDateTime, TimerWheel.Timeout timeout) {
+    }
+
+    private record Claim(boolean acquired, boolean done, int attempts, Set<String> emailed, Set<String> pushed, Instant leaseUntil) {
+    }
+}
@@ -1,6 +1,5 @@
 package com.notiflow.service;
 
-import com.google.api.core.ApiFuture;
 import com.google.cloud.firestore.DocumentReference;
 import com.google.cloud.firestore.Firestore;
 import com.google.cloud.firestore.Query;
@@ -9,6 +8,7 @@ import com.google.cloud.firestore.QuerySnapshot;
 import com.google.cloud.firestore.FieldPath;
 import com.notiflow.dto.EventDto;
 import com.notiflow.dto.EventRequest;
+import com.notiflow.model.CalendarEntry;
 import com.notiflow.model.EventDocument;
 import com.notiflow.util.CurrentUser;
 import org.springframework.http.HttpStatus;
@@ -17,8 +17,13 @@ import org.springframework.stereotype.Service;
 import java.time.Instant;
 import java.time.format.DateTimeParseException;
 import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
 import java.util.UUID;
 import java.util.concurrent.ExecutionException;
 import java.util.stream.Collectors;
@@ -28,21 +33,57 @@ public class EventService {
 
     private final Firestore firestore;
     private final GroupService groupService;
+    private final EventCalendarService calendarService;
+    private final EventReminderService reminderService;
+    private final EventFeedService feedService;
+    private final String publicBaseUrl;
+    // Límite de valores de Firestore para array-contains-any
+    private static final int MAX_ANY_VALUES = 30;
 
-    public EventService(Firestore firestore, GroupService groupService) {
+    public EventService(
+            Firestore firestore,
+            GroupService groupService,
+            EventCalendarService calendarService,
+            EventReminderService reminderService,
+            EventFeedService feedService,
+            @org.springframework.beans.factory.annotation.Value("${app.tracking-base-url:https://api.notiflow.app}") String publicBaseUrl
+    ) {
         this.firestore = firestore;
         this.groupService = groupService;
+        this.calendarService = calendarService;
+        this.reminderService = reminderService;
+        this.feedService = feedService;
+        this.publicBaseUrl = publicBaseUrl;
+    }
+
+    /**
+     * URLs de suscripción .ics del usuario: feed personal y, para roles de gestión, el del colegio completo.
+     */
+    public Map<String, String> feedUrls(CurrentUser user) {
+        String schoolId = user.schoolId() == null || user.schoolId().isBlank() ? "global" : user.schoolId();
+        String base = publicBaseUrl + "/calendar/" + java.net.URLEncoder.encode(schoolId, java.nio.charset.StandardCharsets.UTF_8) + "/feed.ics";
+        Map<String, String> urls = new LinkedHashMap<>();
+        if (user.email() != null && !user.email().isBlank()) {
+            String email = user.email().toLowerCase();
+            urls.put("userFeedUrl", base + "?user=" + java.net.URLEncoder.encode(email, java.nio.charset.StandardCharsets.UTF_8)
+                    + "&token=" + feedService.feedToken(schoolId, email));
+        }
+        if (!shouldRestrictToAudience(user)) {
+            urls.put("schoolFeedUrl", base + "?token=" + feedService.feedToken(schoolId, null));
+        }
+        return urls;
     }
 
     public List<EventDto> listForUser(CurrentUser user, String fromIso, String toIso, String type, int page, int pageSize) {
         int safePage = Math.max(1, page);
         int safeSize = Math.min(Math.max(1, pageSize), 200);
-        Query query = firestore.collectionGroup("events");
-
-        // scope por colegio, salvo superadmin (schoolId global)
-        if (user.schoolId() != null && !"global".equalsIgnoreCase(user.schoolId())) {
-            query = query.whereEqualTo("schoolId", user.schoolId());
+        if (shouldRestrictToAudience(user)) {
+            return listForAudience(user, fromIso, toIso, type, safePage, safeSize);
         }
+        // scope por colegio (colección del tenant), salvo superadmin (schoolId global)
+        Query query = user.schoolId() != null && !"global".equalsIgnoreCase(user.schoolId())
+                ? tenantEvents(user.schoolId())
+                : firestore.collectionGroup("events");
         if (type != null && !type.isBlank()) {
             query = query.whereEqualTo("type", type);
         }
@@ -56,55 +97,66 @@ public class EventService {
         }
 
         try {
-            ApiFuture<QuerySnapshot> future = query
+            return toDtos(query
                     .orderBy("startDateTime", Query.Direction.ASCENDING)
                     .offset((safePage - 1) * safeSize)
                     .limit(safeSize)
-                    .get();
-            List<QueryDocumentSnapshot> docs = future.get().getDocuments();
-            List<EventDto> all = docs.stream().map(doc -> {
-                EventDocument ev = doc.toObject(EventDocument.class);
-                ev.setId(doc.getId());
-                return toDto(ev);
-            }).collect(Collectors.toList());
-
-            // Filtrado por audiencia para guardian/student u otros roles sin permiso explícito
-            if (shouldRestrictToAudience(user)) {
-                List<String> myGroupIds = groupService.findGroupsForMember(user.email(), user.schoolId());
-                return all.stream()
-                        .filter(ev -> isAudience(user.email(), myGroupIds, ev))
-                        .collect(Collectors.toList());
-            }
-
-            return all;
+                    .get()
+                    .get()
+                    .getDocuments());
         } catch (InterruptedException | ExecutionException e) {
             Thread.currentThread().interrupt();
             throw new RuntimeException("Error listando eventos", e);
-        } catch (Exception ex) {
-            // si hay errores de índice, hacer fallback sin orderBy
-            try {
-                ApiFuture<QuerySnapshot> future = query
-                        .offset((safePage - 1) * safeSize)
-                        .limit(safeSize)
-                        .get();
-                List<QueryDocumentSnapshot> docs = future.get().getDocuments();
-                List<EventDto> all = docs.stream().map(doc -> {
-                    EventDocument ev = doc.toObject(EventDocument.class);
-                    ev.setId(doc.getId());
-                    return toDto(ev);
-                }).collect(Collectors.toList());
-                if (shouldRestrictToAudience(user)) {
-                    List<String> myGroupIds = groupService.findGroupsForMember(user.email(), user.schoolId());
-                    return all.stream()
-                            .filter(ev -> isAudience(user.email(), myGroupIds, ev))
-                            .collect(Collectors.toList());
+        }
+    }
+
+    /**
+     * Mes de calendario desde el bucket materializado del colegio. El ETag combina colegio, versión y fecha de
+     * actualización del bucket (la versión vuelve a 1 si el bucket se reconstruye) con la audiencia del usuario,
+     * así la navegación entre meses ya vistos responde 304. El bucket no guarda destinatarios directos: para
+     * apoderados y alumnos los eventos dirigidos a ellos se buscan en events, solo si el mes tiene alguno.
+     */
+    public MonthView listMonth(CurrentUser user, String month, String type, String requestedSchoolId) {
+        String schoolId = user.schoolId();
+        if (requestedSchoolId != null && !requestedSchoolId.isBlank() && !requestedSchoolId.equalsIgnoreCase(schoolId)) {
+            if (!(user.isSuperAdmin() || user.isGlobalAdmin())) {
+                throw new org.springframework.web.server.ResponseStatusException(HttpStatus.FORBIDDEN, "No puedes ver el calendario de otro colegio");
+            }
+            schoolId = requestedSchoolId;
+        }
+        EventCalendarService.MonthBucket bucket = calendarService.month(schoolId, month);
+        Set<String> keys = null;
+        Set<String> direct = Set.of();
+        if (shouldRestrictToAudience(user)) {
+            if (user.email() == null || user.email().isBlank()) {
+                keys = Set.of();
+            } else {
+                Set<String> mine = new HashSet<>();
+                mine.add(userKey(user.email()));
+                groupService.findGroupSetForMember(user.email(), user.schoolId()).forEach(gid -> mine.add(groupKey(gid)));
+                keys = mine;
+                if (bucket.entries().stream().anyMatch(e -> e.getAudienceHash() != null)) {
+                    direct = calendarService.directAudienceIds(schoolId, bucket.month(), user.email());
                 }
-                return all;
-            } catch (InterruptedException | ExecutionException e2) {
-                Thread.currentThread().interrupt();
-                throw new RuntimeException("Error listando eventos", e2);
             }
         }
+        Set<String> audience = keys;
+        Set<String> directIds = direct;
+        String bucketSchool = schoolId;
+        List<EventDto> events = bucket.entries().stream()
+                .filter(e -> type == null || type.isBlank() || type.equals(e.getType()))
+                .filter(e -> audience == null
+                        || directIds.contains(e.getId())
+                        || buildAudienceKeys(null, e.getAudienceGroupIds()).stream().anyMatch(audience::contains))
+                .map(e -> toDto(e, bucketSchool))
+                .collect(Collectors.toList());
+        String variant = (schoolId == null || schoolId.isBlank() ? "global" : schoolId)
+                + "|" + bucket.version()
+                + "|" + (bucket.updatedAt() == null ? "" : bucket.updatedAt().toEpochMilli())
+                + "|" + (type == null ? "" : type)
+                + "|" + (audience == null ? "*" : new java.util.TreeSet<>(audience).toString());
+        String etag = "\"" + bucket.month() + "-" + shortHash(variant) + "\"";
+        return new MonthView(bucket.month(), etag, events);
     }
 
     public void delete(String eventId, CurrentUser user) {
@@ -164,9 +216,15 @@ public class EventService {
             var tenantSnap = tenantRef.get().get();
             if (tenantSnap.exists()) {
                 tenantRef.delete().get();
+                calendarService.onEventDeleted(ev);
+                reminderService.onEventDeleted(ev);
+                feedService.bumpVersion(schoolId);
             } else if (docSnapshot != null) {
                 // fallback: borrar donde realmente está si vino del collectionGroup
                 docSnapshot.getReference().delete().get();
+                calendarService.onEventDeleted(ev);
+                reminderService.onEventDeleted(ev);
+                feedService.bumpVersion(schoolId);
             } else {
                 throw new org.springframework.web.server.ResponseStatusException(HttpStatus.NOT_FOUND, "Evento no encontrado");
             }
@@ -182,16 +240,90 @@ public class EventService {
         return role.equals("GUARDIAN") || role.equals("STUDENT");
     }
 
-    private boolean isAudience(String email, List<String> groupIds, EventDto ev) {
-        if (email == null || email.isBlank()) return false;
-        if (ev.audienceUserIds() != null && ev.audienceUserIds().contains(email)) return true;
-        if (ev.audienceGroupIds() != null && !ev.audienceGroupIds().isEmpty()) {
-            for (String gid : ev.audienceGroupIds()) {
-                if (groupIds.contains(gid)) return true;
+    /**
+     * Eventos visibles para apoderados/alumnos: consulta directa por audienceKeys (array-contains-any)
+     * sobre la identidad del usuario y sus grupos, de modo que cada página sale completa.
+     */
+    private List<EventDto> listForAudience(CurrentUser user, String fromIso, String toIso, String type, int page, int size) {
+        if (user.email() == null || user.email().isBlank()) return List.of();
+        String schoolId = user.schoolId() == null || user.schoolId().isBlank() ? "global" : user.schoolId();
+        feedService.ensureAudienceKeys(schoolId);
+        List<String> keys = new ArrayList<>();
+        keys.add(userKey(user.email()));
+        groupService.findGroupSetForMember(user.email(), user.schoolId()).forEach(gid -> keys.add(groupKey(gid)));
+
+        Query base = tenantEvents(schoolId);
+        if (type != null && !type.isBlank()) {
+            base = base.whereEqualTo("type", type);
+        }
+        Instant from = parseInstant(fromIso).orElse(null);
+        Instant to = parseInstant(toIso).orElse(null);
+        if (from != null) {
+            base = base.whereGreaterThanOrEqualTo("startDateTime", from);
+        }
+        if (to != null) {
+            base = base.whereLessThanOrEqualTo("startDateTime", to);
+        }
+        int offset = (page - 1) * size;
+        try {
+            if (keys.size() <= MAX_ANY_VALUES) {
+                return toDtos(base.whereArrayContainsAny("audienceKeys", keys)
+                        .orderBy("startDateTime", Query.Direction.ASCENDING)
+                        .offset(offset)
+                        .limit(size)
+                        .get()
+                        .get()
+                        .getDocuments());
             }
+            // Más claves que el máximo de array-contains-any: se consulta por tramos y se mezcla en orden
+            Map<String, EventDto> merged = new LinkedHashMap<>();
+            for (int i = 0; i < keys.size(); i += MAX_ANY_VALUES) {
+                List<String> chunk = keys.subList(i, Math.min(keys.size(), i + MAX_ANY_VALUES));
+                for (EventDto ev : toDtos(base.whereArrayContainsAny("audienceKeys", chunk)
+                        .orderBy("startDateTime", Query.Direction.ASCENDING)
+                        .limit(offset + size)
+                        .get()
+                        .get()
+                        .getDocuments())) {
+                    merged.putIfAbsent(ev.id(), ev);
+                }
+            }
+            return merged.values().stream()
+                    .sorted(Comparator.comparing(EventDto::startDateTime, Comparator.nullsLast(Comparator.naturalOrder())))
+                    .skip(offset)
+                    .limit(size)
+                    .collect(Collectors.toList());
+        } catch (InterruptedException | ExecutionException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Error listando eventos", e);
         }
-        // si no hay audiencia definida, no lo mostramos
-        return false;
+    }
+
+    static List<String> buildAudienceKeys(List<String> userIds, List<String> groupIds) {
+        List<String> keys = new ArrayList<>();
+        if (userIds != null) {
+            userIds.stream().filter(u -> u != null && !u.isBlank()).map(EventService::userKey).forEach(keys::add);
+        }
+        if (groupIds != null) {
+            groupIds.stream().filter(g -> g != null && !g.isBlank()).map(EventService::groupKey).forEach(keys::add);
+        }
+        return keys.stream().distinct().collect(Collectors.toList());
+    }
+
+    static String userKey(String email) {
+        return "u:" + email.trim().toLowerCase();
+    }
+
+    static String groupKey(String groupId) {
+        return "g:" + groupId.trim();
+    }
+
+    private List<EventDto> toDtos(List<QueryDocumentSnapshot> docs) {
+        return docs.stream().map(doc -> {
+            EventDocument ev = doc.toObject(EventDocument.class);
+            ev.setId(doc.getId());
+            return toDto(ev);
+        }).collect(Collectors.toList());
     }
 
     public EventDto create(EventRequest request, CurrentUser user) {
@@ -233,6 +365,7 @@ public class EventService {
         List<String> audGroups = request.audience() != null ? request.audience().groupIds() : null;
         ev.setAudienceUserIds(normalizeList(audUsers));
         ev.setAudienceGroupIds(normalizeList(audGroups));
+        ev.setAudienceKeys(buildAudienceKeys(ev.getAudienceUserIds(), ev.getAudienceGroupIds()));
 
         if ((ev.getAudienceUserIds() == null || ev.getAudienceUserIds().isEmpty()) &&
                 (ev.getAudienceGroupIds() == null || ev.getAudienceGroupIds().isEmpty())) {
@@ -242,6 +375,9 @@ public class EventService {
         try {
             DocumentReference ref = tenantEvents(schoolId).document(ev.getId());
             ref.set(ev).get();
+            calendarService.onEventSaved(ev);
+            reminderService.onEventSaved(ev);
+            feedService.bumpVersion(schoolId);
             return toDto(ev);
         } catch (InterruptedException | ExecutionException e) {
             Thread.currentThread().interrupt();
@@ -284,8 +420,38 @@ public class EventService {
         );
     }
 
+    /** Vista de mes: la proyección del bucket no trae descripción, autor ni destinatarios directos. */
+    private EventDto toDto(CalendarEntry entry, String schoolId) {
+        return new EventDto(
+                entry.getId(),
+                entry.getTitle(),
+                null,
+                entry.getStartDateTime(),
+                entry.getEndDateTime(),
+                entry.getType(),
+                schoolId == null || schoolId.isBlank() ? "global" : schoolId,
+                null,
+                null,
+                null,
+                null,
+                entry.getAudienceGroupIds()
+        );
+    }
+
     private com.google.cloud.firestore.CollectionReference tenantEvents(String tenantId) {
         String safeTenant = tenantId == null || tenantId.isBlank() ? "global" : tenantId;
         return firestore.collection("tenants").document(safeTenant).collection("events");
     }
+
+    private String shortHash(String value) {
+        try {
+            byte[] digest = java.security.MessageDigest.getInstance("SHA-256").digest(value.getBytes(java.nio.charset.StandardCharsets.UTF_8));
+            return java.util.HexFormat.of().formatHex(digest, 0, 12);
+        } catch (java.security.NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 no disponible", e);
+        }
+    }
+
+    public record MonthView(String month, String etag, List<EventDto> events) {
+    }
 }
@@ -0,0 +1,94 @@
+package com.notiflow.service;
+
+import com.google.auth.oauth2.AccessToken;
+import com.google.auth.oauth2.GoogleCredentials;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Token OAuth de las credenciales por defecto (ADC) para llamar APIs de Google Cloud.
+ * Las credenciales se cargan una sola vez y el token se renueva en segundo plano antes de expirar,
+ * así las peticiones no pagan el viaje al servidor de metadatos/OAuth.
+ */
+@Service
+public class GoogleAccessTokenProvider {
+
+    private static final Logger log = LoggerFactory.getLogger(GoogleAccessTokenProvider.class);
+    private static final List<String> SCOPES = List.of("https://www.googleapis.com/auth/cloud-platform");
+    private static final Duration REFRESH_MARGIN = Duration.ofMinutes(5);
+    private static final Duration MIN_VALIDITY = Duration.ofMinutes(1);
+    private static final Duration DEFAULT_LIFETIME = Duration.ofMinutes(55);
+
+    private final ScheduledExecutorService refresher = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "google-token-refresh");
+        t.setDaemon(true);
+        return t;
+    });
+    private GoogleCredentials credentials;
+    private volatile AccessToken token;
+    private ScheduledFuture<?> scheduledRefresh;
+
+    @PreDestroy
+    void shutdown() {
+        refresher.shutdownNow();
+    }
+
+    public String getToken() throws IOException {
+        AccessToken current = token;
+        if (isValid(current)) {
+            return current.getTokenValue();
+        }
+        return refresh(false).getTokenValue();
+    }
+
+    private synchronized AccessToken refresh(boolean force) throws IOException {
+        AccessToken current = token;
+        if (!force && isValid(current)) {
+            return current;
+        }
+        if (credentials == null) {
+            credentials = GoogleCredentials.getApplicationDefault().createScoped(SCOPES);
+        }
+        AccessToken fresh = credentials.refreshAccessToken();
+        token = fresh;
+        scheduleNext(fresh);
+        return fresh;
+    }
+
+    private void scheduleNext(AccessToken fresh) {
+        if (scheduledRefresh != null) {
+            scheduledRefresh.cancel(false);
+        }
+        Instant expiresAt = expiration(fresh);
+        long delay = Math.max(30_000, Duration.between(Instant.now(), expiresAt.minus(REFRESH_MARGIN)).toMillis());
+        scheduledRefresh = refresher.schedule(() -> {
+            try {
+                refresh(true);
+            } catch (Exception e) {
+                // el token vigente sigue sirviendo; la próxima petición reintenta si expira
+                log.warn("No se pudo renovar token de Google en segundo plano: {}", e.getMessage());
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    private boolean isValid(AccessToken candidate) {
+        return candidate != null && expiration(candidate).isAfter(Instant.now().plus(MIN_VALIDITY));
+    }
+
+    private Instant expiration(AccessToken candidate) {
+        return candidate.getExpirationTime() != null
+                ? candidate.getExpirationTime().toInstant()
+                : Instant.now().plus(DEFAULT_LIFETIME);
+    }
+}
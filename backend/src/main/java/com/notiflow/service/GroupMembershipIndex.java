@@ -0,0 +1,288 @@
+package com.notiflow.service;
+
+import com.google.cloud.firestore.DocumentReference;
+import com.google.cloud.firestore.FieldValue;
+import com.google.cloud.firestore.Firestore;
+import com.google.cloud.firestore.QueryDocumentSnapshot;
+import com.google.cloud.firestore.SetOptions;
+import com.google.cloud.firestore.WriteBatch;
+import com.notiflow.model.GroupDocument;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.time.Instant;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.stream.Collectors;
+
+/**
+ * Índice inverso miembro → grupos por colegio (tenants/{schoolId}/memberGroups/{miembro}).
+ * Se mantiene en cada alta/edición/borrado/importación de grupos y se cachea completo por colegio,
+ * de modo que resolver los grupos de un miembro no requiere consultas. Al vencer el TTL se sigue sirviendo
+ * el índice anterior mientras se recarga en segundo plano, con una sola carga en curso por colegio.
+ */
+@Service
+public class GroupMembershipIndex {
+
+    private static final Logger log = LoggerFactory.getLogger(GroupMembershipIndex.class);
+    private static final int MAX_BATCH_WRITES = 500;
+
+    private final Firestore firestore;
+    private final long ttlSeconds;
+    private final Map<String, TenantIndex> tenants = new ConcurrentHashMap<>();
+    // carga en curso por colegio (single-flight)
+    private final Map<String, CompletableFuture<TenantIndex>> inFlight = new ConcurrentHashMap<>();
+    private final ExecutorService refresher = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "member-index-refresh");
+        t.setDaemon(true);
+        return t;
+    });
+
+    public GroupMembershipIndex(Firestore firestore, @Value("${app.groups.member-index-ttl-seconds:300}") long ttlSeconds) {
+        this.firestore = firestore;
+        this.ttlSeconds = ttlSeconds;
+    }
+
+    @PreDestroy
+    void shutdown() {
+        refresher.shutdownNow();
+    }
+
+    public Set<String> groupsFor(String schoolId, String member) {
+        String key = normalize(member);
+        if (key == null) return Set.of();
+        return load(safeTenant(schoolId)).members().getOrDefault(key, Set.of());
+    }
+
+    /**
+     * Aplica el diff de miembros de un grupo al índice (alta: before vacío; borrado: after vacío).
+     */
+    public void onGroupWritten(String schoolId, String groupId, Collection<String> before, Collection<String> after) {
+        if (groupId == null || groupId.isBlank()) return;
+        String tenant = safeTenant(schoolId);
+        Set<String> previous = normalizeAll(before);
+        Set<String> current = normalizeAll(after);
+        Set<String> added = new HashSet<>(current);
+        added.removeAll(previous);
+        Set<String> removed = new HashSet<>(previous);
+        removed.removeAll(current);
+        if (added.isEmpty() && removed.isEmpty()) return;
+        try {
+            WriteBatch batch = firestore.batch();
+            int pending = 0;
+            for (String member : added) {
+                batch.set(memberRef(tenant, member), Map.of(
+                        "memberId", member,
+                        "groupIds", FieldValue.arrayUnion(groupId)
+                ), SetOptions.merge());
+                if (++pending == MAX_BATCH_WRITES) {
+                    batch.commit().get();
+                    batch = firestore.batch();
+                    pending = 0;
+                }
+            }
+            for (String member : removed) {
+                batch.set(memberRef(tenant, member), Map.of("groupIds", FieldValue.arrayRemove(groupId)), SetOptions.merge());
+                if (++pending == MAX_BATCH_WRITES) {
+                    batch.commit().get();
+                    batch = firestore.batch();
+                    pending = 0;
+                }
+            }
+            if (pending > 0) {
+                batch.commit().get();
+            }
+        } catch (InterruptedException | ExecutionException e) {
+            Thread.currentThread().interrupt();
+            // el índice persistido quedó a medias: forzar reconstrucción en la próxima carga
+            markStale(tenant);
+            throw new RuntimeException("Error actualizando índice de grupos", e);
+        }
+        TenantIndex cached = tenants.get(tenant);
+        if (cached != null) {
+            added.forEach(member -> cached.members().compute(member, (k, groups) -> with(groups, groupId)));
+            removed.forEach(member -> cached.members().computeIfPresent(member, (k, groups) -> without(groups, groupId)));
+        }
+    }
+
+    public void onGroupDeleted(String schoolId, String groupId, Collection<String> members) {
+        onGroupWritten(schoolId, groupId, members, List.of());
+    }
+
+    private TenantIndex load(String tenant) {
+        TenantIndex cached = tenants.get(tenant);
+        if (cached == null) {
+            return loadShared(tenant);
+        }
+        if (cached.expiresAt().isBefore(Instant.now()) && !inFlight.containsKey(tenant)) {
+            refresher.execute(() -> {
+                try {
+                    loadShared(tenant);
+                } catch (RuntimeException e) {
+                    log.warn("No se pudo refrescar índice de grupos de {}: {}", tenant, e.getMessage());
+                }
+            });
+        }
+        return cached;
+    }
+
+    /** Una sola lectura de memberGroups por colegio a la vez; las peticiones concurrentes esperan su resultado. */
+    private TenantIndex loadShared(String tenant) {
+        CompletableFuture<TenantIndex> created = new CompletableFuture<>();
+        CompletableFuture<TenantIndex> existing = inFlight.putIfAbsent(tenant, created);
+        if (existing != null) {
+            try {
+                return existing.get();
+            } catch (InterruptedException | ExecutionException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException("Error cargando índice de grupos", e);
+            }
+        }
+        try {
+            TenantIndex loaded = fetch(tenant);
+            created.complete(loaded);
+            return loaded;
+        } catch (RuntimeException e) {
+            created.completeExceptionally(e);
+            throw e;
+        } finally {
+            inFlight.remove(tenant, created);
+        }
+    }
+
+    private TenantIndex fetch(String tenant) {
+        try {
+            DocumentReference meta = metaRef(tenant);
+            if (!Boolean.TRUE.equals(meta.get().get().getBoolean("built"))) {
+                rebuild(tenant);
+            }
+            Map<String, Set<String>> members = new ConcurrentHashMap<>();
+            for (QueryDocumentSnapshot doc : memberGroups(tenant).get().get().getDocuments()) {
+                Object raw = doc.get("groupIds");
+                if (raw instanceof List<?> list && !list.isEmpty()) {
+                    members.put(doc.getId(), list.stream()
+                            .filter(Objects::nonNull)
+                            .map(Object::toString)
+                            .collect(Collectors.toUnmodifiableSet()));
+                }
+            }
+            TenantIndex loaded = new TenantIndex(members, Instant.now().plusSeconds(ttlSeconds));
+            tenants.put(tenant, loaded);
+            return loaded;
+        } catch (InterruptedException | ExecutionException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Error cargando índice de grupos", e);
+        }
+    }
+
+    /**
+     * Construcción inicial (o tras un fallo) a partir de los grupos del colegio.
+     */
+    private void rebuild(String tenant) throws ExecutionException, InterruptedException {
+        Map<String, Set<String>> members = new HashMap<>();
+        for (QueryDocumentSnapshot doc : firestore.collection("tenants").document(tenant).collection("groups").get().get().getDocuments()) {
+            GroupDocument g = doc.toObject(GroupDocument.class);
+            if (g == null || g.getMemberIds() == null) continue;
+            for (String member : normalizeAll(g.getMemberIds())) {
+                members.computeIfAbsent(member, k -> new HashSet<>()).add(doc.getId());
+            }
+        }
+        // limpiar entradas previas para no arrastrar grupos ya inexistentes
+        WriteBatch batch = firestore.batch();
+        int pending = 0;
+        for (QueryDocumentSnapshot doc : memberGroups(tenant).get().get().getDocuments()) {
+            if (members.containsKey(doc.getId())) continue;
+            batch.delete(doc.getReference());
+            if (++pending == MAX_BATCH_WRITES) {
+                batch.commit().get();
+                batch = firestore.batch();
+                pending = 0;
+            }
+        }
+        for (Map.Entry<String, Set<String>> entry : members.entrySet()) {
+            batch.set(memberRef(tenant, entry.getKey()), Map.of(
+                    "memberId", entry.getKey(),
+                    "groupIds", List.copyOf(entry.getValue())
+            ));
+            if (++pending == MAX_BATCH_WRITES) {
+                batch.commit().get();
+                batch = firestore.batch();
+                pending = 0;
+            }
+        }
+        if (pending > 0) {
+            batch.commit().get();
+        }
+        metaRef(tenant).set(Map.of("built", true, "builtAt", Instant.now().toString())).get();
+        log.info("Índice miembro→grupos reconstruido para {} ({} miembros)", tenant, members.size());
+    }
+
+    private void markStale(String tenant) {
+        tenants.remove(tenant);
+        try {
+            metaRef(tenant).set(Map.of("built", false)).get();
+        } catch (InterruptedException | ExecutionException e) {
+            Thread.currentThread().interrupt();
+            log.warn("No se pudo marcar índice de grupos para reconstrucción en {}: {}", tenant, e.getMessage());
+        }
+    }
+
+    private static Set<String> with(Set<String> groups, String groupId) {
+        Set<String> next = new HashSet<>(groups == null ? Set.of() : groups);
+        next.add(groupId);
+        return Set.copyOf(next);
+    }
+
+    private static Set<String> without(Set<String> groups, String groupId) {
+        Set<String> next = new HashSet<>(groups);
+        next.remove(groupId);
+        return next.isEmpty() ? null : Set.copyOf(next);
+    }
+
+    private Set<String> normalizeAll(Collection<String> values) {
+        if (values == null) return Set.of();
+        return values.stream()
+                .map(this::normalize)
+                .filter(Objects::nonNull)
+                .collect(Collectors.toSet());
+    }
+
+    private String normalize(String member) {
+        if (member == null) return null;
+        String trimmed = member.trim().toLowerCase();
+        // los IDs de documento no admiten "/"
+        return trimmed.isBlank() || trimmed.contains("/") ? null : trimmed;
+    }
+
+    private String safeTenant(String tenantId) {
+        return tenantId == null || tenantId.isBlank() ? "global" : tenantId;
+    }
+
+    private DocumentReference memberRef(String tenant, String member) {
+        return memberGroups(tenant).document(member);
+    }
+
+    private DocumentReference metaRef(String tenant) {
+        return firestore.collection("tenants").document(tenant).collection("meta").document("memberGroups");
+    }
+
+    private com.google.cloud.firestore.CollectionReference memberGroups(String tenant) {
+        return firestore.collection("tenants").document(tenant).collection("memberGroups");
+    }
+
+    private record TenantIndex(Map<String, Set<String>> members, Instant expiresAt) {
+    }
+}
@@ -32,26 +32,31 @@ public class GroupService {
     private final Firestore firestore;
     private final StudentService studentService;
     private final UserService userService;
+    private final GroupMembershipIndex membershipIndex;
     private static final int MAX_SEARCH_SCAN = 5000;
     public static final String SYSTEM_ALL_STUDENTS = "ALL_STUDENTS";
     public static final String SYSTEM_ALL_COMMUNITY = "ALL_COMMUNITY";
 
-    public GroupService(Firestore firestore, StudentService studentService, UserService userService) {
+    public GroupService(Firestore firestore, StudentService studentService, UserService userService, GroupMembershipIndex membershipIndex) {
         this.firestore = firestore;
         this.studentService = studentService;
         this.userService = userService;
+        this.membershipIndex = membershipIndex;
     }
 
     public List<String> findGroupsForMember(String email, String schoolId) {
-        if (email == null || email.isBlank()) return List.of();
+        return List.copyOf(findGroupSetForMember(email, schoolId));
+    }
+
+    /**
+     * Grupos del miembro desde el índice inverso en memoria (sin consulta ni tope de resultados).
+     */
+    public Set<String> findGroupSetForMember(String email, String schoolId) {
+        if (email == null || email.isBlank()) return Set.of();
         try {
-            var query = firestore.collectionGroup("groups")
-                    .whereEqualTo("schoolId", schoolId)
-                    .whereArrayContains("memberIds", email);
-            ApiFuture<QuerySnapshot> future = query.limit(50).get();
-            return future.get().getDocuments().stream().map(QueryDocumentSnapshot::getId).collect(Collectors.toList());
+            return membershipIndex.groupsFor(schoolId, email);
         } catch (Exception e) {
-            return List.of();
+            return Set.of();
         }
     }
 
@@ -191,6 +196,7 @@ public class GroupService {
 
             DocumentReference ref = tenantGroups(schoolId).document(g.getId());
             ref.set(g).get();
+            membershipIndex.onGroupWritten(schoolId, g.getId(), List.of(), g.getMemberIds());
 
             return new GroupDto(g.getId(), g.getName(), g.getDescription(), g.getMemberIds(), g.getSchoolId(), g.getYear(), g.getCreatedAt(), g.getSystem(), g.getSystemType());
         } catch (InterruptedException | ExecutionException e) {
@@ -226,6 +232,7 @@ public class GroupService {
                 throw new IllegalArgumentException("Grupo inválido");
             }
             String originalSchoolId = existing.getSchoolId();
+            List<String> previousMembers = existing.getMemberIds() == null ? List.of() : List.copyOf(existing.getMemberIds());
             if (!isGlobalAdmin && originalSchoolId != null && !originalSchoolId.equalsIgnoreCase(schoolId)) {
                 throw new IllegalArgumentException("No puedes editar grupos de otro colegio");
             }
@@ -247,8 +254,11 @@ public class GroupService {
             if (originalSchoolId != null && !originalSchoolId.equalsIgnoreCase(targetSchoolId)) {
                 tenantGroups(targetSchoolId).document(id).set(existing).get();
                 ref.delete().get();
+                membershipIndex.onGroupDeleted(originalSchoolId, id, previousMembers);
+                membershipIndex.onGroupWritten(targetSchoolId, id, List.of(), existing.getMemberIds());
             } else {
                 ref.set(existing).get();
+                membershipIndex.onGroupWritten(targetSchoolId, id, previousMembers, existing.getMemberIds());
             }
             return new GroupDto(existing.getId(), existing.getName(), existing.getDescription(), existing.getMemberIds(), existing.getSchoolId(), existing.getYear(), existing.getCreatedAt(), existing.getSystem(), existing.getSystemType());
         } catch (InterruptedException | ExecutionException e) {
@@ -289,6 +299,7 @@ public class GroupService {
                 throw new IllegalArgumentException("No puedes borrar grupos de otro colegio");
             }
             ref.delete().get();
+            membershipIndex.onGroupDeleted(existing.getSchoolId() != null ? existing.getSchoolId() : schoolId, ref.getId(), existing.getMemberIds());
         } catch (InterruptedException | ExecutionException e) {
             Thread.currentThread().interrupt();
             throw new RuntimeException("Error eliminando grupo", e);
@@ -368,6 +379,7 @@ public class GroupService {
             var snap = ref.get().get();
             GroupDocument g = snap.exists() ? snap.toObject(GroupDocument.class) : new GroupDocument();
             if (g == null) g = new GroupDocument();
+            List<String> previousMembers = g.getMemberIds() == null ? List.of() : List.copyOf(g.getMemberIds());
             g.setId(id);
             g.setName(name);
             g.setDescription(description);
@@ -386,6 +398,7 @@ public class GroupService {
             g.setSystem(true);
             g.setSystemType(systemType);
             ref.set(g).get();
+            membershipIndex.onGroupWritten(schoolId, id, previousMembers, g.getMemberIds());
             return new GroupDto(g.getId(), g.getName(), g.getDescription(), g.getMemberIds(), g.getSchoolId(), g.getYear(), g.getCreatedAt(), g.getSystem(), g.getSystemType());
         } catch (InterruptedException | ExecutionException e) {
             Thread.currentThread().interrupt();
@@ -7,7 +7,6 @@ import com.google.cloud.firestore.AggregateQuery;
 import com.google.cloud.firestore.AggregateQuerySnapshot;
 import com.google.cloud.firestore.QueryDocumentSnapshot;
 import com.google.cloud.firestore.QuerySnapshot;
-import com.google.cloud.storage.BlobInfo;
 import com.google.cloud.storage.Storage;
 import com.notiflow.dto.AttachmentRequest;
 import com.notiflow.dto.GuardianContact;
@@ -23,12 +22,11 @@ import com.notiflow.model.MessageStatus;
 import com.notiflow.model.StudentDocument;
 import com.notiflow.service.SchoolService;
 import com.notiflow.util.CurrentUser;
+import com.notiflow.util.MergeTemplate;
 import com.notiflow.model.UserDocument;
 import com.notiflow.model.UserRole;
 import org.springframework.stereotype.Service;
 import org.springframework.web.server.ResponseStatusException;
-import com.google.auth.oauth2.GoogleCredentials;
-import com.google.auth.oauth2.ServiceAccountCredentials;
 
 import java.time.Instant;
 import java.time.Year;
@@ -37,7 +35,7 @@ import java.util.Objects;
 import java.util.UUID;
 import java.util.concurrent.ExecutionException;
 import java.util.stream.Collectors;
-import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Map;
@@ -46,7 +44,6 @@ import java.nio.charset.StandardCharsets;
 @Service
 public class MessageService {
 
-    private static final int MAX_ATTACHMENT_BYTES = 10 * 1024 * 1024; // 10MB
     private static final int MAX_SEARCH_SCAN = 5000;
     private final Firestore firestore;
     private final EmailService emailService;
@@ -59,10 +56,15 @@ public class MessageService {
     private final StudentService studentService;
     private final UserService userService;
     private final String trackingBaseUrl;
-    private final String fcmServerKey;
-    private final String fcmCredentialsJson;
-    private final String fcmProjectId;
-    private GoogleCredentials fcmCredentials;
+    private final PushService pushService;
+    private final VertexAiService vertexAiService;
+    private final TemplateService templateService;
+    private final AttachmentUploadService attachmentUploadService;
+    private final boolean moderateScheduled;
+    // adjuntos grandes en envíos masivos viajan como enlace de descarga en vez de incrustados
+    private final long linkMinBytes;
+    private final int linkMinRecipients;
+    private final byte[] linkSecret;
 
     public MessageService(
             Firestore firestore,
@@ -74,11 +76,16 @@ public class MessageService {
             GroupService groupService,
             StudentService studentService,
             UserService userService,
+            PushService pushService,
+            VertexAiService vertexAiService,
+            TemplateService templateService,
+            AttachmentUploadService attachmentUploadService,
             @org.springframework.beans.factory.annotation.Value("${app.tracking-base-url:https://api.notiflow.app}") String trackingBaseUrl,
             @org.springframework.beans.factory.annotation.Value("${ATTACHMENTS_BUCKET:}") String attachmentsBucket,
-            @org.springframework.beans.factory.annotation.Value("${app.fcm.server-key:}") String fcmServerKey,
-            @org.springframework.beans.factory.annotation.Value("${app.fcm.credentials-json:}") String fcmCredentialsJson,
-            @org.springframework.beans.factory.annotation.Value("${app.fcm.project-id:}") String fcmProjectId
+            @org.springframework.beans.factory.annotation.Value("${app.ai.moderate-scheduled:true}") boolean moderateScheduled,
+            @org.springframework.beans.factory.annotation.Value("${app.attachments.link-min-bytes:1048576}") long linkMinBytes,
+            @org.springframework.beans.factory.annotation.Value("${app.attachments.link-min-recipients:20}") int linkMinRecipients,
+            @org.springframework.beans.factory.annotation.Value("${app.attachments.link-secret:change-me-dev-link-secret}") String linkSecret
     ) {
         this.firestore = firestore;
         this.emailService = emailService;
@@ -90,10 +97,14 @@ public class MessageService {
         this.studentService = studentService;
         this.userService = userService;
         this.trackingBaseUrl = trackingBaseUrl != null && !trackingBaseUrl.isBlank() ? trackingBaseUrl : "https://api.notiflow.app";
-        this.fcmServerKey = fcmServerKey;
-        this.fcmCredentialsJson = fcmCredentialsJson;
-        this.fcmProjectId = fcmProjectId;
-        this.fcmCredentials = parseCredentials(fcmCredentialsJson);
+        this.pushService = pushService;
+        this.vertexAiService = vertexAiService;
+        this.templateService = templateService;
+        this.attachmentUploadService = attachmentUploadService;
+        this.moderateScheduled = moderateScheduled;
+        this.linkMinBytes = linkMinBytes;
+        this.linkMinRecipients = linkMinRecipients;
+        this.linkSecret = linkSecret.getBytes(StandardCharsets.UTF_8);
         this.teacherPermissionService = teacherPermissionService;
     }
 
@@ -152,20 +163,16 @@ public class MessageService {
         if (hasSearch) {
             ApiFuture<QuerySnapshot> future = sorted.limit(MAX_SEARCH_SCAN).get();
             List<QueryDocumentSnapshot> docs = future.get().getDocuments();
-            List<MessageDto> filtered = docs.stream()
-                    .map(doc -> {
-                        MessageDocument msg = doc.toObject(MessageDocument.class);
-                        if (msg == null) return null;
-                        msg.setId(doc.getId());
-                        return toDto(msg, current);
-                    })
+            // se filtra sobre el documento y solo se arma el DTO (nombres, directorio, URLs) de la página pedida
+            List<MessageDocument> filtered = docs.stream()
+                    .map(this::toMessage)
                     .filter(Objects::nonNull)
-                    .filter(dto -> matchesQuery(dto, normalized))
+                    .filter(msg -> matchesQuery(msg, normalized))
                     .collect(Collectors.toList());
             boolean reachedLimit = docs.size() == MAX_SEARCH_SCAN;
             int from = Math.min((safePage - 1) * safeSize, filtered.size());
             int to = Math.min(from + safeSize, filtered.size());
-            List<MessageDto> pageItems = filtered.subList(from, to);
+            List<MessageDto> pageItems = toDtos(filtered.subList(from, to), current);
             boolean hasMore = reachedLimit || to < filtered.size();
             long total = filtered.size() + (reachedLimit ? 1 : 0);
             return new MessageListResponse(pageItems, total, safePage, safeSize, hasMore);
@@ -176,26 +183,28 @@ public class MessageService {
                     .limit(safeSize)
                     .get();
             List<QueryDocumentSnapshot> docs = query.get().getDocuments();
-            List<MessageDto> items = docs.stream()
-                    .map(doc -> {
-                        MessageDocument msg = doc.toObject(MessageDocument.class);
-                        if (msg == null) return null;
-                        msg.setId(doc.getId());
-                        return toDto(msg, current);
-                    })
+            List<MessageDto> items = toDtos(docs.stream()
+                    .map(this::toMessage)
                     .filter(Objects::nonNull)
-                    .collect(Collectors.toList());
+                    .collect(Collectors.toList()), current);
             boolean hasMore = (long) safePage * safeSize < total;
             return new MessageListResponse(items, total, safePage, safeSize, hasMore);
         }
     }
 
-    private boolean matchesQuery(MessageDto dto, String q) {
-        String content = dto.content() == null ? "" : dto.content().toLowerCase();
-        String senderName = dto.senderName() == null ? "" : dto.senderName().toLowerCase();
-        String senderEmail = dto.senderEmail() == null ? "" : dto.senderEmail().toLowerCase();
-        String reason = dto.reason() == null ? "" : dto.reason().toLowerCase();
-        String recipients = dto.recipients() == null ? "" : String.join(",", dto.recipients()).toLowerCase();
+    private MessageDocument toMessage(QueryDocumentSnapshot doc) {
+        MessageDocument msg = doc.toObject(MessageDocument.class);
+        if (msg == null) return null;
+        msg.setId(doc.getId());
+        return msg;
+    }
+
+    private boolean matchesQuery(MessageDocument msg, String q) {
+        String content = msg.getContent() == null ? "" : msg.getContent().toLowerCase();
+        String senderName = msg.getSenderName() == null ? "" : msg.getSenderName().toLowerCase();
+        String senderEmail = msg.getSenderEmail() == null ? "" : msg.getSenderEmail().toLowerCase();
+        String reason = msg.getReason() == null ? "" : msg.getReason().toLowerCase();
+        String recipients = msg.getRecipients() == null ? "" : String.join(",", msg.getRecipients().stream().filter(Objects::nonNull).toList()).toLowerCase();
         return content.contains(q) || senderName.contains(q) || senderEmail.contains(q) || recipients.contains(q) || reason.contains(q);
     }
 
@@ -228,7 +237,11 @@ public class MessageService {
             if (ref == null) {
                 throw new ResponseStatusException(org.springframework.http.HttpStatus.NOT_FOUND, "Mensaje no encontrado");
             }
+            MessageDocument msg = ref.get().get().toObject(MessageDocument.class);
             ref.delete().get();
+            if (msg != null && msg.getAttachments() != null) {
+                releaseAttachments(msg.getSchoolId(), msg.getAttachments());
+            }
         } catch (InterruptedException | ExecutionException e) {
             Thread.currentThread().interrupt();
             throw new RuntimeException("Error eliminando mensaje", e);
@@ -255,7 +268,7 @@ public class MessageService {
 
             // Restricción por profesor: solo grupos permitidos
             if (current != null && "teacher".equalsIgnoreCase(current.role())) {
-                List<String> allowed = teacherPermissionService.getAllowedGroups(schoolId, senderId);
+                java.util.Set<String> allowed = teacherPermissionService.getAllowedGroupSet(schoolId, senderId);
                 if (!groupIds.isEmpty()) {
                     if (allowed.isEmpty()) {
                         throw new ResponseStatusException(org.springframework.http.HttpStatus.FORBIDDEN, "No tienes permisos de envío a grupos");
@@ -266,7 +279,7 @@ public class MessageService {
                     }
                 } else {
                     // Envío directo (sin grupos): solo a usuarios de plataforma (no estudiantes)
-                    validateTeacherDirectRecipients(request.recipients());
+                    validateTeacherDirectRecipients(request.recipients(), schoolId);
                 }
             }
 
@@ -327,6 +340,7 @@ public class MessageService {
             msg.setChannels(channels);
             msg.setSchoolId(schoolId);
             msg.setReason(request.reason());
+            msg.setTemplateId(request.templateId());
             msg.setYear(resolvedYear);
             msg.setGroupIds(groupIds);
             if (!broadcast && (groupIds.contains(allStudentsGroupId) || groupIds.contains(allCommunityGroupId))) {
@@ -366,9 +380,9 @@ public class MessageService {
             List<AttachmentRequest> attachments = request.attachments() == null
                     ? List.of()
                     : request.attachments().stream().filter(Objects::nonNull).toList();
-            validateAttachments(attachments);
+            List<PreparedAttachment> prepared = prepareAttachments(attachments, schoolId);
 
-            List<AttachmentMetadata> storedAttachments = storeAttachments(msg.getId(), schoolId, resolvedYear, attachments);
+            List<AttachmentMetadata> storedAttachments = storeAttachments(msg.getId(), schoolId, resolvedYear, prepared);
             msg.setAttachments(storedAttachments);
 
             Instant now = Instant.now();
@@ -380,9 +394,9 @@ public class MessageService {
             String schoolName = null;
             try {
                 if (schoolId != null && !schoolId.isBlank()) {
-                    var school = schoolService.getById(schoolId);
-                    schoolLogo = school != null ? school.getLogoUrl() : null;
-                    schoolName = school != null ? school.getName() : null;
+                    var school = schoolService.branding(schoolId);
+                    schoolLogo = school.emailLogoUrl();
+                    schoolName = school.name();
                 }
             } catch (Exception ignore) {
                 // si falla no bloqueamos el envío
@@ -399,12 +413,21 @@ public class MessageService {
                     msg.setAppStatus(MessageStatus.PENDING);
                 }
                 DocumentReference ref = tenantMessages(schoolId).document(msg.getId());
-                ref.set(msg).get();
+                try {
+                    ref.set(msg).get();
+                } catch (InterruptedException | ExecutionException e) {
+                    // el programado no quedó guardado: nadie más referencia sus adjuntos
+                    releaseAttachments(schoolId, storedAttachments);
+                    throw e;
+                }
                 return toDto(msg, CurrentUser.fromContext().orElse(null));
             }
 
-            // Envío inmediato
-            deliverNow(msg, attachments, channels, schoolLogo, schoolName, schoolId);
+            // Envío inmediato: los adjuntos base64 ya están decodificados; los subidos se leen una vez del bucket
+            List<EmailService.Attachment> mailAttachments = channels.contains("email")
+                    ? preparedMailAttachments(prepared, emailRecipientCount(msg.getRecipients()))
+                    : List.of();
+            deliverNow(msg, mailAttachments, channels, schoolLogo, schoolName, schoolId);
             return toDto(msg, CurrentUser.fromContext().orElse(null));
         } catch (InterruptedException | ExecutionException e) {
             Thread.currentThread().interrupt();
@@ -448,21 +471,37 @@ public class MessageService {
         return null;
     }
 
-    private void validateAttachments(List<AttachmentRequest> attachments) {
-        for (AttachmentRequest att : attachments) {
-            if (att.base64() == null || att.base64().isBlank()) {
-                throw new ResponseStatusException(org.springframework.http.HttpStatus.BAD_REQUEST, "El adjunto no contiene datos");
-            }
-            byte[] data;
-            try {
-                data = java.util.Base64.getDecoder().decode(att.base64());
-            } catch (IllegalArgumentException ex) {
-                throw new ResponseStatusException(org.springframework.http.HttpStatus.BAD_REQUEST, "Adjunto inválido (base64)");
-            }
-            if (data.length > MAX_ATTACHMENT_BYTES) {
-                throw new ResponseStatusException(org.springframework.http.HttpStatus.BAD_REQUEST, "Adjunto excede el límite de 10MB: " + att.fileName());
-            }
+    /**
+     * Valida los adjuntos antes de guardar nada. Los subidos con POST /attachments solo se verifican por
+     * metadatos; los base64 (clientes antiguos) se decodifican una única vez y se reutilizan al guardar y enviar.
+     */
+    private List<PreparedAttachment> prepareAttachments(List<AttachmentRequest> attachments, String schoolId) {
+        List<Supplier<PreparedAttachment>> tasks = attachments.stream()
+                .map(att -> (Supplier<PreparedAttachment>) () -> prepareAttachment(att, schoolId))
+                .toList();
+        return attachmentUploadService.runAll(tasks);
+    }
+
+    private PreparedAttachment prepareAttachment(AttachmentRequest att, String schoolId) {
+        if (att.uploadId() != null && !att.uploadId().isBlank()) {
+            return new PreparedAttachment(att, null, attachmentUploadService.resolve(att.uploadId(), schoolId));
+        }
+        if (att.base64() == null || att.base64().isBlank()) {
+            throw new ResponseStatusException(org.springframework.http.HttpStatus.BAD_REQUEST, "El adjunto no contiene datos");
         }
+        byte[] data;
+        try {
+            data = java.util.Base64.getDecoder().decode(att.base64());
+        } catch (IllegalArgumentException ex) {
+            throw new ResponseStatusException(org.springframework.http.HttpStatus.BAD_REQUEST, "Adjunto inválido (base64)");
+        }
+        if (data.length > AttachmentUploadService.MAX_ATTACHMENT_BYTES) {
+            throw new ResponseStatusException(org.springframework.http.HttpStatus.BAD_REQUEST, "Adjunto excede el límite de 10MB: " + att.fileName());
+        }
+        return new PreparedAttachment(att, data, null);
+    }
+
+    private record PreparedAttachment(AttachmentRequest request, byte[] data, AttachmentMetadata uploaded) {
     }
 
     public int processScheduled() {
@@ -474,19 +513,33 @@ public class MessageService {
                     .get()
                     .get();
             List<QueryDocumentSnapshot> docs = query.getDocuments();
+            Map<String, VertexAiService.ModerationResult> verdicts = moderateDue(docs);
             int processed = 0;
             for (QueryDocumentSnapshot doc : docs) {
                 MessageDocument msg = doc.toObject(MessageDocument.class);
                 if (msg == null) continue;
                 msg.setId(doc.getId());
-                List<AttachmentRequest> attReqs = buildAttachmentsFromMetadata(msg.getAttachments());
+                VertexAiService.ModerationResult verdict = verdicts.get(doc.getReference().getPath());
+                if (verdict != null && !verdict.allowed()) {
+                    // se retiene como borrador con los motivos, para que el autor lo revise
+                    doc.getReference().update(
+                            "status", MessageStatus.DRAFT,
+                            "moderationReasons", verdict.reasons()
+                    ).get();
+                    org.slf4j.LoggerFactory.getLogger(MessageService.class)
+                            .info("Mensaje programado {} retenido por moderación: {}", doc.getId(), verdict.reasons());
+                    continue;
+                }
+                List<EmailService.Attachment> attReqs = msg.getChannels() != null && msg.getChannels().contains("email")
+                        ? mailAttachments(msg.getAttachments(), emailRecipientCount(msg.getRecipients()))
+                        : List.of();
                 String schoolLogo = null;
                 String schoolName = null;
                 try {
                     if (msg.getSchoolId() != null && !msg.getSchoolId().isBlank()) {
-                        var school = schoolService.getById(msg.getSchoolId());
-                        schoolLogo = school != null ? school.getLogoUrl() : null;
-                        schoolName = school != null ? school.getName() : null;
+                        var school = schoolService.branding(msg.getSchoolId());
+                        schoolLogo = school.emailLogoUrl();
+                        schoolName = school.name();
                     }
                 } catch (Exception ignore) {}
                 deliverNow(msg, attReqs, msg.getChannels(), schoolLogo, schoolName, msg.getSchoolId());
@@ -499,42 +552,104 @@ public class MessageService {
         }
     }
 
-    private List<AttachmentRequest> buildAttachmentsFromMetadata(List<AttachmentMetadata> metadataList) {
+    /**
+     * Modera en lote los programados vencidos, agrupados por colegio (una pasada por colegio).
+     * Si la IA no está disponible se entregan igual: la moderación previa al envío es una ayuda, no un bloqueo.
+     */
+    private Map<String, VertexAiService.ModerationResult> moderateDue(List<QueryDocumentSnapshot> docs) {
+        Map<String, VertexAiService.ModerationResult> verdicts = new HashMap<>();
+        if (!moderateScheduled || docs.isEmpty()) {
+            return verdicts;
+        }
+        Map<String, List<QueryDocumentSnapshot>> bySchool = new HashMap<>();
+        for (QueryDocumentSnapshot doc : docs) {
+            String schoolId = doc.getString("schoolId");
+            bySchool.computeIfAbsent(schoolId == null || schoolId.isBlank() ? "global" : schoolId, k -> new ArrayList<>()).add(doc);
+        }
+        bySchool.forEach((schoolId, schoolDocs) -> {
+            List<String> texts = schoolDocs.stream()
+                    .map(doc -> {
+                        String reason = doc.getString("reason");
+                        String content = doc.getString("content");
+                        return (reason == null ? "" : reason + "\n\n") + (content == null ? "" : content);
+                    })
+                    .toList();
+            try {
+                List<VertexAiService.ModerationResult> results = vertexAiService.moderateBatch(texts, schoolId);
+                for (int i = 0; i < schoolDocs.size(); i++) {
+                    verdicts.put(schoolDocs.get(i).getReference().getPath(), results.get(i));
+                }
+            } catch (RuntimeException e) {
+                org.slf4j.LoggerFactory.getLogger(MessageService.class)
+                        .warn("No se pudo moderar programados de {}, se envían sin moderar: {}", schoolId, e.getMessage());
+            }
+        });
+        return verdicts;
+    }
+
+    /**
+     * Adjuntos guardados de un mensaje, leídos del bucket una vez por envío (no por destinatario).
+     * Los que irán como enlace no se leen.
+     */
+    private List<EmailService.Attachment> mailAttachments(List<AttachmentMetadata> metadataList, int recipients) {
         if (metadataList == null || metadataList.isEmpty() || attachmentsBucket == null || attachmentsBucket.isBlank()) {
             return List.of();
         }
-        return metadataList.stream()
-                .map(meta -> {
-                    if (meta.getObjectPath() == null) return null;
-                    try {
-                        var blob = storage.get(com.google.cloud.storage.BlobId.of(attachmentsBucket, meta.getObjectPath()));
-                        if (blob == null) return null;
-                        byte[] data = blob.getContent();
-                        String base64 = java.util.Base64.getEncoder().encodeToString(data);
-                        return new AttachmentRequest(
-                                meta.getFileName(),
-                                meta.getMimeType(),
-                                base64,
-                                meta.getInline(),
-                                meta.getCid()
-                        );
-                    } catch (Exception e) {
-                        org.slf4j.LoggerFactory.getLogger(MessageService.class)
-                                .warn("No se pudo reconstruir adjunto {}: {}", meta.getFileName(), e.getMessage());
-                        return null;
-                    }
+        List<Supplier<EmailService.Attachment>> reads = metadataList.stream()
+                .filter(meta -> !sendAsLink(meta.getInline(), meta.getSizeBytes(), recipients))
+                .map(meta -> (Supplier<EmailService.Attachment>) () -> readAttachment(meta))
+                .toList();
+        return attachmentUploadService.runAll(reads).stream()
+                .filter(Objects::nonNull)
+                .toList();
+    }
+
+    /** Adjuntos de un envío inmediato: los base64 ya decodificados se usan tal cual; los subidos se leen del bucket. */
+    private List<EmailService.Attachment> preparedMailAttachments(List<PreparedAttachment> prepared, int recipients) {
+        List<Supplier<EmailService.Attachment>> reads = prepared.stream()
+                .filter(p -> !sendAsLink(p.request().inline(), p.uploaded() != null ? p.uploaded().getSizeBytes() : Long.valueOf(p.data().length), recipients))
+                .map(p -> (Supplier<EmailService.Attachment>) () -> {
+                    if (p.uploaded() != null) return readAttachment(p.uploaded());
+                    AttachmentRequest att = p.request();
+                    return new EmailService.Attachment(att.fileName(), att.mimeType(), p.data(), att.inline(), att.cid());
                 })
+                .toList();
+        return attachmentUploadService.runAll(reads).stream()
                 .filter(Objects::nonNull)
                 .toList();
     }
 
-    private void deliverNow(MessageDocument msg, List<AttachmentRequest> attachments, List<String> channels, String schoolLogo, String schoolName, String schoolId) {
+    private EmailService.Attachment readAttachment(AttachmentMetadata meta) {
+        if (meta.getObjectPath() == null) return null;
+        try {
+            var blob = storage.get(com.google.cloud.storage.BlobId.of(attachmentsBucket, meta.getObjectPath()));
+            if (blob == null) return null;
+            return new EmailService.Attachment(
+                    meta.getFileName(),
+                    meta.getMimeType(),
+                    blob.getContent(),
+                    meta.getInline(),
+                    meta.getCid()
+            );
+        } catch (Exception e) {
+            org.slf4j.LoggerFactory.getLogger(MessageService.class)
+                    .warn("No se pudo reconstruir adjunto {}: {}", meta.getFileName(), e.getMessage());
+            return null;
+        }
+    }
+
+    private void deliverNow(MessageDocument msg, List<EmailService.Attachment> attachments, List<String> channels, String schoolLogo, String schoolName, String schoolId) {
         boolean mailOk = true;
         MessageStatus emailStatus = null;
         MessageStatus appStatus = null;
         Map<String, MessageStatus> perRecipientEmail = msg.getEmailStatuses() != null ? new HashMap<>(msg.getEmailStatuses()) : new HashMap<>();
 
-        String textBody = msg.getContent();
+        // el contenido se analiza una vez por envío; por destinatario solo se concatena
+        MergeTemplate body = templateService.compiledFor(msg.getTemplateId(), msg.getContent());
+        MergeTemplate reason = MergeTemplate.compile(msg.getReason());
+        MergeTemplate.Context shared = new MergeTemplate.Context(null, null, null, null, schoolName);
+        StringBuilder scratch = new StringBuilder();
+        String renderedReason = reason.render(shared);
         String subject = (schoolName != null && !schoolName.isBlank()
                 ? schoolName
                 : "Notiflow") + " - Nuevo mensaje de " + (msg.getSenderName() != null ? msg.getSenderName() : "Usuario");
@@ -548,14 +663,42 @@ public class MessageService {
                 org.slf4j.LoggerFactory.getLogger(MessageService.class)
                         .warn("No se encontraron correos válidos en recipients");
             }
+            Map<String, MergeTemplate.Context> contexts = body.hasFields() || reason.hasFields()
+                    ? mergeContexts(emails, msg.getRecipientNames(), schoolName, schoolId, body, reason)
+                    : Map.of();
+            List<Integer> linked = linkedAttachments(msg.getAttachments(), emails.size());
+            if (!linked.isEmpty()) {
+                org.slf4j.LoggerFactory.getLogger(MessageService.class)
+                        .info("Mensaje {}: {} adjunto(s) enviados como enlace a {} destinatarios", msg.getId(), linked.size(), emails.size());
+            }
             for (String to : emails) {
+                MergeTemplate.Context ctx = contexts.getOrDefault(to.trim().toLowerCase(), shared);
+                String textBody = body.hasFields() ? body.render(ctx, scratch).toString() : msg.getContent();
+                String linksHtml = "";
+                String plainBody = textBody;
+                if (!linked.isEmpty()) {
+                    StringBuilder html = new StringBuilder();
+                    StringBuilder text = new StringBuilder(textBody == null ? "" : textBody).append("\n\nAdjuntos para descargar:");
+                    for (Integer index : linked) {
+                        AttachmentMetadata meta = msg.getAttachments().get(index);
+                        String url = buildAttachmentUrl(msg.getId(), index, to);
+                        String label = meta.getFileName() + " (" + formatSize(meta.getSizeBytes()) + ")";
+                        html.append("<li style=\"margin:4px 0;\"><a href=\"").append(url)
+                                .append("\" target=\"_blank\" rel=\"noopener noreferrer\" style=\"color:#0ea5e9;\">")
+                                .append(escapeHtml(label)).append("</a></li>");
+                        text.append("\n- ").append(label).append(": ").append(url);
+                    }
+                    linksHtml = "<p style=\"margin-top:16px;\"><strong>Adjuntos para descargar</strong></p><ul style=\"padding-left:18px;\">" + html + "</ul>";
+                    plainBody = text.toString();
+                }
                 // usa el correo como "nombre" del destinatario para el chip Para
                 String htmlBody = buildHtmlBody(
-                        msg.getContent(),
+                        textBody,
                         msg.getSenderName(),
                         msg.getSenderEmail(),
-                        msg.getReason(),
+                        reason.hasFields() ? reason.render(ctx, scratch).toString() : msg.getReason(),
                         attachments,
+                        linksHtml,
                         schoolLogo,
                         schoolName,
                         to
@@ -565,7 +708,7 @@ public class MessageService {
                         to,
                         subject,
                         htmlWithTracking,
-                        textBody,
+                        plainBody,
                         attachments
                 );
                 String key = to == null ? "" : to.trim().toLowerCase();
@@ -605,7 +748,7 @@ public class MessageService {
                     ? List.of()
                     : deviceTokenService.tokensForRecipients(studentRecipients, schoolId);
             if (!tokens.isEmpty()) {
-                sendPushNotifications(tokens, subject, msg.getReason(), msg.getId(), schoolId);
+                pushService.send(tokens, subject, renderedReason, "messageId", msg.getId(), schoolId);
                 if (msg.getAppStatuses() != null && !msg.getAppStatuses().isEmpty()) {
                     Map<String, MessageStatus> updated = new HashMap<>(msg.getAppStatuses());
                     for (String key : updated.keySet()) {
@@ -659,6 +802,150 @@ public class MessageService {
         return false;
     }
 
+    /**
+     * Datos de combinación por destinatario. El directorio de estudiantes se consulta en lote y solo si la
+     * plantilla usa campos de alumno, curso o apoderado.
+     */
+    private Map<String, MergeTemplate.Context> mergeContexts(
+            List<String> emails,
+            Map<String, String> recipientNames,
+            String schoolName,
+            String schoolId,
+            MergeTemplate... templates
+    ) {
+        Map<String, List<StudentDocument>> directory = needsDirectory(templates)
+                ? studentService.findAllByEmails(schoolId, emails)
+                : Map.of();
+        return mergeContexts(emails, recipientNames, schoolName, directory);
+    }
+
+    private Map<String, MergeTemplate.Context> mergeContexts(
+            List<String> emails,
+            Map<String, String> recipientNames,
+            String schoolName,
+            Map<String, List<StudentDocument>> directory
+    ) {
+        Map<String, String> names = recipientNames != null ? recipientNames : Map.of();
+        Map<String, MergeTemplate.Context> contexts = new HashMap<>();
+        for (String raw : emails) {
+            String email = raw.trim().toLowerCase();
+            if (contexts.containsKey(email)) continue;
+            String guardian = null;
+            List<String> studentNames = new ArrayList<>();
+            java.util.Set<String> courses = new java.util.LinkedHashSet<>();
+            for (StudentDocument s : directory.getOrDefault(email, List.of())) {
+                String studentName = (safe(s.getFirstName()) + " " + safe(s.getLastNameFather())).trim();
+                if (!studentName.isBlank()) studentNames.add(studentName);
+                if (s.getCourse() != null && !s.getCourse().isBlank()) courses.add(s.getCourse().trim());
+                if (guardian == null && s.getGuardians() != null) {
+                    // si escribe el propio estudiante, el apoderado es el primero registrado
+                    boolean own = email.equalsIgnoreCase(safe(s.getEmail()).trim());
+                    for (GuardianContact g : s.getGuardians()) {
+                        if (g == null || g.getName() == null || g.getName().isBlank()) continue;
+                        if (own || email.equalsIgnoreCase(safe(g.getEmail()).trim())) {
+                            guardian = g.getName().trim();
+                            break;
+                        }
+                    }
+                }
+            }
+            String nombre = names.get(email);
+            contexts.put(email, new MergeTemplate.Context(
+                    nombre != null && !nombre.isBlank() ? nombre : guardian,
+                    guardian,
+                    joinNames(studentNames),
+                    courses.isEmpty() ? null : String.join(", ", courses),
+                    schoolName
+            ));
+        }
+        return contexts;
+    }
+
+    private boolean needsDirectory(MergeTemplate... templates) {
+        return java.util.Arrays.stream(templates).anyMatch(t ->
+                t.uses(MergeTemplate.Field.ALUMNO) || t.uses(MergeTemplate.Field.CURSO) || t.uses(MergeTemplate.Field.APODERADO));
+    }
+
+    /**
+     * Destinatario con cuyos datos ve el lector un mensaje en la app: él mismo si es destinatario (ve lo mismo
+     * que en su correo) o, para quien lo envió, el único destinatario. Con varios destinatarios, null.
+     */
+    private String readerSubject(MessageDocument msg, CurrentUser user) {
+        List<String> recipients = msg.getRecipients() != null ? msg.getRecipients() : List.of();
+        String readerEmail = user != null && user.email() != null ? user.email().trim().toLowerCase() : null;
+        if (readerEmail != null && recipients.stream().anyMatch(r -> r != null && r.trim().equalsIgnoreCase(readerEmail))) {
+            return readerEmail;
+        }
+        if (recipients.size() == 1 && recipients.get(0) != null && !recipients.get(0).isBlank()) {
+            return recipients.get(0).trim().toLowerCase();
+        }
+        return null;
+    }
+
+    /**
+     * Directorio de estudiantes (colegio -> correo -> estudiantes) de los lectores de una página de mensajes,
+     * solo para los mensajes cuya plantilla usa alumno, curso o apoderado: una consulta en lote por colegio.
+     */
+    private Map<String, Map<String, List<StudentDocument>>> readerDirectory(List<MessageDocument> messages, CurrentUser user) {
+        Map<String, java.util.Set<String>> subjectsBySchool = new HashMap<>();
+        for (MessageDocument msg : messages) {
+            String subject = readerSubject(msg, user);
+            if (subject == null) continue;
+            MergeTemplate body = templateService.compiledFor(msg.getTemplateId(), msg.getContent());
+            if (!needsDirectory(body, MergeTemplate.compile(msg.getReason()))) continue;
+            subjectsBySchool.computeIfAbsent(directoryKey(msg.getSchoolId()), k -> new java.util.HashSet<>()).add(subject);
+        }
+        Map<String, Map<String, List<StudentDocument>>> directory = new HashMap<>();
+        subjectsBySchool.forEach((school, emails) ->
+                directory.put(school, studentService.findAllByEmails(school.isEmpty() ? null : school, emails)));
+        return directory;
+    }
+
+    private String directoryKey(String schoolId) {
+        return schoolId == null ? "" : schoolId;
+    }
+
+    private List<MessageDto> toDtos(List<MessageDocument> messages, CurrentUser user) {
+        Map<String, Map<String, List<StudentDocument>>> directory = readerDirectory(messages, user);
+        return messages.stream()
+                .map(msg -> toDto(msg, user, directory, false))
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * Datos con que se muestra un mensaje en la app (ver {@link #readerSubject}). Con varios destinatarios el
+     * remitente ve los valores por defecto. El directorio llega ya resuelto para toda la página.
+     */
+    private MergeTemplate.Context readerContext(
+            MessageDocument msg,
+            CurrentUser user,
+            Map<String, String> recipientNames,
+            Map<String, Map<String, List<StudentDocument>>> directory,
+            MergeTemplate... templates
+    ) {
+        String readerEmail = user != null && user.email() != null ? user.email().trim().toLowerCase() : null;
+        String schoolName = user != null && Objects.equals(user.schoolId(), msg.getSchoolId()) ? user.schoolName() : null;
+        String subject = readerSubject(msg, user);
+        if (subject == null) {
+            return new MergeTemplate.Context(null, null, null, null, schoolName);
+        }
+        Map<String, String> names = new HashMap<>(recipientNames != null ? recipientNames : Map.of());
+        if (subject.equals(readerEmail) && user.name() != null && !user.name().isBlank()) {
+            names.putIfAbsent(subject, user.name());
+        }
+        Map<String, List<StudentDocument>> students = needsDirectory(templates)
+                ? directory.getOrDefault(directoryKey(msg.getSchoolId()), Map.of())
+                : Map.of();
+        return mergeContexts(List.of(subject), names, schoolName, students)
+                .getOrDefault(subject, MergeTemplate.Context.EMPTY);
+    }
+
+    private String joinNames(List<String> names) {
+        if (names.isEmpty()) return null;
+        if (names.size() == 1) return names.get(0);
+        return String.join(", ", names.subList(0, names.size() - 1)) + " y " + names.get(names.size() - 1);
+    }
+
     private Map<String, String> resolveRecipientNames(List<String> recipients) {
         Map<String, String> result = new HashMap<>();
         if (recipients == null || recipients.isEmpty()) return result;
@@ -757,6 +1044,19 @@ public class MessageService {
     }
 
     private MessageDto toDto(MessageDocument msg, CurrentUser user) {
+        return toDto(msg, user, readerDirectory(List.of(msg), user), true);
+    }
+
+    /**
+     * {@code detail}: vista de un solo mensaje, con URLs firmadas para todos sus adjuntos. En listados solo se
+     * firman las imágenes inline (se muestran en la vista previa); el resto se firma al abrir el detalle.
+     */
+    private MessageDto toDto(
+            MessageDocument msg,
+            CurrentUser user,
+            Map<String, Map<String, List<StudentDocument>>> readerDirectory,
+            boolean detail
+    ) {
         boolean deletable = canDelete(user, msg);
         Map<String, String> recipientNames = msg.getRecipientNames();
         List<RecipientDetail> recipientDetails = msg.getRecipientsDetails();
@@ -779,9 +1079,14 @@ public class MessageService {
             }
             emailStatuses = fallback;
         }
+        MergeTemplate body = templateService.compiledFor(msg.getTemplateId(), msg.getContent());
+        MergeTemplate reason = MergeTemplate.compile(msg.getReason());
+        MergeTemplate.Context reader = body.hasFields() || reason.hasFields()
+                ? readerContext(msg, user, recipientNames, readerDirectory, body, reason)
+                : MergeTemplate.Context.EMPTY;
         return new MessageDto(
                 msg.getId(),
-                msg.getContent(),
+                body.render(reader),
                 msg.getSenderName(),
                 msg.getSenderEmail(),
                 msg.getRecipients(),
@@ -799,40 +1104,117 @@ public class MessageService {
                 msg.getStatus(),
                 msg.getScheduledAt(),
                 msg.getCreatedAt(),
-                msg.getAttachments(),
-                msg.getReason(),
+                withDownloadUrls(msg.getAttachments(), detail),
+                reason.render(reader),
                 deletable,
-                msg.getBroadcast()
+                msg.getBroadcast(),
+                msg.getModerationReasons(),
+                msg.getAttachmentDownloads()
         );
     }
     
-    private List<AttachmentMetadata> storeAttachments(String messageId, String schoolId, String year, List<AttachmentRequest> attachments) {
+    /**
+     * Guarda los adjuntos en paralelo (acotado) y suma una referencia por cada contenido usado.
+     * No se firman URLs aquí: se generan al leer el mensaje (ver {@link #withDownloadUrls}).
+     */
+    private List<AttachmentMetadata> storeAttachments(String messageId, String schoolId, String year, List<PreparedAttachment> attachments) {
         if (attachments == null || attachments.isEmpty() || attachmentsBucket == null || attachmentsBucket.isBlank()) {
             return List.of();
         }
-        return attachments.stream().map(att -> {
-            if (att.base64() == null || att.fileName() == null) return null;
-            byte[] data = java.util.Base64.getDecoder().decode(att.base64());
-            String cleanName = att.fileName().replaceAll("[^a-zA-Z0-9._-]", "_");
-            String key = String.format("messages/%s/%s/%s", schoolId != null ? schoolId : "global", messageId, cleanName);
-            BlobInfo blobInfo = BlobInfo.newBuilder(attachmentsBucket, key)
-                    .setContentType(att.mimeType() != null ? att.mimeType() : "application/octet-stream")
-                    .build();
-            storage.create(blobInfo, data);
-            java.net.URL signed = storage.signUrl(blobInfo, 30, TimeUnit.DAYS);
-            return new AttachmentMetadata(
+        List<Supplier<AttachmentMetadata>> tasks = attachments.stream()
+                .map(prepared -> (Supplier<AttachmentMetadata>) () -> storeAttachment(schoolId, prepared))
+                .toList();
+        List<AttachmentMetadata> stored = attachmentUploadService.runAll(tasks).stream()
+                .filter(Objects::nonNull)
+                .toList();
+        // las referencias se suman solo con todos los adjuntos guardados; si alguna falla se deshacen las demás
+        List<Supplier<RuntimeException>> retains = stored.stream()
+                .map(meta -> (Supplier<RuntimeException>) () -> {
+                    try {
+                        attachmentUploadService.retain(schoolId, meta);
+                        return null;
+                    } catch (RuntimeException e) {
+                        return e;
+                    }
+                })
+                .toList();
+        List<RuntimeException> failures = attachmentUploadService.runAll(retains);
+        RuntimeException failure = failures.stream().filter(Objects::nonNull).findFirst().orElse(null);
+        if (failure != null) {
+            releaseAttachments(schoolId, java.util.stream.IntStream.range(0, stored.size())
+                    .filter(i -> failures.get(i) == null)
+                    .mapToObj(stored::get)
+                    .toList());
+            throw failure;
+        }
+        return stored;
+    }
+
+    private void releaseAttachments(String schoolId, List<AttachmentMetadata> attachments) {
+        for (AttachmentMetadata meta : attachments) {
+            if (meta != null && meta.getSha256() != null) {
+                attachmentUploadService.release(schoolId, meta.getSha256());
+            }
+        }
+    }
+
+    private AttachmentMetadata storeAttachment(String schoolId, PreparedAttachment prepared) {
+        AttachmentRequest att = prepared.request();
+        AttachmentMetadata meta;
+        if (prepared.uploaded() != null) {
+            // ya está en el bucket
+            meta = prepared.uploaded();
+            meta.setInline(att.inline());
+            meta.setCid(att.cid());
+            if (att.fileName() != null && !att.fileName().isBlank()) meta.setFileName(att.fileName());
+        } else {
+            if (prepared.data() == null || att.fileName() == null) return null;
+            byte[] data = prepared.data();
+            // mismo contenido, mismo objeto: si el colegio ya lo tiene no se vuelve a subir
+            String digest = attachmentUploadService.storeBytes(schoolId, data, att.mimeType());
+            meta = new AttachmentMetadata(
                     att.fileName(),
                     att.mimeType(),
                     (long) data.length,
-                    signed != null ? signed.toString() : null,
+                    null,
                     att.inline(),
                     att.cid(),
-                    key
+                    attachmentUploadService.objectPath(schoolId, digest)
+            );
+            meta.setSha256(digest);
+        }
+        return meta;
+    }
+
+    /**
+     * Copias de los adjuntos con URL de descarga vigente. Los mensajes antiguos guardaban una URL firmada
+     * a 30 días que ya puede haber vencido; se reemplaza siempre que haya ruta de objeto.
+     * Cada firma es una llamada a IAM (signBlob), así que con {@code all} en false solo se firman las
+     * imágenes inline y el resto conserva la URL guardada (null en mensajes nuevos).
+     */
+    private List<AttachmentMetadata> withDownloadUrls(List<AttachmentMetadata> attachments, boolean all) {
+        if (attachments == null || attachments.isEmpty()) {
+            return attachments;
+        }
+        return attachments.stream().map(meta -> {
+            boolean sign = all || (Boolean.TRUE.equals(meta.getInline())
+                    && meta.getMimeType() != null && meta.getMimeType().startsWith("image/"));
+            String url = sign ? attachmentUploadService.downloadUrl(meta.getObjectPath()) : null;
+            AttachmentMetadata copy = new AttachmentMetadata(
+                    meta.getFileName(),
+                    meta.getMimeType(),
+                    meta.getSizeBytes(),
+                    url != null ? url : meta.getDownloadUrl(),
+                    meta.getInline(),
+                    meta.getCid(),
+                    meta.getObjectPath()
             );
-        }).filter(Objects::nonNull).toList();
+            copy.setSha256(meta.getSha256());
+            return copy;
+        }).toList();
     }
 
-    private void validateTeacherDirectRecipients(List<String> recipients) {
+    private void validateTeacherDirectRecipients(List<String> recipients, String schoolId) {
         if (recipients == null || recipients.isEmpty()) {
             throw new ResponseStatusException(org.springframework.http.HttpStatus.BAD_REQUEST, "No hay destinatarios");
         }
@@ -846,9 +1228,12 @@ public class MessageService {
         if (normalized.isEmpty()) {
             throw new ResponseStatusException(org.springframework.http.HttpStatus.BAD_REQUEST, "No hay destinatarios válidos");
         }
-        Map<String, UserRole> roles = fetchUserRoles(normalized);
+        // Directorio del colegio en memoria; solo los correos que no estén ahí se consultan a Firestore
+        Map<String, UserRole> directory = userService.roleDirectory(schoolId);
+        List<String> unknown = normalized.stream().filter(e -> !directory.containsKey(e)).distinct().toList();
+        Map<String, UserRole> others = unknown.isEmpty() ? Map.of() : fetchUserRoles(unknown);
         for (String email : normalized) {
-            UserRole role = roles.get(email);
+            UserRole role = directory.containsKey(email) ? directory.get(email) : others.get(email);
             if (role == null) {
                 throw new ResponseStatusException(org.springframework.http.HttpStatus.FORBIDDEN, "Solo puedes enviar directo a usuarios de la plataforma (admin/coordinador/profesor)");
             }
@@ -884,136 +1269,6 @@ public class MessageService {
         }
     }
 
-    private void sendPushNotifications(List<String> tokens, String title, String body, String messageId, String schoolId) {
-        if (fcmCredentials != null) {
-            sendPushV1(tokens, title, body, messageId, schoolId);
-        } else if (fcmServerKey != null && !fcmServerKey.isBlank()) {
-            sendPushLegacy(tokens, title, body, messageId, schoolId);
-        }
-    }
-
-    private void sendPushLegacy(List<String> tokens, String title, String body, String messageId, String schoolId) {
-        try {
-            java.net.URL url = new java.net.URL("https://fcm.googleapis.com/fcm/send");
-            java.net.HttpURLConnection conn = (java.net.HttpURLConnection) url.openConnection();
-            conn.setRequestMethod("POST");
-            conn.setRequestProperty("Authorization", "key=" + fcmServerKey);
-            conn.setRequestProperty("Content-Type", "application/json; UTF-8");
-            conn.setDoOutput(true);
-            String payload = """
-                    {
-                      "registration_ids": %s,
-                      "notification": {
-                        "title": "%s",
-                        "body": "%s"
-                      },
-                      "data": {
-                        "messageId": "%s",
-                        "schoolId": "%s"
-                      }
-                    }
-                    """.formatted(
-                    new com.fasterxml.jackson.databind.ObjectMapper().writeValueAsString(tokens),
-                    title.replace("\"", "'"),
-                    body != null ? body.replace("\"", "'") : "",
-                    messageId,
-                    schoolId != null ? schoolId : "global"
-            );
-            try (java.io.OutputStream os = conn.getOutputStream()) {
-                byte[] input = payload.getBytes(java.nio.charset.StandardCharsets.UTF_8);
-                os.write(input, 0, input.length);
-            }
-            conn.getResponseCode(); // dispara la llamada
-        } catch (Exception e) {
-            org.slf4j.LoggerFactory.getLogger(MessageService.class)
-                    .warn("No se pudo enviar push FCM (legacy): {}", e.getMessage());
-        }
-    }
-
-    private void sendPushV1(List<String> tokens, String title, String body, String messageId, String schoolId) {
-        try {
-            if (fcmCredentials == null) return;
-            String project = resolveFcmProjectId();
-            if (project == null || project.isBlank()) {
-                org.slf4j.LoggerFactory.getLogger(MessageService.class)
-                        .warn("No se pudo resolver projectId para FCM v1");
-                return;
-            }
-            String urlBase = "https://fcm.googleapis.com/v1/projects/" + project + "/messages:send";
-            String bearer = getAccessToken();
-            for (String token : tokens) {
-                if (token == null || token.isBlank()) continue;
-                java.net.URL url = new java.net.URL(urlBase);
-                java.net.HttpURLConnection conn = (java.net.HttpURLConnection) url.openConnection();
-                conn.setRequestMethod("POST");
-                conn.setRequestProperty("Authorization", "Bearer " + bearer);
-                conn.setRequestProperty("Content-Type", "application/json; UTF-8");
-                conn.setDoOutput(true);
-                String payload = """
-                        {
-                          "message": {
-                            "token": "%s",
-                            "notification": {
-                              "title": "%s",
-                              "body": "%s"
-                            },
-                            "data": {
-                              "messageId": "%s",
-                              "schoolId": "%s"
-                            }
-                          }
-                        }
-                        """.formatted(
-                        token,
-                        title.replace("\"", "'"),
-                        body != null ? body.replace("\"", "'") : "",
-                        messageId,
-                        schoolId != null ? schoolId : "global"
-                );
-                try (java.io.OutputStream os = conn.getOutputStream()) {
-                    byte[] input = payload.getBytes(StandardCharsets.UTF_8);
-                    os.write(input, 0, input.length);
-                }
-                conn.getResponseCode();
-            }
-        } catch (Exception e) {
-            org.slf4j.LoggerFactory.getLogger(MessageService.class)
-                    .warn("No se pudo enviar push FCM v1: {}", e.getMessage());
-        }
-    }
-
-    private GoogleCredentials parseCredentials(String json) {
-        try {
-            if (json == null || json.isBlank()) return null;
-            GoogleCredentials creds = GoogleCredentials.fromStream(
-                    new java.io.ByteArrayInputStream(json.getBytes(StandardCharsets.UTF_8))
-            ).createScoped(List.of("https://www.googleapis.com/auth/cloud-platform"));
-            creds.refreshIfExpired();
-            return creds;
-        } catch (Exception e) {
-            org.slf4j.LoggerFactory.getLogger(MessageService.class)
-                    .warn("No se pudieron leer credenciales FCM v1: {}", e.getMessage());
-            return null;
-        }
-    }
-
-    private String resolveFcmProjectId() {
-        if (fcmProjectId != null && !fcmProjectId.isBlank()) return fcmProjectId;
-        if (fcmCredentials instanceof ServiceAccountCredentials sac && sac.getProjectId() != null) {
-            return sac.getProjectId();
-        }
-        if (firestore != null && firestore.getOptions() != null) {
-            return firestore.getOptions().getProjectId();
-        }
-        return null;
-    }
-
-    private String getAccessToken() throws java.io.IOException {
-        if (fcmCredentials == null) return null;
-        fcmCredentials.refreshIfExpired();
-        return fcmCredentials.getAccessToken().getTokenValue();
-    }
-
     public void markAsRead(String messageId, String readerEmail) {
         try {
             if (readerEmail == null || readerEmail.isBlank()) {
@@ -1097,19 +1352,20 @@ public class MessageService {
         }
     }
 
-    private String buildHtmlBody(String content, String senderName, String senderEmail, String reason, List<AttachmentRequest> attachments, String logoUrl, String schoolName, String recipientName) {
-        List<AttachmentRequest> attList = attachments == null ? java.util.Collections.emptyList() : attachments;
+    private String buildHtmlBody(String content, String senderName, String senderEmail, String reason, List<EmailService.Attachment> attachments, String attachmentLinksHtml, String logoUrl, String schoolName, String recipientName) {
+        List<EmailService.Attachment> attList = attachments == null ? java.util.Collections.emptyList() : attachments;
         String htmlContent = renderContentHtml(content);
         final String notiflowBadge = "https://www.notiflow.cl/Naranjo_Degradado.png";
 
         // Adjunta una imagen inline si existe
-        AttachmentRequest inlineImg = attList.stream()
+        EmailService.Attachment inlineImg = attList.stream()
                 .filter(a -> Boolean.TRUE.equals(a.inline()) && a.cid() != null && a.mimeType() != null && a.mimeType().startsWith("image/"))
                 .findFirst()
                 .orElse(null);
         if (inlineImg != null) {
             htmlContent = htmlContent + "<p style=\"margin-top:12px;\"><img src=\"cid:" + inlineImg.cid() + "\" alt=\"imagen adjunta\" style=\"max-width:100%;\"/></p>";
         }
+        htmlContent = htmlContent + nullSafe(attachmentLinksHtml);
 
         String schoolLogoBlock = (logoUrl != null && !logoUrl.isBlank())
                 ? "<img src=\"" + logoUrl + "\" alt=\"Logo colegio\" style=\"max-height:64px; width:auto; display:block;\" />"
@@ -1233,6 +1489,100 @@ public class MessageService {
         return normalizedBase + "/messages/" + messageId + "/track?recipient=" + safeRecipient;
     }
 
+    /**
+     * Envío como enlace: adjuntos no inline de al menos {@code app.attachments.link-min-bytes} cuando el correo va a
+     * {@code app.attachments.link-min-recipients} o más destinatarios. Requiere bucket para poder servir la descarga.
+     */
+    private boolean sendAsLink(Boolean inline, Long sizeBytes, int recipients) {
+        if (Boolean.TRUE.equals(inline) || sizeBytes == null || attachmentsBucket == null || attachmentsBucket.isBlank()) {
+            return false;
+        }
+        return recipients >= linkMinRecipients && sizeBytes >= linkMinBytes;
+    }
+
+    /** Índices (en msg.attachments) de los adjuntos que van como enlace en este envío. */
+    private List<Integer> linkedAttachments(List<AttachmentMetadata> attachments, int recipients) {
+        if (attachments == null || attachments.isEmpty()) return List.of();
+        List<Integer> linked = new ArrayList<>();
+        for (int i = 0; i < attachments.size(); i++) {
+            AttachmentMetadata meta = attachments.get(i);
+            if (meta != null && meta.getObjectPath() != null && sendAsLink(meta.getInline(), meta.getSizeBytes(), recipients)) {
+                linked.add(i);
+            }
+        }
+        return linked;
+    }
+
+    private int emailRecipientCount(List<String> recipients) {
+        if (recipients == null) return 0;
+        return (int) recipients.stream().filter(r -> r != null && r.contains("@")).count();
+    }
+
+    private String buildAttachmentUrl(String messageId, int index, String recipient) {
+        String normalizedBase = trackingBaseUrl.endsWith("/") ? trackingBaseUrl.substring(0, trackingBaseUrl.length() - 1) : trackingBaseUrl;
+        String normalizedRecipient = recipient.trim().toLowerCase();
+        return normalizedBase + "/messages/" + messageId + "/attachments/" + index
+                + "?recipient=" + java.net.URLEncoder.encode(normalizedRecipient, StandardCharsets.UTF_8)
+                + "&token=" + signAttachmentLink(messageId, index, normalizedRecipient);
+    }
+
+    private String signAttachmentLink(String messageId, int index, String recipient) {
+        try {
+            javax.crypto.Mac mac = javax.crypto.Mac.getInstance("HmacSHA256");
+            mac.init(new javax.crypto.spec.SecretKeySpec(linkSecret, "HmacSHA256"));
+            byte[] raw = mac.doFinal((messageId + "|" + index + "|" + recipient).getBytes(StandardCharsets.UTF_8));
+            return java.util.Base64.getUrlEncoder().withoutPadding().encodeToString(raw);
+        } catch (Exception e) {
+            throw new IllegalStateException("No se pudo firmar enlace de adjunto", e);
+        }
+    }
+
+    /**
+     * Adjunto a descargar desde un enlace del correo. Valida la firma del enlace y registra la descarga por
+     * destinatario (como el píxel de apertura, también marca el correo como leído).
+     */
+    public AttachmentMetadata attachmentForDownload(String messageId, int index, String recipient, String token) {
+        String normalizedRecipient = recipient == null ? "" : recipient.trim().toLowerCase();
+        if (normalizedRecipient.isBlank() || token == null || !java.security.MessageDigest.isEqual(
+                signAttachmentLink(messageId, index, normalizedRecipient).getBytes(StandardCharsets.UTF_8),
+                token.getBytes(StandardCharsets.UTF_8))) {
+            throw new ResponseStatusException(org.springframework.http.HttpStatus.NOT_FOUND, "Adjunto no encontrado");
+        }
+        try {
+            DocumentReference ref = findMessageRef(messageId, null);
+            MessageDocument msg = ref == null ? null : ref.get().get().toObject(MessageDocument.class);
+            if (msg == null || msg.getAttachments() == null || index < 0 || index >= msg.getAttachments().size()
+                    || msg.getAttachments().get(index) == null || msg.getAttachments().get(index).getObjectPath() == null) {
+                throw new ResponseStatusException(org.springframework.http.HttpStatus.NOT_FOUND, "Adjunto no encontrado");
+            }
+            try {
+                ref.update(com.google.cloud.firestore.FieldPath.of("attachmentDownloads", normalizedRecipient),
+                        com.google.cloud.firestore.FieldValue.arrayUnion((long) index)).get();
+                if (msg.getEmailStatuses() == null || msg.getEmailStatuses().get(normalizedRecipient) != MessageStatus.READ) {
+                    markEmailOpened(messageId, normalizedRecipient);
+                }
+            } catch (RuntimeException | ExecutionException e) {
+                // el registro no debe impedir la descarga
+                org.slf4j.LoggerFactory.getLogger(MessageService.class)
+                        .warn("No se pudo registrar descarga de adjunto {} del mensaje {}: {}", index, messageId, e.getMessage());
+            }
+            return msg.getAttachments().get(index);
+        } catch (InterruptedException | ExecutionException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Error obteniendo adjunto", e);
+        }
+    }
+
+    private String formatSize(Long bytes) {
+        if (bytes == null) return "";
+        if (bytes >= 1024 * 1024) return String.format(java.util.Locale.ROOT, "%.1f MB", bytes / (1024.0 * 1024.0));
+        return Math.max(1, bytes / 1024) + " KB";
+    }
+
+    private String escapeHtml(String value) {
+        return nullSafe(value).replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;").replace("\"", "&quot;");
+    }
+
     private String renderContentHtml(String content) {
         String safeContent = content == null ? "" : content;
         String escaped = safeContent
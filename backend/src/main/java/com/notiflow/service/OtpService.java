@@ -1,16 +1,23 @@
 package com.notiflow.service;
 
-import com.google.api.core.ApiFuture;
 import com.google.cloud.firestore.DocumentReference;
+import com.google.cloud.firestore.DocumentSnapshot;
 import com.google.cloud.firestore.Firestore;
-import com.google.cloud.firestore.QueryDocumentSnapshot;
-import com.google.cloud.firestore.QuerySnapshot;
+import com.notiflow.util.TimerWheel;
+import com.notiflow.util.TokenBucket;
+import jakarta.annotation.PreDestroy;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpStatus;
 import org.springframework.stereotype.Service;
+import org.springframework.web.server.ResponseStatusException;
 
 import java.security.SecureRandom;
+import java.time.Duration;
 import java.time.Instant;
-import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
 
 @Service
 public class OtpService {
@@ -19,14 +26,50 @@ public class OtpService {
     private final EmailService emailService;
     private final SecureRandom random = new SecureRandom();
     private static final int TTL_MINUTES = 10;
+    private static final int MAX_ATTEMPTS = 5;
+    private static final Duration BUCKET_SWEEP = Duration.ofMinutes(10);
 
-    public OtpService(Firestore firestore, EmailService emailService) {
+    // Códigos vigentes en memoria; Firestore (loginCodes/{email}) mantiene la verdad entre instancias
+    private final Map<String, OtpEntry> codes = new ConcurrentHashMap<>();
+    private final Map<String, TokenBucket> emailBuckets = new ConcurrentHashMap<>();
+    private final Map<String, TokenBucket> ipBuckets = new ConcurrentHashMap<>();
+    private final TimerWheel expirations = new TimerWheel("otp-expiry", Duration.ofSeconds(1), 1024);
+    private final int emailBurst;
+    private final double emailRefillPerSecond;
+    private final int ipBurst;
+    private final double ipRefillPerSecond;
+
+    public OtpService(
+            Firestore firestore,
+            EmailService emailService,
+            @Value("${app.otp.email-burst:3}") int emailBurst,
+            @Value("${app.otp.email-refill-seconds:60}") int emailRefillSeconds,
+            @Value("${app.otp.ip-burst:20}") int ipBurst,
+            @Value("${app.otp.ip-refill-seconds:6}") int ipRefillSeconds
+    ) {
         this.firestore = firestore;
         this.emailService = emailService;
+        this.emailBurst = emailBurst;
+        this.emailRefillPerSecond = 1d / Math.max(1, emailRefillSeconds);
+        this.ipBurst = ipBurst;
+        this.ipRefillPerSecond = 1d / Math.max(1, ipRefillSeconds);
+        scheduleBucketSweep();
+    }
+
+    @PreDestroy
+    void shutdown() {
+        expirations.close();
     }
 
-    public void requestCode(String email) {
+    public void requestCode(String email, String clientIp) {
         String normalized = email == null ? "" : email.trim().toLowerCase();
+        if (clientIp != null && !clientIp.isBlank()
+                && !ipBuckets.computeIfAbsent(clientIp, k -> new TokenBucket(ipBurst, ipRefillPerSecond)).tryConsume()) {
+            throw new ResponseStatusException(HttpStatus.TOO_MANY_REQUESTS, "Demasiadas solicitudes, intenta más tarde");
+        }
+        if (!emailBuckets.computeIfAbsent(normalized, k -> new TokenBucket(emailBurst, emailRefillPerSecond)).tryConsume()) {
+            throw new ResponseStatusException(HttpStatus.TOO_MANY_REQUESTS, "Ya enviamos un código recientemente, revisa tu correo");
+        }
         String code = String.format("%06d", random.nextInt(1_000_000));
         Instant expires = Instant.now().plusSeconds(TTL_MINUTES * 60L);
         try {
@@ -41,8 +84,9 @@ public class OtpService {
             Thread.currentThread().interrupt();
             throw new RuntimeException("No se pudo generar código", e);
         }
-        // Enviar correo con el código
-        emailService.sendMessageEmail(
+        remember(normalized, new OtpEntry(code, expires, new AtomicInteger(0)));
+        // Enviar correo con el código por el carril prioritario (no bloquea la petición)
+        emailService.enqueuePriority(
                 normalized,
                 "Tu código de acceso a Notiflow",
                 """
@@ -55,39 +99,78 @@ public class OtpService {
                   </div>
                 </div>
                 """.formatted(code, TTL_MINUTES),
-                "Tu código de acceso es: " + code,
-                null
+                "Tu código de acceso es: " + code
         );
     }
 
+    /**
+     * El mapa local solo sirve para rechazar rápido (código mal formado o bloqueado por intentos); un código
+     * se acepta únicamente dentro de una transacción que lee loginCodes/{email}, compara y borra el documento,
+     * de modo que un código ya usado o reemplazado en otra instancia no se puede reutilizar aquí.
+     */
     public boolean verifyCode(String email, String code) {
         String normalized = email == null ? "" : email.trim().toLowerCase();
+        String candidate = code == null ? "" : code.trim();
+        if (!candidate.matches("\\d{6}")) return false;
+        OtpEntry local = codes.get(normalized);
+        if (local != null && local.attempts().get() > MAX_ATTEMPTS && local.expiresAt().isAfter(Instant.now())
+                && !local.code().equals(candidate)) {
+            return false;
+        }
+        DocumentReference ref = firestore.collection("loginCodes").document(normalized);
         try {
-            ApiFuture<QuerySnapshot> query = firestore.collection("loginCodes")
-                    .whereEqualTo("email", normalized)
-                    .limit(1)
-                    .get();
-            List<QueryDocumentSnapshot> docs = query.get().getDocuments();
-            if (docs.isEmpty()) return false;
-            var doc = docs.get(0);
-            String stored = doc.getString("code");
-            String expires = doc.getString("expiresAt");
-            Long attempts = doc.getLong("attempts");
-            if (attempts != null && attempts > 5) return false;
-            if (expires != null && Instant.parse(expires).isBefore(Instant.now())) {
-                firestore.collection("loginCodes").document(doc.getId()).delete();
-                return false;
-            }
-            if (stored != null && stored.equals(code)) {
-                firestore.collection("loginCodes").document(doc.getId()).delete();
-                return true;
+            Verification result = firestore.runTransaction(tx -> {
+                OtpEntry stored = parse(tx.get(ref).get());
+                if (stored == null) return new Verification(false, null);
+                if (stored.expiresAt().isBefore(Instant.now())) {
+                    tx.delete(ref);
+                    return new Verification(false, null);
+                }
+                if (stored.attempts().get() > MAX_ATTEMPTS) return new Verification(false, stored);
+                if (stored.code().equals(candidate)) {
+                    tx.delete(ref);
+                    return new Verification(true, null);
+                }
+                stored.attempts().incrementAndGet();
+                tx.update(ref, "attempts", stored.attempts().get());
+                return new Verification(false, stored);
+            }).get();
+            if (result.current() == null) {
+                codes.remove(normalized);
             } else {
-                firestore.collection("loginCodes").document(doc.getId()).update("attempts", (attempts == null ? 0 : attempts) + 1);
-                return false;
+                remember(normalized, result.current());
             }
+            return result.accepted();
         } catch (InterruptedException | ExecutionException e) {
             Thread.currentThread().interrupt();
             return false;
         }
     }
+
+    private OtpEntry parse(DocumentSnapshot doc) {
+        if (!doc.exists()) return null;
+        String stored = doc.getString("code");
+        String expires = doc.getString("expiresAt");
+        Long attempts = doc.getLong("attempts");
+        if (stored == null || expires == null) return null;
+        return new OtpEntry(stored, Instant.parse(expires), new AtomicInteger(attempts == null ? 0 : attempts.intValue()));
+    }
+
+    private void remember(String email, OtpEntry entry) {
+        codes.put(email, entry);
+        Duration ttl = Duration.between(Instant.now(), entry.expiresAt());
+        expirations.schedule(() -> codes.remove(email, entry), ttl.isNegative() ? Duration.ZERO : ttl);
+    }
+
+    private void scheduleBucketSweep() {
+        expirations.schedule(() -> {
+            emailBuckets.values().removeIf(TokenBucket::isFull);
+            ipBuckets.values().removeIf(TokenBucket::isFull);
+            scheduleBucketSweep();
+        }, BUCKET_SWEEP);
+    }
+
+    private record OtpEntry(String code, Instant expiresAt, AtomicInteger attempts) {}
+
+    private record Verification(boolean accepted, OtpEntry current) {}
 }
@@ -0,0 +1,209 @@
+package com.notiflow.service;
+
+import com.google.auth.oauth2.GoogleCredentials;
+import com.google.auth.oauth2.ServiceAccountCredentials;
+import com.google.cloud.firestore.Firestore;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.nio.charset.StandardCharsets;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+@Service
+public class PushService {
+
+    private final Firestore firestore;
+    private final String fcmServerKey;
+    private final String fcmProjectId;
+    private final GoogleCredentials fcmCredentials;
+
+    public PushService(
+            Firestore firestore,
+            @Value("${app.fcm.server-key:}") String fcmServerKey,
+            @Value("${app.fcm.credentials-json:}") String fcmCredentialsJson,
+            @Value("${app.fcm.project-id:}") String fcmProjectId
+    ) {
+        this.firestore = firestore;
+        this.fcmServerKey = fcmServerKey;
+        this.fcmProjectId = fcmProjectId;
+        this.fcmCredentials = parseCredentials(fcmCredentialsJson);
+    }
+
+    /**
+     * Envía una notificación push a los tokens indicados (FCM v1 si hay credenciales, legacy si hay server key).
+     * dataKey/dataId viajan en el payload "data" para que la app abra el recurso (messageId, eventId...).
+     * Devuelve los tokens que FCM aceptó; los fallos se registran en el log y no se propagan.
+     */
+    public Set<String> send(List<String> tokens, String title, String body, String dataKey, String dataId, String schoolId) {
+        if (tokens == null || tokens.isEmpty()) return Set.of();
+        if (fcmCredentials != null) {
+            return sendPushV1(tokens, title, body, dataKey, dataId, schoolId);
+        } else if (fcmServerKey != null && !fcmServerKey.isBlank()) {
+            return sendPushLegacy(tokens, title, body, dataKey, dataId, schoolId);
+        }
+        return Set.of();
+    }
+
+    public boolean isEnabled() {
+        return fcmCredentials != null || (fcmServerKey != null && !fcmServerKey.isBlank());
+    }
+
+    private Set<String> sendPushLegacy(List<String> tokens, String title, String body, String dataKey, String dataId, String schoolId) {
+        Set<String> delivered = new HashSet<>();
+        try {
+            java.net.URL url = new java.net.URL("https://fcm.googleapis.com/fcm/send");
+            java.net.HttpURLConnection conn = (java.net.HttpURLConnection) url.openConnection();
+            conn.setRequestMethod("POST");
+            conn.setRequestProperty("Authorization", "key=" + fcmServerKey);
+            conn.setRequestProperty("Content-Type", "application/json; UTF-8");
+            conn.setDoOutput(true);
+            String payload = """
+                    {
+                      "registration_ids": %s,
+                      "notification": {
+                        "title": "%s",
+                        "body": "%s"
+                      },
+                      "data": {
+                        "%s": "%s",
+                        "schoolId": "%s"
+                      }
+                    }
+                    """.formatted(
+                    new com.fasterxml.jackson.databind.ObjectMapper().writeValueAsString(tokens),
+                    title.replace("\"", "'"),
+                    body != null ? body.replace("\"", "'") : "",
+                    dataKey,
+                    dataId,
+                    schoolId != null ? schoolId : "global"
+            );
+            try (java.io.OutputStream os = conn.getOutputStream()) {
+                byte[] input = payload.getBytes(java.nio.charset.StandardCharsets.UTF_8);
+                os.write(input, 0, input.length);
+            }
+            int status = conn.getResponseCode();
+            if (status / 100 != 2) {
+                org.slf4j.LoggerFactory.getLogger(PushService.class)
+                        .warn("FCM (legacy) respondió {}", status);
+                return delivered;
+            }
+            // results viene en el mismo orden que registration_ids: message_id si se entregó, error si no
+            com.fasterxml.jackson.databind.JsonNode results;
+            try (java.io.InputStream in = conn.getInputStream()) {
+                results = new com.fasterxml.jackson.databind.ObjectMapper().readTree(in).path("results");
+            }
+            for (int i = 0; i < tokens.size() && i < results.size(); i++) {
+                if (results.get(i).hasNonNull("message_id")) {
+                    delivered.add(tokens.get(i));
+                }
+            }
+        } catch (Exception e) {
+            org.slf4j.LoggerFactory.getLogger(PushService.class)
+                    .warn("No se pudo enviar push FCM (legacy): {}", e.getMessage());
+        }
+        return delivered;
+    }
+
+    private Set<String> sendPushV1(List<String> tokens, String title, String body, String dataKey, String dataId, String schoolId) {
+        Set<String> delivered = new HashSet<>();
+        if (fcmCredentials == null) return delivered;
+        String project = resolveFcmProjectId();
+        if (project == null || project.isBlank()) {
+            org.slf4j.LoggerFactory.getLogger(PushService.class)
+                    .warn("No se pudo resolver projectId para FCM v1");
+            return delivered;
+        }
+        String urlBase = "https://fcm.googleapis.com/v1/projects/" + project + "/messages:send";
+        String bearer;
+        try {
+            bearer = getAccessToken();
+        } catch (Exception e) {
+            org.slf4j.LoggerFactory.getLogger(PushService.class)
+                    .warn("No se pudo obtener token de acceso para FCM v1: {}", e.getMessage());
+            return delivered;
+        }
+        // v1 es una llamada por token: un token inválido no impide entregar a los demás
+        for (String token : tokens) {
+            if (token == null || token.isBlank()) continue;
+            try {
+                java.net.URL url = new java.net.URL(urlBase);
+                java.net.HttpURLConnection conn = (java.net.HttpURLConnection) url.openConnection();
+                conn.setRequestMethod("POST");
+                conn.setRequestProperty("Authorization", "Bearer " + bearer);
+                conn.setRequestProperty("Content-Type", "application/json; UTF-8");
+                conn.setDoOutput(true);
+                String payload = """
+                        {
+                          "message": {
+                            "token": "%s",
+                            "notification": {
+                              "title": "%s",
+                              "body": "%s"
+                            },
+                            "data": {
+                              "%s": "%s",
+                              "schoolId": "%s"
+                            }
+                          }
+                        }
+                        """.formatted(
+                        token,
+                        title.replace("\"", "'"),
+                        body != null ? body.replace("\"", "'") : "",
+                        dataKey,
+                        dataId,
+                        schoolId != null ? schoolId : "global"
+                );
+                try (java.io.OutputStream os = conn.getOutputStream()) {
+                    byte[] input = payload.getBytes(StandardCharsets.UTF_8);
+                    os.write(input, 0, input.length);
+                }
+                int status = conn.getResponseCode();
+                if (status / 100 == 2) {
+                    delivered.add(token);
+                } else {
+                    org.slf4j.LoggerFactory.getLogger(PushService.class)
+                            .warn("FCM v1 respondió {} para un token", status);
+                }
+            } catch (Exception e) {
+                org.slf4j.LoggerFactory.getLogger(PushService.class)
+                        .warn("No se pudo enviar push FCM v1: {}", e.getMessage());
+            }
+        }
+        return delivered;
+    }
+
+    private GoogleCredentials parseCredentials(String json) {
+        try {
+            if (json == null || json.isBlank()) return null;
+            GoogleCredentials creds = GoogleCredentials.fromStream(
+                    new java.io.ByteArrayInputStream(json.getBytes(StandardCharsets.UTF_8))
+            ).createScoped(List.of("https://www.googleapis.com/auth/cloud-platform"));
+            creds.refreshIfExpired();
+            return creds;
+        } catch (Exception e) {
+            org.slf4j.LoggerFactory.getLogger(PushService.class)
+                    .warn("No se pudieron leer credenciales FCM v1: {}", e.getMessage());
+            return null;
+        }
+    }
+
+    private String resolveFcmProjectId() {
+        if (fcmProjectId != null && !fcmProjectId.isBlank()) return fcmProjectId;
+        if (fcmCredentials instanceof ServiceAccountCredentials sac && sac.getProjectId() != null) {
+            return sac.getProjectId();
+        }
+        if (firestore != null && firestore.getOptions() != null) {
+            return firestore.getOptions().getProjectId();
+        }
+        return null;
+    }
+
+    private String getAccessToken() throws java.io.IOException {
+        if (fcmCredentials == null) return null;
+        fcmCredentials.refreshIfExpired();
+        return fcmCredentials.getAccessToken().getTokenValue();
+    }
+}
@@ -8,8 +8,17 @@ import com.google.cloud.firestore.QueryDocumentSnapshot;
 import com.google.cloud.firestore.QuerySnapshot;
 import com.notiflow.dto.SchoolRequest;
 import com.notiflow.model.SchoolDocument;
+import com.notiflow.util.ResultCache;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PostConstruct;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 
+import java.time.Duration;
 import java.util.List;
 import java.util.concurrent.ExecutionException;
 import java.util.stream.Collectors;
@@ -17,10 +26,43 @@ import java.util.stream.Collectors;
 @Service
 public class SchoolService {
 
+    private static final Logger log = LoggerFactory.getLogger(SchoolService.class);
+
     private final Firestore firestore;
+    // nombre y logo por colegio para envíos y login; se actualiza en cada escritura y el TTL cubre cambios de otras instancias
+    private final ResultCache<String, Branding> branding;
 
-    public SchoolService(Firestore firestore) {
+    public SchoolService(
+            Firestore firestore,
+            MeterRegistry meterRegistry,
+            @Value("${app.schools.branding-cache-ttl-seconds:300}") long brandingTtlSeconds
+    ) {
         this.firestore = firestore;
+        this.branding = new ResultCache<>(5000, Duration.ofSeconds(brandingTtlSeconds));
+        Gauge.builder("notiflow.schools.branding.size", branding, c -> c.stats().size()).register(meterRegistry);
+        Gauge.builder("notiflow.schools.branding.hit_rate", branding, c -> c.stats().hitRate()).register(meterRegistry);
+        FunctionCounter.builder("notiflow.schools.branding.requests", branding, c -> c.stats().hits() + c.stats().coalesced())
+                .tag("result", "hit").register(meterRegistry);
+        FunctionCounter.builder("notiflow.schools.branding.requests", branding, c -> c.stats().misses())
+                .tag("result", "miss").register(meterRegistry);
+    }
+
+    @PostConstruct
+    void warmUp() {
+        try {
+            List<SchoolDocument> schools = listAll();
+            log.info("Caché de colegios precargada con {} colegios", schools.size());
+        } catch (Exception e) {
+            log.warn("No se pudo precargar caché de colegios: {}", e.getMessage());
+        }
+    }
+
+    /** Nombre y logo del colegio, normalmente sin tocar Firestore. Lanza IllegalArgumentException si no existe. */
+    public Branding branding(String id) {
+        return branding.get(id, () -> {
+            SchoolDocument doc = getById(id);
+            return doc != null ? Branding.of(doc) : new Branding(id, null, null, null);
+        });
     }
 
     public List<SchoolDocument> listAll() {
@@ -30,6 +72,7 @@ public class SchoolService {
             return docs.stream().map(doc -> {
                 SchoolDocument s = doc.toObject(SchoolDocument.class);
                 s.setId(doc.getId());
+                remember(s);
                 return s;
             }).collect(Collectors.toList());
         } catch (InterruptedException | ExecutionException e) {
@@ -47,6 +90,7 @@ public class SchoolService {
             doc.setLogoUrl(request.logoUrl());
             DocumentReference ref = firestore.collection("schools").document(doc.getId());
             ref.set(doc).get();
+            remember(doc);
             return doc;
         } catch (InterruptedException | ExecutionException e) {
             Thread.currentThread().interrupt();
@@ -64,6 +108,7 @@ public class SchoolService {
             SchoolDocument doc = snap.toObject(SchoolDocument.class);
             if (doc != null) {
                 doc.setId(snap.getId());
+                remember(doc);
             }
             return doc;
         } catch (InterruptedException | ExecutionException e) {
@@ -87,15 +132,61 @@ public class SchoolService {
             if (request.currentYear() != null) {
                 doc.setCurrentYear(request.currentYear());
             }
-            if (request.logoUrl() != null) {
+            if (request.logoUrl() != null && !request.logoUrl().equals(doc.getLogoUrl())) {
+                // las variantes corresponden al logo anterior
                 doc.setLogoUrl(request.logoUrl());
+                doc.setLogoEmailUrl(null);
+                doc.setLogoAppUrl(null);
+                doc.setFaviconUrl(null);
             }
             ref.set(doc).get();
             doc.setId(id);
+            remember(doc);
             return doc;
         } catch (InterruptedException | ExecutionException e) {
             Thread.currentThread().interrupt();
             throw new RuntimeException("Error actualizando escuela", e);
         }
     }
+
+    public SchoolDocument updateLogo(String id, StorageService.LogoUpload logo) {
+        try {
+            DocumentReference ref = firestore.collection("schools").document(id);
+            DocumentSnapshot snap = ref.get().get();
+            if (!snap.exists()) {
+                throw new IllegalArgumentException("Escuela no existe");
+            }
+            SchoolDocument doc = snap.toObject(SchoolDocument.class);
+            if (doc == null) {
+                throw new IllegalArgumentException("Escuela inválida");
+            }
+            doc.setLogoUrl(logo.url());
+            doc.setLogoEmailUrl(logo.emailUrl());
+            doc.setLogoAppUrl(logo.appUrl());
+            doc.setFaviconUrl(logo.faviconUrl());
+            ref.set(doc).get();
+            doc.setId(id);
+            remember(doc);
+            return doc;
+        } catch (InterruptedException | ExecutionException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Error actualizando logo de escuela", e);
+        }
+    }
+
+    private void remember(SchoolDocument doc) {
+        if (doc != null && doc.getId() != null) {
+            branding.put(doc.getId(), Branding.of(doc));
+        }
+    }
+
+    /** {@code emailLogoUrl} es la variante liviana para correos, o el original si no hay variantes. */
+    public record Branding(String id, String name, String logoUrl, String emailLogoUrl) {
+        static Branding of(SchoolDocument doc) {
+            String emailLogo = doc.getLogoEmailUrl() != null && !doc.getLogoEmailUrl().isBlank()
+                    ? doc.getLogoEmailUrl()
+                    : doc.getLogoUrl();
+            return new Branding(doc.getId(), doc.getName(), doc.getLogoUrl(), emailLogo);
+        }
+    }
 }
@@ -5,17 +5,25 @@ import com.google.cloud.storage.Blob;
 import com.google.cloud.storage.BlobId;
 import com.google.cloud.storage.BlobInfo;
 import com.google.cloud.storage.Storage;
+import com.notiflow.util.ImageResizer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 import org.springframework.web.multipart.MultipartFile;
 
+import java.awt.image.BufferedImage;
 import java.io.IOException;
-import java.util.List;
 import java.util.UUID;
 
 @Service
 public class StorageService {
 
+    private static final Logger log = LoggerFactory.getLogger(StorageService.class);
+    // cada subida usa un prefijo nuevo, así que los objetos nunca cambian y se pueden cachear un año
+    private static final String IMMUTABLE_CACHE = "public, max-age=31536000, immutable";
+    private static final long MAX_LOGO_PIXELS = 40_000_000L;
+
     private final Storage storage;
     private final String bucketName;
 
@@ -28,7 +36,12 @@ public class StorageService {
         return bucketName != null && !bucketName.isBlank();
     }
 
-    public String uploadLogo(String schoolId, MultipartFile file) throws IOException {
+    /**
+     * Guarda el logo original y sus variantes optimizadas: cabecera de correo (hasta 400x128, el doble de lo
+     * que se muestra), app (256x256) y favicon (64x64). Si el formato no se puede procesar (p. ej. SVG) se
+     * guarda solo el original y las variantes quedan en null.
+     */
+    public LogoUpload uploadLogo(String schoolId, MultipartFile file) throws IOException {
         if (!isEnabled()) {
             throw new IllegalStateException("Bucket de logos no configurado");
         }
@@ -36,14 +49,55 @@ public class StorageService {
         if (file.getOriginalFilename() != null && file.getOriginalFilename().contains(".")) {
             ext = file.getOriginalFilename().substring(file.getOriginalFilename().lastIndexOf('.'));
         }
-        String objectName = "logos/" + schoolId + "/" + UUID.randomUUID() + ext;
+        byte[] data = file.getBytes();
+        // Se decodifica y codifica antes de subir nada: una imagen demasiado grande se rechaza sin dejar
+        // el original huérfano en el bucket, y un JPEG que ImageIO no entiende (CMYK, truncado) solo
+        // pierde las variantes.
+        ImageResizer.Encoded email = null;
+        ImageResizer.Encoded app = null;
+        ImageResizer.Encoded favicon = null;
+        try {
+            BufferedImage image = ImageResizer.decode(data, MAX_LOGO_PIXELS);
+            if (image != null) {
+                email = ImageResizer.encode(ImageResizer.fit(image, 400, 128));
+                app = ImageResizer.encode(ImageResizer.fit(image, 256, 256));
+                favicon = ImageResizer.encode(ImageResizer.fit(image, 64, 64));
+            }
+        } catch (IOException e) {
+            log.warn("No se pudo procesar el logo de {}; se usa el original: {}", schoolId, e.getMessage());
+        }
+
+        String prefix = "logos/" + schoolId + "/" + UUID.randomUUID() + "/";
+        String url = putPublic(prefix + "original" + ext,
+                file.getContentType() != null ? file.getContentType() : "application/octet-stream", data);
+        if (email == null || app == null || favicon == null) {
+            log.info("Logo de {} en formato no procesable; se usa el original", schoolId);
+            return new LogoUpload(url, null, null, null);
+        }
+        return new LogoUpload(
+                url,
+                putVariant(prefix + "email", email),
+                putVariant(prefix + "app", app),
+                putVariant(prefix + "favicon", favicon)
+        );
+    }
+
+    private String putVariant(String baseName, ImageResizer.Encoded encoded) {
+        return putPublic(baseName + "." + encoded.extension(), encoded.contentType(), encoded.bytes());
+    }
+
+    private String putPublic(String objectName, String contentType, byte[] bytes) {
         BlobId blobId = BlobId.of(bucketName, objectName);
         BlobInfo blobInfo = BlobInfo.newBuilder(blobId)
-                .setContentType(file.getContentType() != null ? file.getContentType() : "application/octet-stream")
+                .setContentType(contentType)
+                .setCacheControl(IMMUTABLE_CACHE)
                 .build();
-        Blob blob = storage.create(blobInfo, file.getBytes());
+        Blob blob = storage.create(blobInfo, bytes);
         // Hacer público el logo
         storage.createAcl(blob.getBlobId(), Acl.of(Acl.User.ofAllUsers(), Acl.Role.READER));
         return String.format("https://storage.googleapis.com/%s/%s", bucketName, objectName);
     }
+
+    public record LogoUpload(String url, String emailUrl, String appUrl, String faviconUrl) {
+    }
 }
@@ -29,11 +29,13 @@ public class StudentImportService {
 
     private static final Logger log = LoggerFactory.getLogger(StudentImportService.class);
     private final Firestore firestore;
+    private final GroupMembershipIndex membershipIndex;
 
     private static final Pattern NON_ALNUM = Pattern.compile("[^0-9A-Za-z]");
 
-    public StudentImportService(Firestore firestore) {
+    public StudentImportService(Firestore firestore, GroupMembershipIndex membershipIndex) {
         this.firestore = firestore;
+        this.membershipIndex = membershipIndex;
     }
 
     public ImportResult importCsv(MultipartFile file, String schoolId) {
@@ -147,6 +149,7 @@ public class StudentImportService {
             DocumentSnapshot snap = fut.get();
             GroupDocument g = snap.exists() ? snap.toObject(GroupDocument.class) : new GroupDocument();
             if (g == null) g = new GroupDocument();
+            List<String> previousMembers = g.getMemberIds() == null ? List.of() : List.copyOf(g.getMemberIds());
             g.setId(id);
             g.setName(name);
             g.setDescription(name);
@@ -155,6 +158,7 @@ public class StudentImportService {
             g.setYear(year);
             if (g.getCreatedAt() == null) g.setCreatedAt(Instant.now());
             ref.set(g).get();
+            membershipIndex.onGroupWritten(schoolId, id, previousMembers, members);
         } catch (Exception e) {
             log.warn("No se pudo crear/actualizar grupo {}: {}", name, e.getMessage());
         }
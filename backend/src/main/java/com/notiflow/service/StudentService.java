@@ -315,6 +315,57 @@ public class StudentService {
         }
     }
 
+    /**
+     * Estudiantes asociados a varios correos de un colegio (correo propio o de apoderado), resueltos en lote:
+     * consultas de hasta 30 correos en vez de dos consultas por destinatario.
+     */
+    public java.util.Map<String, List<StudentDocument>> findAllByEmails(String schoolId, java.util.Collection<String> emails) {
+        java.util.Map<String, List<StudentDocument>> result = new java.util.HashMap<>();
+        if (emails == null || emails.isEmpty()) return result;
+        List<String> normalized = emails.stream()
+                .filter(e -> e != null && !e.isBlank())
+                .map(this::normalizeEmail)
+                .distinct()
+                .toList();
+        java.util.Map<String, java.util.Set<String>> seenIds = new java.util.HashMap<>();
+        try {
+            for (int i = 0; i < normalized.size(); i += 30) {
+                List<String> chunk = normalized.subList(i, Math.min(i + 30, normalized.size()));
+                java.util.Set<String> wanted = new java.util.HashSet<>(chunk);
+                for (QueryDocumentSnapshot doc : tenantStudents(schoolId).whereIn("email", chunk).get().get().getDocuments()) {
+                    addByEmail(result, seenIds, doc, List.of(normalizeEmail(doc.getString("email"))), wanted);
+                }
+                for (QueryDocumentSnapshot doc : tenantStudents(schoolId).whereArrayContainsAny("guardianEmails", chunk).get().get().getDocuments()) {
+                    StudentDocument s = doc.toObject(StudentDocument.class);
+                    List<String> guardianEmails = s == null || s.getGuardianEmails() == null ? List.of() : s.getGuardianEmails();
+                    addByEmail(result, seenIds, doc, guardianEmails.stream().map(this::normalizeEmail).toList(), wanted);
+                }
+            }
+        } catch (InterruptedException | ExecutionException e) {
+            Thread.currentThread().interrupt();
+            log.warn("Error consultando estudiantes por lote de emails en {}: {}", schoolId, e.getMessage());
+        }
+        return result;
+    }
+
+    private void addByEmail(
+            java.util.Map<String, List<StudentDocument>> result,
+            java.util.Map<String, java.util.Set<String>> seenIds,
+            QueryDocumentSnapshot doc,
+            List<String> emails,
+            java.util.Set<String> wanted
+    ) {
+        StudentDocument s = doc.toObject(StudentDocument.class);
+        if (s == null) return;
+        s.setId(doc.getId());
+        for (String email : emails) {
+            if (!wanted.contains(email)) continue;
+            if (seenIds.computeIfAbsent(email, k -> new java.util.HashSet<>()).add(doc.getId())) {
+                result.computeIfAbsent(email, k -> new ArrayList<>()).add(s);
+            }
+        }
+    }
+
     public java.util.Optional<StudentDocument> findByEmail(String email) {
         if (email == null || email.isBlank()) return java.util.Optional.empty();
         String normalized = email.trim().toLowerCase();
@@ -6,32 +6,52 @@ import com.google.cloud.firestore.QuerySnapshot;
 import com.notiflow.dto.TeacherPermissionDto;
 import org.springframework.stereotype.Service;
 
+import java.time.Instant;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutionException;
 
 @Service
 public class TeacherPermissionService {
     private final Firestore firestore;
+    // ACL por profesor (tenant|email) como set inmutable para validar grupos en O(1)
+    private final Map<String, CachedAcl> aclCache = new ConcurrentHashMap<>();
+    private static final long ACL_TTL_SECONDS = 300; // 5 minutos, cubre cambios hechos en otra instancia
 
     public TeacherPermissionService(Firestore firestore) {
         this.firestore = firestore;
     }
 
     public List<String> getAllowedGroups(String schoolId, String email) {
-        if (schoolId == null || schoolId.isBlank() || email == null || email.isBlank()) return List.of();
+        return List.copyOf(getAllowedGroupSet(schoolId, email));
+    }
+
+    public Set<String> getAllowedGroupSet(String schoolId, String email) {
+        if (schoolId == null || schoolId.isBlank() || email == null || email.isBlank()) return Set.of();
+        String safeTenant = schoolId.trim().toLowerCase();
+        String docId = normalizeEmail(email);
+        String key = aclKey(safeTenant, docId);
+        CachedAcl cached = aclCache.get(key);
+        if (cached != null && cached.expiresAt().isAfter(Instant.now())) {
+            return cached.allowedGroupIds();
+        }
         try {
-            String safeTenant = schoolId.trim().toLowerCase();
-            String docId = normalizeEmail(email);
             DocumentSnapshot snap = firestore.collection("tenants")
                     .document(safeTenant)
                     .collection("teacherPermissions")
                     .document(docId)
                     .get()
                     .get();
-            if (!snap.exists()) return List.of();
-            List<String> allowed = (List<String>) snap.get("allowedGroupIds");
-            return allowed == null ? List.of() : allowed;
+            Set<String> allowed = Set.of();
+            if (snap.exists()) {
+                List<String> raw = (List<String>) snap.get("allowedGroupIds");
+                allowed = raw == null ? Set.of() : raw.stream().filter(java.util.Objects::nonNull).collect(java.util.stream.Collectors.toUnmodifiableSet());
+            }
+            aclCache.put(key, new CachedAcl(allowed, Instant.now().plusSeconds(ACL_TTL_SECONDS)));
+            return allowed;
         } catch (InterruptedException | ExecutionException e) {
             Thread.currentThread().interrupt();
             throw new RuntimeException("Error obteniendo permisos de profesor", e);
@@ -60,8 +80,10 @@ public class TeacherPermissionService {
                             "allowedGroupIds", clean
                     ))
                     .get();
+            aclCache.put(aclKey(safeTenant, docId), new CachedAcl(Set.copyOf(clean), Instant.now().plusSeconds(ACL_TTL_SECONDS)));
         } catch (InterruptedException | ExecutionException e) {
             Thread.currentThread().interrupt();
+            aclCache.remove(aclKey(schoolId.trim().toLowerCase(), normalizeEmail(email)));
             throw new RuntimeException("Error guardando permisos de profesor", e);
         }
     }
@@ -90,4 +112,10 @@ public class TeacherPermissionService {
     private String normalizeEmail(String email) {
         return email == null ? "" : email.trim().toLowerCase();
     }
+
+    private String aclKey(String tenant, String email) {
+        return tenant + "|" + email;
+    }
+
+    private record CachedAcl(Set<String> allowedGroupIds, Instant expiresAt) {}
 }
@@ -1,50 +1,145 @@
 package com.notiflow.service;
 
-import com.google.api.core.ApiFuture;
+import com.google.cloud.firestore.DocumentChange;
 import com.google.cloud.firestore.DocumentReference;
+import com.google.cloud.firestore.DocumentSnapshot;
 import com.google.cloud.firestore.Firestore;
+import com.google.cloud.firestore.ListenerRegistration;
 import com.google.cloud.firestore.QueryDocumentSnapshot;
-import com.google.cloud.firestore.QuerySnapshot;
 import com.notiflow.dto.TemplateDto;
 import com.notiflow.dto.TemplateRequest;
 import com.notiflow.model.TemplateDocument;
+import com.notiflow.util.MergeTemplate;
+import com.notiflow.util.ResultCache;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 
+import java.time.Duration;
 import java.time.Instant;
+import java.util.Comparator;
 import java.util.List;
+import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutionException;
-import java.util.stream.Collectors;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
+/**
+ * Plantillas por dueño (tenants/{schoolId}/templates/{id}), servidas desde un catálogo en memoria.
+ * Un listener sobre el grupo "templates" mantiene el catálogo al día en todas las instancias y cada
+ * escritura lo actualiza en el acto; si el listener no está activo se recarga por dueño tras el TTL.
+ * Si el listener falla se vuelve a registrar con espera exponencial (5 s hasta 5 min).
+ */
 @Service
 public class TemplateService {
 
+    private static final Logger log = LoggerFactory.getLogger(TemplateService.class);
+    private static final long MIN_RETRY_SECONDS = 5;
+    private static final long MAX_RETRY_SECONDS = 300;
+    private static final Comparator<TemplateDocument> NEWEST_FIRST = Comparator.comparing(
+            TemplateDocument::getUpdatedAt, Comparator.nullsLast(Comparator.reverseOrder()));
+
     private final Firestore firestore;
+    private final long catalogTtlSeconds;
+    // dueño -> (id -> plantilla)
+    private final Map<String, Map<String, TemplateDocument>> catalog = new ConcurrentHashMap<>();
+    // dueños cargados por consulta (solo relevante sin listener)
+    private final Map<String, Instant> loadedAt = new ConcurrentHashMap<>();
+    private volatile boolean listening;
+    private volatile boolean stopped;
+    private ListenerRegistration listener;
+    private long retrySeconds = MIN_RETRY_SECONDS;
+    private final ScheduledExecutorService reconnector = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "templates-listener");
+        t.setDaemon(true);
+        return t;
+    });
+    // Plantillas ya analizadas, por id y versión (cada edición incrementa la versión)
+    private final ResultCache<String, MergeTemplate> compiled = new ResultCache<>(1000, Duration.ofHours(12));
+    private final Map<String, String> latestVersions = new ConcurrentHashMap<>();
 
-    public TemplateService(Firestore firestore) {
+    public TemplateService(Firestore firestore, @Value("${app.templates.catalog-ttl-seconds:300}") long catalogTtlSeconds) {
         this.firestore = firestore;
+        this.catalogTtlSeconds = catalogTtlSeconds;
     }
 
-    public List<TemplateDto> listByOwner(String ownerEmail, String schoolId) {
+    @PostConstruct
+    synchronized void listenForChanges() {
+        if (stopped) return;
         try {
-            com.google.cloud.firestore.Query base = firestore.collectionGroup("templates")
-                    .whereEqualTo("ownerEmail", ownerEmail.toLowerCase());
-            if (schoolId != null && !schoolId.isBlank() && !"global".equalsIgnoreCase(schoolId)) {
-                base = base.whereEqualTo("schoolId", schoolId);
-            }
-            ApiFuture<QuerySnapshot> query = base
-                    .orderBy("updatedAt", com.google.cloud.firestore.Query.Direction.DESCENDING)
-                    .get();
-            List<QueryDocumentSnapshot> docs = query.get().getDocuments();
-            return docs.stream().map(doc -> {
-                TemplateDocument t = doc.toObject(TemplateDocument.class);
-                t.setId(doc.getId());
-                return new TemplateDto(t.getId(), t.getName(), t.getContent(), t.getCreatedAt(), t.getUpdatedAt());
-            }).collect(Collectors.toList());
-        } catch (InterruptedException | ExecutionException e) {
-            Thread.currentThread().interrupt();
-            throw new RuntimeException("Error listando plantillas", e);
+            listener = firestore.collectionGroup("templates").addSnapshotListener((snapshots, error) -> {
+                if (error != null) {
+                    log.warn("Listener de plantillas con error: {}", error.getMessage());
+                    listening = false;
+                    catalog.clear();
+                    loadedAt.clear();
+                    scheduleReconnect();
+                    return;
+                }
+                if (snapshots == null) return;
+                for (DocumentChange change : snapshots.getDocumentChanges()) {
+                    DocumentSnapshot doc = change.getDocument();
+                    TemplateDocument t = doc.toObject(TemplateDocument.class);
+                    if (t == null || t.getOwnerEmail() == null) continue;
+                    t.setId(doc.getId());
+                    if (change.getType() == DocumentChange.Type.REMOVED) {
+                        forget(t.getOwnerEmail(), t.getId());
+                    } else {
+                        store(t);
+                    }
+                }
+                // el primer snapshot trae todas las plantillas: desde aquí el catálogo está completo
+                if (!listening) {
+                    synchronized (this) {
+                        retrySeconds = MIN_RETRY_SECONDS;
+                    }
+                }
+                listening = true;
+            });
+        } catch (Exception e) {
+            log.warn("No se pudo registrar listener de plantillas: {}", e.getMessage());
+            scheduleReconnect();
+        }
+    }
+
+    /**
+     * Un listener que recibió un error ya no entrega cambios: se descarta y se registra otro tras la espera.
+     * Mientras tanto el catálogo se recarga por dueño con el TTL.
+     */
+    private synchronized void scheduleReconnect() {
+        if (stopped) return;
+        if (listener != null) {
+            listener.remove();
+            listener = null;
         }
+        long delay = retrySeconds;
+        retrySeconds = Math.min(MAX_RETRY_SECONDS, retrySeconds * 2);
+        log.info("Se volverá a registrar el listener de plantillas en {} s", delay);
+        reconnector.schedule(this::listenForChanges, delay, TimeUnit.SECONDS);
+    }
+
+    @PreDestroy
+    synchronized void shutdown() {
+        stopped = true;
+        reconnector.shutdownNow();
+        if (listener != null) {
+            listener.remove();
+        }
+    }
+
+    public List<TemplateDto> listByOwner(String ownerEmail, String schoolId) {
+        boolean allSchools = schoolId == null || schoolId.isBlank() || "global".equalsIgnoreCase(schoolId);
+        return ownerCatalog(ownerEmail.toLowerCase()).values().stream()
+                .filter(t -> allSchools || schoolId.equals(t.getSchoolId()))
+                .sorted(NEWEST_FIRST)
+                .map(this::toDto)
+                .toList();
     }
 
     public TemplateDto create(TemplateRequest request, String ownerEmail, String schoolId) {
@@ -58,9 +153,11 @@ public class TemplateService {
             Instant now = Instant.now();
             doc.setCreatedAt(now);
             doc.setUpdatedAt(now);
+            doc.setVersion(1L);
             DocumentReference ref = tenantTemplates(doc.getSchoolId()).document(doc.getId());
             ref.set(doc).get();
-            return new TemplateDto(doc.getId(), doc.getName(), doc.getContent(), doc.getCreatedAt(), doc.getUpdatedAt());
+            store(doc);
+            return toDto(doc);
         } catch (InterruptedException | ExecutionException e) {
             Thread.currentThread().interrupt();
             throw new RuntimeException("Error creando plantilla", e);
@@ -69,19 +166,18 @@ public class TemplateService {
 
     public TemplateDto update(String id, TemplateRequest request, String ownerEmail, String schoolId) {
         try {
-            DocumentReference ref = findTemplateRef(id, ownerEmail, schoolId);
-            if (ref == null) {
-                throw new org.springframework.web.server.ResponseStatusException(org.springframework.http.HttpStatus.NOT_FOUND, "Plantilla no encontrada");
-            }
-            TemplateDocument existing = ref.get().get().toObject(TemplateDocument.class);
+            TemplateDocument existing = findOwned(id, ownerEmail, schoolId);
             if (existing == null) {
                 throw new org.springframework.web.server.ResponseStatusException(org.springframework.http.HttpStatus.NOT_FOUND, "Plantilla no encontrada");
             }
-            existing.setName(request.name());
-            existing.setContent(request.content());
-            existing.setUpdatedAt(Instant.now());
-            ref.set(existing).get();
-            return new TemplateDto(existing.getId(), existing.getName(), existing.getContent(), existing.getCreatedAt(), existing.getUpdatedAt());
+            TemplateDocument updated = copyOf(existing);
+            updated.setName(request.name());
+            updated.setContent(request.content());
+            updated.setUpdatedAt(Instant.now());
+            updated.setVersion(versionOf(existing) + 1);
+            tenantTemplates(updated.getSchoolId()).document(id).set(updated).get();
+            store(updated);
+            return toDto(updated);
         } catch (InterruptedException | ExecutionException e) {
             Thread.currentThread().interrupt();
             throw new RuntimeException("Error actualizando plantilla", e);
@@ -90,28 +186,119 @@ public class TemplateService {
 
     public void delete(String id, String ownerEmail, String schoolId) {
         try {
-            DocumentReference ref = findTemplateRef(id, ownerEmail, schoolId);
-            if (ref == null) {
+            TemplateDocument existing = findOwned(id, ownerEmail, schoolId);
+            if (existing == null) {
                 throw new org.springframework.web.server.ResponseStatusException(org.springframework.http.HttpStatus.NOT_FOUND, "Plantilla no encontrada");
             }
-            ref.delete().get();
+            tenantTemplates(existing.getSchoolId()).document(id).delete().get();
+            forget(existing.getOwnerEmail(), id);
         } catch (InterruptedException | ExecutionException e) {
             Thread.currentThread().interrupt();
             throw new RuntimeException("Error eliminando plantilla", e);
         }
     }
 
-    private DocumentReference findTemplateRef(String id, String ownerEmail, String schoolId) throws ExecutionException, InterruptedException {
-        com.google.cloud.firestore.Query q = firestore.collectionGroup("templates")
-                .whereEqualTo("id", id)
-                .whereEqualTo("ownerEmail", ownerEmail.toLowerCase())
-                .limit(1);
-        if (schoolId != null && !schoolId.isBlank()) {
-            q = q.whereEqualTo("schoolId", schoolId);
+    /**
+     * Plantilla compilada para el contenido de un mensaje. Si el mensaje viene de una plantilla conocida y no se
+     * editó, se reutiliza la versión ya analizada; si no, se analiza el contenido (una vez por envío, no por destinatario).
+     */
+    public MergeTemplate compiledFor(String templateId, String content) {
+        if (templateId != null && !templateId.isBlank() && content != null) {
+            String version = latestVersions.get(templateId);
+            MergeTemplate cached = version == null ? null : compiled.getIfPresent(templateId + "@" + version);
+            if (cached != null && cached.source().equals(content)) {
+                return cached;
+            }
+        }
+        return MergeTemplate.compile(content);
+    }
+
+    private Map<String, TemplateDocument> ownerCatalog(String owner) {
+        Map<String, TemplateDocument> cached = catalog.get(owner);
+        if (listening) {
+            return cached != null ? cached : Map.of();
+        }
+        Instant loaded = loadedAt.get(owner);
+        if (cached != null && loaded != null && loaded.plusSeconds(catalogTtlSeconds).isAfter(Instant.now())) {
+            return cached;
+        }
+        try {
+            Map<String, TemplateDocument> fresh = new ConcurrentHashMap<>();
+            List<QueryDocumentSnapshot> docs = firestore.collectionGroup("templates")
+                    .whereEqualTo("ownerEmail", owner)
+                    .get().get().getDocuments();
+            for (QueryDocumentSnapshot doc : docs) {
+                TemplateDocument t = doc.toObject(TemplateDocument.class);
+                t.setId(doc.getId());
+                fresh.put(t.getId(), t);
+                remember(t);
+            }
+            catalog.put(owner, fresh);
+            loadedAt.put(owner, Instant.now());
+            return fresh;
+        } catch (InterruptedException | ExecutionException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Error listando plantillas", e);
+        }
+    }
+
+    /** Plantilla del dueño, desde el catálogo o leyendo directo su ruta en el tenant. */
+    private TemplateDocument findOwned(String id, String ownerEmail, String schoolId) throws ExecutionException, InterruptedException {
+        String owner = ownerEmail.toLowerCase();
+        TemplateDocument cached = ownerCatalog(owner).get(id);
+        if (cached != null) {
+            return schoolId == null || schoolId.isBlank() || schoolId.equals(cached.getSchoolId()) ? cached : null;
         }
-        List<QueryDocumentSnapshot> docs = q.get().get().getDocuments();
-        if (docs.isEmpty()) return null;
-        return docs.get(0).getReference();
+        DocumentSnapshot snap = tenantTemplates(schoolId).document(id).get().get();
+        TemplateDocument t = snap.exists() ? snap.toObject(TemplateDocument.class) : null;
+        if (t == null || !owner.equals(t.getOwnerEmail())) return null;
+        t.setId(snap.getId());
+        return t;
+    }
+
+    private void store(TemplateDocument t) {
+        catalog.computeIfAbsent(t.getOwnerEmail().toLowerCase(), k -> new ConcurrentHashMap<>()).put(t.getId(), t);
+        remember(t);
+    }
+
+    private void forget(String ownerEmail, String id) {
+        Map<String, TemplateDocument> owned = catalog.get(ownerEmail.toLowerCase());
+        if (owned != null) {
+            owned.remove(id);
+        }
+        latestVersions.remove(id);
+    }
+
+    private void remember(TemplateDocument t) {
+        if (t.getId() == null) return;
+        String version = String.valueOf(versionOf(t));
+        String key = t.getId() + "@" + version;
+        if (compiled.getIfPresent(key) == null) {
+            compiled.put(key, MergeTemplate.compile(t.getContent()));
+        }
+        latestVersions.put(t.getId(), version);
+    }
+
+    private long versionOf(TemplateDocument t) {
+        return t.getVersion() == null ? 0 : t.getVersion();
+    }
+
+    // los documentos del catálogo se comparten entre hilos: se editan copias
+    private TemplateDocument copyOf(TemplateDocument t) {
+        TemplateDocument copy = new TemplateDocument();
+        copy.setId(t.getId());
+        copy.setName(t.getName());
+        copy.setContent(t.getContent());
+        copy.setOwnerEmail(t.getOwnerEmail());
+        copy.setSchoolId(t.getSchoolId());
+        copy.setCreatedAt(t.getCreatedAt());
+        copy.setUpdatedAt(t.getUpdatedAt());
+        copy.setVersion(t.getVersion());
+        return copy;
+    }
+
+    private TemplateDto toDto(TemplateDocument t) {
+        return new TemplateDto(t.getId(), t.getName(), t.getContent(), t.getCreatedAt(), t.getUpdatedAt(), versionOf(t));
     }
 
     private com.google.cloud.firestore.CollectionReference tenantTemplates(String tenantId) {
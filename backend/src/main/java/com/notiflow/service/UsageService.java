@@ -1,103 +1,354 @@
 package com.notiflow.service;
 
-import com.google.api.core.ApiFuture;
+import com.google.cloud.firestore.Blob;
 import com.google.cloud.firestore.DocumentReference;
+import com.google.cloud.firestore.DocumentSnapshot;
 import com.google.cloud.firestore.Firestore;
 import com.google.cloud.firestore.QueryDocumentSnapshot;
-import com.google.cloud.firestore.QuerySnapshot;
+import com.google.cloud.firestore.WriteBatch;
+import com.notiflow.util.ActiveUserSketch;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 
+import java.time.Duration;
 import java.time.Instant;
-import java.time.temporal.ChronoUnit;
+import java.time.LocalDate;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 @Service
 public class UsageService {
 
+    private static final Logger log = LoggerFactory.getLogger(UsageService.class);
+    private static final int ACTIVE_WINDOW_DAYS = 30;
+    private static final long ROLLUP_MAX_AGE_SECONDS = 3600; // recalcular agregados como máximo cada hora
+    private static final long REPORT_CACHE_SECONDS = 300;
+    private static final int MAX_BATCH_WRITES = 500;
+
     private final Firestore firestore;
+    // Sketches diarios (colegio|día) con logins aún no persistidos
+    private final Map<String, ActiveUserSketch> pending = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "usage-flush");
+        t.setDaemon(true);
+        return t;
+    });
+    // Logins pendientes de escribir en appLogins (colegio|email), acotado por app.usage.login-buffer-max
+    private final Map<String, PendingLogin> pendingLogins = new ConcurrentHashMap<>();
+    // Último login persistido por usuario, para no reescribir dentro de la ventana de coalescencia
+    private final Map<String, Instant> lastPersisted = new ConcurrentHashMap<>();
+    private final AtomicLong droppedLogins = new AtomicLong();
+    private final Duration loginCoalesceWindow;
+    private final int loginBufferMax;
+    private volatile UsageReport cachedReport;
+    // día en que ya se intentó sembrar desde appLogins sin éxito (también queda marcado en Firestore)
+    private volatile LocalDate backfilledOn;
+    // la siembra desde appLogins ya se hizo (usageRollups/backfill con seeded=true)
+    private volatile boolean backfillSeeded;
 
-    public UsageService(Firestore firestore) {
+    public UsageService(
+            Firestore firestore,
+            @Value("${app.usage.login-coalesce-seconds:600}") long loginCoalesceSeconds,
+            @Value("${app.usage.login-buffer-max:10000}") int loginBufferMax,
+            @Value("${app.usage.login-flush-seconds:5}") long loginFlushSeconds
+    ) {
         this.firestore = firestore;
+        this.loginCoalesceWindow = Duration.ofSeconds(Math.max(0, loginCoalesceSeconds));
+        this.loginBufferMax = Math.max(1, loginBufferMax);
+        long flushEvery = Math.max(1, loginFlushSeconds);
+        flusher.scheduleWithFixedDelay(this::flushLogins, flushEvery, flushEvery, TimeUnit.SECONDS);
+        flusher.scheduleWithFixedDelay(this::flushSketches, 60, 60, TimeUnit.SECONDS);
+    }
+
+    @PreDestroy
+    void shutdown() {
+        flusher.shutdown();
+        flushLogins();
+        flushSketches();
     }
 
-    public void recordAppLogin(String email) {
+    /**
+     * Registra un login de app sin tocar Firestore en el hilo de la petición.
+     * Los logins repetidos de un mismo usuario dentro de la ventana se colapsan en una sola escritura,
+     * que se persiste en lote (WriteBatch) desde el hilo de flush.
+     */
+    public void recordAppLogin(String email, String schoolId) {
         if (email == null || email.isBlank()) return;
-        String normalized = email.toLowerCase();
+        String normalized = email.trim().toLowerCase();
+        String school = schoolId == null || schoolId.isBlank() ? "desconocido" : schoolId;
+        recordActive(school, normalized, today());
+        Instant now = Instant.now();
+        String key = school + "|" + normalized;
+        Instant persisted = lastPersisted.get(key);
+        if (persisted != null && persisted.isAfter(now.minus(loginCoalesceWindow))) {
+            return;
+        }
+        if (pendingLogins.size() >= loginBufferMax && !pendingLogins.containsKey(key)) {
+            droppedLogins.incrementAndGet();
+            return;
+        }
+        pendingLogins.put(key, new PendingLogin(normalized, school, now));
+    }
+
+    /**
+     * Reporte de uso a partir de los agregados persistidos (usageRollups/latest).
+     * Solo se recalcula cuando el agregado tiene más de una hora, leyendo un documento por colegio y día.
+     */
+    public UsageReport report() {
+        UsageReport cached = cachedReport;
+        if (cached != null && cached.computedAt().isAfter(Instant.now().minusSeconds(REPORT_CACHE_SECONDS))) {
+            return cached;
+        }
+        UsageReport report = null;
         try {
-            // Buscar el usuario para obtener schoolId
-            ApiFuture<QuerySnapshot> userQuery = firestore.collectionGroup("users")
-                    .whereEqualTo("email", normalized)
-                    .limit(1)
-                    .get();
-            String schoolId = "desconocido";
-            List<QueryDocumentSnapshot> userDocs = userQuery.get().getDocuments();
-            if (!userDocs.isEmpty()) {
-                Object sid = userDocs.get(0).get("schoolId");
-                if (sid != null) {
-                    schoolId = sid.toString();
+            DocumentSnapshot snap = rollupRef().get().get();
+            if (snap.exists() && snap.getTimestamp("computedAt") != null) {
+                Instant computedAt = snap.getTimestamp("computedAt").toDate().toInstant();
+                if (computedAt.isAfter(Instant.now().minusSeconds(ROLLUP_MAX_AGE_SECONDS))) {
+                    report = fromRollup(snap, computedAt);
                 }
             }
-
-            DocumentReference ref = tenantAppLogins(schoolId).document(normalized);
-            java.util.Map<String, Object> data = new java.util.HashMap<>();
-            data.put("userEmail", normalized);
-            data.put("lastLogin", Instant.now().toString());
-            data.put("schoolId", schoolId);
-            ref.set(data).get();
+            if (report == null) {
+                report = recomputeRollup();
+            }
         } catch (InterruptedException | ExecutionException e) {
             Thread.currentThread().interrupt();
-            // No bloquear login por tracking
+            log.warn("No se pudo obtener reporte de uso: {}", e.getMessage());
+            return cached != null ? cached : new UsageReport(0, 0, Map.of(), Instant.now());
         }
+        cachedReport = report;
+        return report;
     }
 
     public long countAppActiveUsers() {
-        Instant cutoff = Instant.now().minus(30, ChronoUnit.DAYS);
-        try {
-            ApiFuture<QuerySnapshot> query = firestore.collectionGroup("appLogins").get();
-            List<QueryDocumentSnapshot> docs = query.get().getDocuments();
-            return docs.stream()
-                    .filter(doc -> isRecent(doc, cutoff))
-                    .count();
-        } catch (InterruptedException | ExecutionException e) {
-            Thread.currentThread().interrupt();
-            return 0;
-        }
+        return report().appActiveUsers();
     }
 
     public long countUsersWithEmail() {
-        try {
-            ApiFuture<QuerySnapshot> query = firestore.collectionGroup("users")
-                    .whereNotEqualTo("email", null)
-                    .get();
-            List<QueryDocumentSnapshot> docs = query.get().getDocuments();
-            return docs.size();
-        } catch (InterruptedException | ExecutionException e) {
-            Thread.currentThread().interrupt();
-            return 0;
-        }
+        return report().usersWithEmail();
     }
 
     public java.util.Map<String, Long> countAppActiveBySchool() {
-        java.util.Map<String, Long> counts = new java.util.HashMap<>();
-        Instant cutoff = Instant.now().minus(30, ChronoUnit.DAYS);
-        try {
-            ApiFuture<QuerySnapshot> query = firestore.collectionGroup("appLogins").get();
-            List<QueryDocumentSnapshot> docs = query.get().getDocuments();
-            for (QueryDocumentSnapshot doc : docs) {
-                if (!isRecent(doc, cutoff)) {
-                    continue;
+        return report().appActiveBySchool();
+    }
+
+    private UsageReport recomputeRollup() throws ExecutionException, InterruptedException {
+        backfillFromAppLogins();
+        flushSketches();
+        String cutoff = today().minusDays(ACTIVE_WINDOW_DAYS - 1L).toString();
+        List<QueryDocumentSnapshot> days = firestore.collectionGroup("usageDaily")
+                .whereGreaterThanOrEqualTo("day", cutoff)
+                .get()
+                .get()
+                .getDocuments();
+        Map<String, ActiveUserSketch> bySchool = new HashMap<>();
+        ActiveUserSketch total = new ActiveUserSketch();
+        for (QueryDocumentSnapshot doc : days) {
+            Blob blob = doc.getBlob("sketch");
+            String schoolId = doc.getString("schoolId");
+            if (blob == null || schoolId == null) continue;
+            ActiveUserSketch sketch = ActiveUserSketch.fromBytes(blob.toBytes());
+            bySchool.computeIfAbsent(schoolId, k -> new ActiveUserSketch()).merge(sketch);
+            total.merge(sketch);
+        }
+        Map<String, Long> activeBySchool = new HashMap<>();
+        bySchool.forEach((school, sketch) -> activeBySchool.put(school, sketch.estimate()));
+        long usersWithEmail = firestore.collectionGroup("users")
+                .whereNotEqualTo("email", null)
+                .count()
+                .get()
+                .get()
+                .getCount();
+
+        Instant now = Instant.now();
+        Map<String, Object> data = new HashMap<>();
+        data.put("appActiveUsers", total.estimate());
+        data.put("usersWithEmail", usersWithEmail);
+        data.put("appActiveBySchool", activeBySchool);
+        data.put("windowDays", ACTIVE_WINDOW_DAYS);
+        data.put("computedAt", com.google.cloud.Timestamp.ofTimeSecondsAndNanos(now.getEpochSecond(), now.getNano()));
+        rollupRef().set(data).get();
+        return new UsageReport(total.estimate(), usersWithEmail, Map.copyOf(activeBySchool), now);
+    }
+
+    private UsageReport fromRollup(DocumentSnapshot snap, Instant computedAt) {
+        Map<String, Long> bySchool = new HashMap<>();
+        Object raw = snap.get("appActiveBySchool");
+        if (raw instanceof Map<?, ?> map) {
+            map.forEach((k, v) -> {
+                if (k != null && v instanceof Number n) {
+                    bySchool.put(k.toString(), n.longValue());
                 }
+            });
+        }
+        Long active = snap.getLong("appActiveUsers");
+        Long withEmail = snap.getLong("usersWithEmail");
+        return new UsageReport(
+                active == null ? 0 : active,
+                withEmail == null ? 0 : withEmail,
+                Map.copyOf(bySchool),
+                computedAt
+        );
+    }
+
+    /**
+     * Carga inicial: se siembran una sola vez los sketches desde appLogins (último login de cada usuario),
+     * aunque usageDaily ya tenga documentos de los logins registrados desde el despliegue. Los usuarios
+     * se suman a los sketches diarios existentes; el merge de HyperLogLog es idempotente, así que repetirlo
+     * en otra instancia no infla la estimación. Queda hecho con usageRollups/backfill seeded=true; mientras
+     * appLogins esté vacío se reintenta como máximo una vez al día.
+     */
+    private void backfillFromAppLogins() throws ExecutionException, InterruptedException {
+        if (backfillSeeded) {
+            return;
+        }
+        LocalDate today = today();
+        if (today.equals(backfilledOn)) {
+            return;
+        }
+        DocumentReference marker = firestore.collection("usageRollups").document("backfill");
+        DocumentSnapshot markerSnap = marker.get().get();
+        if (Boolean.TRUE.equals(markerSnap.getBoolean("seeded"))) {
+            backfillSeeded = true;
+            return;
+        }
+        if (today.toString().equals(markerSnap.getString("day"))) {
+            backfilledOn = today;
+            return;
+        }
+        LocalDate cutoff = today.minusDays(ACTIVE_WINDOW_DAYS - 1L);
+        List<QueryDocumentSnapshot> docs = firestore.collectionGroup("appLogins").get().get().getDocuments();
+        boolean any = false;
+        for (QueryDocumentSnapshot doc : docs) {
+            String lastLogin = doc.getString("lastLogin");
+            String email = doc.getString("userEmail");
+            if (lastLogin == null || email == null) continue;
+            try {
+                LocalDate day = LocalDate.ofInstant(Instant.parse(lastLogin), ZoneOffset.UTC);
+                if (day.isBefore(cutoff)) continue;
                 String schoolId = doc.getString("schoolId");
-                if (schoolId == null || schoolId.isBlank()) {
-                    schoolId = "desconocido";
+                recordActive(schoolId == null || schoolId.isBlank() ? "desconocido" : schoolId, email, day);
+                any = true;
+            } catch (Exception ignored) {
+                // fecha inválida: se omite
+            }
+        }
+        // el flush posterior de recomputeRollup persiste lo sembrado (y reencola si falla)
+        marker.set(Map.of("day", today.toString(), "seeded", any)).get();
+        backfilledOn = today;
+        backfillSeeded = any;
+    }
+
+    private void recordActive(String schoolId, String email, LocalDate day) {
+        // compute es atómico respecto del remove() del flush: ningún login cae en un sketch ya drenado
+        pending.compute(schoolId + "|" + day, (k, sketch) -> {
+            ActiveUserSketch target = sketch == null ? new ActiveUserSketch() : sketch;
+            target.add(email);
+            return target;
+        });
+    }
+
+    private void flushLogins() {
+        if (pendingLogins.isEmpty()) return;
+        List<PendingLogin> drained = new ArrayList<>();
+        for (String key : List.copyOf(pendingLogins.keySet())) {
+            PendingLogin login = pendingLogins.remove(key);
+            if (login != null) drained.add(login);
+        }
+        for (int from = 0; from < drained.size(); from += MAX_BATCH_WRITES) {
+            List<PendingLogin> chunk = drained.subList(from, Math.min(drained.size(), from + MAX_BATCH_WRITES));
+            WriteBatch batch = firestore.batch();
+            for (PendingLogin login : chunk) {
+                Map<String, Object> data = new HashMap<>();
+                data.put("userEmail", login.email());
+                data.put("lastLogin", login.at().toString());
+                data.put("schoolId", login.schoolId());
+                batch.set(tenantAppLogins(login.schoolId()).document(login.email()), data);
+            }
+            try {
+                batch.commit().get();
+                for (PendingLogin login : chunk) {
+                    lastPersisted.put(login.schoolId() + "|" + login.email(), login.at());
+                }
+            } catch (Exception e) {
+                if (e instanceof InterruptedException) {
+                    Thread.currentThread().interrupt();
+                }
+                log.warn("No se pudo persistir lote de logins ({}): {}", chunk.size(), e.getMessage());
+                // reencolar sin pisar logins más recientes llegados durante el flush
+                for (PendingLogin login : chunk) {
+                    pendingLogins.putIfAbsent(login.schoolId() + "|" + login.email(), login);
                 }
-                counts.put(schoolId, counts.getOrDefault(schoolId, 0L) + 1);
             }
-        } catch (InterruptedException | ExecutionException e) {
-            Thread.currentThread().interrupt();
         }
-        return counts;
+        Instant cutoff = Instant.now().minus(loginCoalesceWindow);
+        lastPersisted.values().removeIf(at -> at.isBefore(cutoff));
+        long dropped = droppedLogins.getAndSet(0);
+        if (dropped > 0) {
+            log.warn("Buffer de logins lleno: se descartaron {} registros de appLogins", dropped);
+        }
+    }
+
+    private synchronized void flushSketches() {
+        for (String key : List.copyOf(pending.keySet())) {
+            ActiveUserSketch delta = pending.remove(key);
+            if (delta == null) continue;
+            int sep = key.lastIndexOf('|');
+            String schoolId = key.substring(0, sep);
+            String day = key.substring(sep + 1);
+            DocumentReference ref = tenantUsageDaily(schoolId).document(day);
+            try {
+                // merge idempotente: varias instancias pueden aportar al mismo día
+                firestore.runTransaction(tx -> {
+                    DocumentSnapshot snap = tx.get(ref).get();
+                    ActiveUserSketch merged = new ActiveUserSketch();
+                    Blob stored = snap.exists() ? snap.getBlob("sketch") : null;
+                    if (stored != null) {
+                        merged.merge(ActiveUserSketch.fromBytes(stored.toBytes()));
+                    }
+                    merged.merge(delta);
+                    Map<String, Object> data = new HashMap<>();
+                    data.put("schoolId", schoolId);
+                    data.put("day", day);
+                    data.put("sketch", Blob.fromBytes(merged.toBytes()));
+                    data.put("estimate", merged.estimate());
+                    data.put("updatedAt", com.google.cloud.Timestamp.now());
+                    tx.set(ref, data);
+                    return null;
+                }).get();
+            } catch (Exception e) {
+                if (e instanceof InterruptedException) {
+                    Thread.currentThread().interrupt();
+                }
+                log.warn("No se pudo persistir sketch de uso {}: {}", key, e.getMessage());
+                pending.computeIfAbsent(key, k -> new ActiveUserSketch()).merge(delta);
+            }
+        }
+    }
+
+    private LocalDate today() {
+        return LocalDate.now(ZoneOffset.UTC);
+    }
+
+    private DocumentReference rollupRef() {
+        return firestore.collection("usageRollups").document("latest");
+    }
+
+    private com.google.cloud.firestore.CollectionReference tenantUsageDaily(String tenantId) {
+        String safeTenant = tenantId == null || tenantId.isBlank() ? "global" : tenantId;
+        return firestore.collection("tenants").document(safeTenant).collection("usageDaily");
     }
 
     private com.google.cloud.firestore.CollectionReference tenantAppLogins(String tenantId) {
@@ -105,14 +356,9 @@ public class UsageService {
         return firestore.collection("tenants").document(safeTenant).collection("appLogins");
     }
 
-    private boolean isRecent(QueryDocumentSnapshot doc, Instant cutoff) {
-        String lastLogin = doc.getString("lastLogin");
-        if (lastLogin == null || lastLogin.isBlank()) return false;
-        try {
-            Instant ts = Instant.parse(lastLogin);
-            return !ts.isBefore(cutoff);
-        } catch (Exception e) {
-            return false;
-        }
+    private record PendingLogin(String email, String schoolId, Instant at) {
+    }
+
+    public record UsageReport(long appActiveUsers, long usersWithEmail, Map<String, Long> appActiveBySchool, Instant computedAt) {
     }
 }
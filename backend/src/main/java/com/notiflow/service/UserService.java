@@ -15,9 +15,13 @@ import org.springframework.context.annotation.Lazy;
 import org.springframework.security.crypto.password.PasswordEncoder;
 import org.springframework.stereotype.Service;
 
+import java.time.Instant;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutionException;
 import java.util.stream.Collectors;
 
@@ -28,6 +32,9 @@ public class UserService {
     private final PasswordEncoder passwordEncoder;
     private final PasswordResetService passwordResetService;
     private final EmailService emailService;
+    // Directorio email -> rol por tenant, usado para validar destinatarios sin consultar Firestore
+    private final Map<String, CachedDirectory> directories = new ConcurrentHashMap<>();
+    private static final long DIRECTORY_TTL_SECONDS = 300; // 5 minutos
 
     public UserService(Firestore firestore, PasswordEncoder passwordEncoder, @Lazy PasswordResetService passwordResetService, EmailService emailService) {
         this.firestore = firestore;
@@ -64,6 +71,8 @@ public class UserService {
             String tenant = user.getSchoolId() == null || user.getSchoolId().isBlank() ? "global" : user.getSchoolId();
             DocumentReference ref = tenantUsers(tenant).document(docId);
             ref.set(user).get();
+            // un usuario puede cambiar de colegio: invalidamos todos los directorios
+            directories.clear();
             return user;
         } catch (InterruptedException | ExecutionException e) {
             Thread.currentThread().interrupt();
@@ -84,6 +93,7 @@ public class UserService {
                     .orElse(null);
             if (snap != null) {
                 snap.getReference().delete().get();
+                directories.clear();
             }
         } catch (InterruptedException | ExecutionException e) {
             Thread.currentThread().interrupt();
@@ -200,6 +210,34 @@ public class UserService {
         }
     }
 
+    /**
+     * Roles de los usuarios de plataforma del colegio, indexados por email normalizado.
+     * Se carga una vez por tenant y se invalida en cada escritura de usuarios.
+     */
+    public Map<String, UserRole> roleDirectory(String schoolId) {
+        String tenant = schoolId == null || schoolId.isBlank() ? "global" : schoolId;
+        CachedDirectory cached = directories.get(tenant);
+        if (cached != null && cached.expiresAt().isAfter(Instant.now())) {
+            return cached.roles();
+        }
+        try {
+            List<QueryDocumentSnapshot> docs = tenantUsers(tenant).get().get().getDocuments();
+            Map<String, UserRole> roles = new HashMap<>();
+            for (QueryDocumentSnapshot doc : docs) {
+                UserDocument u = doc.toObject(UserDocument.class);
+                if (u != null && u.getEmail() != null && u.getRole() != null) {
+                    roles.put(u.getEmail().trim().toLowerCase(), u.getRole());
+                }
+            }
+            Map<String, UserRole> frozen = Map.copyOf(roles);
+            directories.put(tenant, new CachedDirectory(frozen, Instant.now().plusSeconds(DIRECTORY_TTL_SECONDS)));
+            return frozen;
+        } catch (InterruptedException | ExecutionException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Error cargando directorio de usuarios", e);
+        }
+    }
+
     private com.google.cloud.firestore.CollectionReference tenantUsers(String tenantId) {
         String safeTenant = tenantId == null || tenantId.isBlank() ? "global" : tenantId;
         return firestore.collection("tenants").document(safeTenant).collection("users");
@@ -227,4 +265,6 @@ public class UserService {
             throw new RuntimeException("Error recopilando correos de usuarios", e);
         }
     }
+
+    private record CachedDirectory(Map<String, UserRole> roles, Instant expiresAt) {}
 }
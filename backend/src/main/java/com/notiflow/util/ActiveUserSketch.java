@@ -0,0 +1,142 @@
+package com.notiflow.util;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Contador de usuarios únicos mergeable.
+ * Mientras hay pocos usuarios guarda los hashes exactos (conteo exacto para colegios pequeños);
+ * al superar {@link #SPARSE_LIMIT} pasa a HyperLogLog de 4096 registros (~1.6% de error, 4 KB).
+ */
+public final class ActiveUserSketch {
+
+    private static final int P = 12;
+    private static final int M = 1 << P;
+    private static final int SPARSE_LIMIT = 512;
+    private static final byte FORMAT_SPARSE = 0;
+    private static final byte FORMAT_DENSE = 1;
+
+    private Set<Long> sparse = new HashSet<>();
+    private byte[] registers;
+
+    public synchronized void add(String value) {
+        if (value == null || value.isBlank()) return;
+        addHash(hash64(value.trim().toLowerCase()));
+    }
+
+    public synchronized void merge(ActiveUserSketch other) {
+        if (other == null) return;
+        Set<Long> otherSparse;
+        byte[] otherRegisters;
+        synchronized (other) {
+            otherSparse = other.sparse == null ? null : new HashSet<>(other.sparse);
+            otherRegisters = other.registers == null ? null : other.registers.clone();
+        }
+        if (otherSparse != null) {
+            for (long h : otherSparse) {
+                addHash(h);
+            }
+        } else {
+            densify();
+            for (int i = 0; i < M; i++) {
+                if (otherRegisters[i] > registers[i]) {
+                    registers[i] = otherRegisters[i];
+                }
+            }
+        }
+    }
+
+    public synchronized long estimate() {
+        if (sparse != null) {
+            return sparse.size();
+        }
+        double sum = 0;
+        int zeros = 0;
+        for (byte r : registers) {
+            sum += 1d / (1L << r);
+            if (r == 0) zeros++;
+        }
+        double alpha = 0.7213 / (1 + 1.079 / M);
+        double estimate = alpha * M * M / sum;
+        if (estimate <= 2.5 * M && zeros > 0) {
+            estimate = M * Math.log((double) M / zeros);
+        }
+        return Math.round(estimate);
+    }
+
+    public synchronized byte[] toBytes() {
+        if (sparse != null) {
+            ByteBuffer buf = ByteBuffer.allocate(1 + 4 + sparse.size() * 8);
+            buf.put(FORMAT_SPARSE).putInt(sparse.size());
+            for (long h : sparse) {
+                buf.putLong(h);
+            }
+            return buf.array();
+        }
+        ByteBuffer buf = ByteBuffer.allocate(1 + M);
+        buf.put(FORMAT_DENSE).put(registers);
+        return buf.array();
+    }
+
+    public static ActiveUserSketch fromBytes(byte[] data) {
+        ActiveUserSketch sketch = new ActiveUserSketch();
+        if (data == null || data.length == 0) return sketch;
+        ByteBuffer buf = ByteBuffer.wrap(data);
+        byte format = buf.get();
+        if (format == FORMAT_DENSE && buf.remaining() == M) {
+            sketch.sparse = null;
+            sketch.registers = new byte[M];
+            buf.get(sketch.registers);
+        } else if (format == FORMAT_SPARSE) {
+            int size = buf.getInt();
+            for (int i = 0; i < size && buf.remaining() >= 8; i++) {
+                sketch.addHash(buf.getLong());
+            }
+        } else {
+            throw new IllegalArgumentException("Formato de sketch desconocido");
+        }
+        return sketch;
+    }
+
+    private void addHash(long hash) {
+        if (sparse != null) {
+            sparse.add(hash);
+            if (sparse.size() > SPARSE_LIMIT) {
+                densify();
+            }
+            return;
+        }
+        int index = (int) (hash >>> (64 - P));
+        byte rank = (byte) (Long.numberOfLeadingZeros((hash << P) | (1L << (P - 1))) + 1);
+        if (rank > registers[index]) {
+            registers[index] = rank;
+        }
+    }
+
+    private void densify() {
+        if (sparse == null) return;
+        Set<Long> hashes = sparse;
+        sparse = null;
+        registers = new byte[M];
+        for (long h : hashes) {
+            addHash(h);
+        }
+    }
+
+    static long hash64(String value) {
+        // FNV-1a de 64 bits + finalizador de murmur3 para buena dispersión de bits altos
+        long h = 0xcbf29ce484222325L;
+        for (byte b : value.getBytes(StandardCharsets.UTF_8)) {
+            h ^= b;
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
@@ -0,0 +1,137 @@
+package com.notiflow.util;
+
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * Plantilla con campos de combinación por destinatario, p. ej. "Estimado/a {{apoderado}}, {{alumno}} de {{curso}}".
+ * Se analiza una sola vez en una lista de instrucciones (texto literal o campo tipado), de modo que renderizar
+ * por destinatario es solo concatenar sobre un StringBuilder reutilizable, sin regex ni reemplazos.
+ * Admite valor por defecto: {{apoderado|familia}}. Los campos desconocidos (p. ej. {{fecha}}) se dejan tal cual.
+ */
+public final class MergeTemplate {
+
+    public enum Field {
+        NOMBRE, APODERADO, ALUMNO, CURSO, COLEGIO;
+
+        static Field parse(String name) {
+            return switch (name.trim().toLowerCase(Locale.ROOT)) {
+                case "nombre", "destinatario" -> NOMBRE;
+                case "apoderado", "apoderada" -> APODERADO;
+                case "alumno", "alumna", "estudiante" -> ALUMNO;
+                case "curso" -> CURSO;
+                case "colegio" -> COLEGIO;
+                default -> null;
+            };
+        }
+    }
+
+    /** Datos de un destinatario ya resueltos del directorio. */
+    public record Context(String nombre, String apoderado, String alumno, String curso, String colegio) {
+
+        public static final Context EMPTY = new Context(null, null, null, null, null);
+
+        String value(Field field) {
+            return switch (field) {
+                case NOMBRE -> nombre;
+                case APODERADO -> apoderado;
+                case ALUMNO -> alumno;
+                case CURSO -> curso;
+                case COLEGIO -> colegio;
+            };
+        }
+    }
+
+    // instrucciones paralelas: field == null => literal
+    private final String source;
+    private final String[] literals;
+    private final Field[] fields;
+    private final int literalLength;
+    private final Set<Field> usedFields;
+
+    private MergeTemplate(String source, String[] literals, Field[] fields, int literalLength, Set<Field> usedFields) {
+        this.source = source;
+        this.literals = literals;
+        this.fields = fields;
+        this.literalLength = literalLength;
+        this.usedFields = usedFields;
+    }
+
+    public static MergeTemplate compile(String source) {
+        String text = source == null ? "" : source;
+        List<String> literals = new ArrayList<>();
+        List<Field> fields = new ArrayList<>();
+        Set<Field> used = EnumSet.noneOf(Field.class);
+        StringBuilder pending = new StringBuilder();
+        int literalLength = 0;
+        int i = 0;
+        while (i < text.length()) {
+            char c = text.charAt(i);
+            int close = c == '{' && text.startsWith("{{", i) ? text.indexOf("}}", i + 2) : -1;
+            if (close > i + 2) {
+                String inner = text.substring(i + 2, close);
+                int bar = inner.indexOf('|');
+                Field field = inner.indexOf('{') < 0 ? Field.parse(bar < 0 ? inner : inner.substring(0, bar)) : null;
+                if (field != null) {
+                    if (!pending.isEmpty()) {
+                        literals.add(pending.toString());
+                        fields.add(null);
+                        literalLength += pending.length();
+                        pending.setLength(0);
+                    }
+                    // el valor por defecto viaja como literal asociado al campo
+                    literals.add(bar < 0 ? "" : inner.substring(bar + 1));
+                    fields.add(field);
+                    used.add(field);
+                    i = close + 2;
+                    continue;
+                }
+            }
+            pending.append(c);
+            i++;
+        }
+        if (!pending.isEmpty()) {
+            literals.add(pending.toString());
+            fields.add(null);
+            literalLength += pending.length();
+        }
+        return new MergeTemplate(text, literals.toArray(String[]::new), fields.toArray(Field[]::new), literalLength, used);
+    }
+
+    public String source() {
+        return source;
+    }
+
+    public boolean hasFields() {
+        return !usedFields.isEmpty();
+    }
+
+    public boolean uses(Field field) {
+        return usedFields.contains(field);
+    }
+
+    /** Renderiza sobre {@code out} (que se limpia antes), pensado para reutilizarlo entre destinatarios. */
+    public StringBuilder render(Context context, StringBuilder out) {
+        out.setLength(0);
+        out.ensureCapacity(literalLength + 64);
+        Context ctx = context == null ? Context.EMPTY : context;
+        for (int i = 0; i < fields.length; i++) {
+            Field field = fields[i];
+            if (field == null) {
+                out.append(literals[i]);
+            } else {
+                String value = ctx.value(field);
+                out.append(value == null || value.isBlank() ? literals[i] : value);
+            }
+        }
+        return out;
+    }
+
+    public String render(Context context) {
+        if (!hasFields()) return source;
+        return render(context, new StringBuilder(literalLength + 64)).toString();
+    }
+}
@@ -0,0 +1,218 @@
+package com.notiflow.util;
+
+import java.text.Normalizer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * Buscador multi-término (autómata Aho-Corasick) sobre texto plegado: minúsculas, sin tildes y con
+ * espacios colapsados. Recorre el mensaje una sola vez sin importar cuántos términos haya y solo
+ * reporta coincidencias de palabra completa. Inmutable y seguro entre hilos una vez compilado.
+ */
+public final class TermMatcher {
+
+    private static final TermMatcher EMPTY = new TermMatcher(new String[0], new int[0],
+            new char[][]{new char[0]}, new int[][]{new int[0]}, new int[]{0}, new int[][]{new int[0]});
+    private static final char[] FOLD = buildFoldTable();
+
+    private final String[] terms;
+    private final int[] termLengths;
+    // transiciones por estado: caracteres ordenados y destino correspondiente (búsqueda binaria)
+    private final char[][] keys;
+    private final int[][] targets;
+    private final int[] fail;
+    // términos que terminan en cada estado, incluidos los heredados por enlaces de fallo
+    private final int[][] outputs;
+
+    private TermMatcher(String[] terms, int[] termLengths, char[][] keys, int[][] targets, int[] fail, int[][] outputs) {
+        this.terms = terms;
+        this.termLengths = termLengths;
+        this.keys = keys;
+        this.targets = targets;
+        this.fail = fail;
+        this.outputs = outputs;
+    }
+
+    public static TermMatcher compile(Collection<String> rawTerms) {
+        Map<String, String> folded = new LinkedHashMap<>();
+        if (rawTerms != null) {
+            for (String raw : rawTerms) {
+                if (raw == null) continue;
+                String key = fold(raw);
+                if (!key.isEmpty()) {
+                    folded.putIfAbsent(key, raw.trim());
+                }
+            }
+        }
+        if (folded.isEmpty()) {
+            return EMPTY;
+        }
+
+        List<TreeMap<Character, Integer>> children = new ArrayList<>();
+        List<List<Integer>> ends = new ArrayList<>();
+        children.add(new TreeMap<>());
+        ends.add(new ArrayList<>());
+        String[] terms = new String[folded.size()];
+        int[] lengths = new int[folded.size()];
+        int termId = 0;
+        for (Map.Entry<String, String> entry : folded.entrySet()) {
+            String key = entry.getKey();
+            int state = 0;
+            for (int i = 0; i < key.length(); i++) {
+                Integer next = children.get(state).get(key.charAt(i));
+                if (next == null) {
+                    next = children.size();
+                    children.get(state).put(key.charAt(i), next);
+                    children.add(new TreeMap<>());
+                    ends.add(new ArrayList<>());
+                }
+                state = next;
+            }
+            ends.get(state).add(termId);
+            terms[termId] = entry.getValue();
+            lengths[termId] = key.length();
+            termId++;
+        }
+
+        int size = children.size();
+        char[][] keys = new char[size][];
+        int[][] targets = new int[size][];
+        for (int s = 0; s < size; s++) {
+            TreeMap<Character, Integer> edges = children.get(s);
+            keys[s] = new char[edges.size()];
+            targets[s] = new int[edges.size()];
+            int i = 0;
+            for (Map.Entry<Character, Integer> edge : edges.entrySet()) {
+                keys[s][i] = edge.getKey();
+                targets[s][i] = edge.getValue();
+                i++;
+            }
+        }
+
+        // enlaces de fallo en anchura: cada estado hereda las salidas de su sufijo propio más largo
+        int[] fail = new int[size];
+        int[][] outputs = new int[size][];
+        outputs[0] = new int[0];
+        Deque<Integer> queue = new ArrayDeque<>();
+        for (int child : targets[0]) {
+            fail[child] = 0;
+            outputs[child] = toArray(ends.get(child));
+            queue.add(child);
+        }
+        while (!queue.isEmpty()) {
+            int state = queue.poll();
+            for (int i = 0; i < keys[state].length; i++) {
+                char c = keys[state][i];
+                int child = targets[state][i];
+                int f = fail[state];
+                int next;
+                while ((next = step(keys, targets, f, c)) < 0 && f != 0) {
+                    f = fail[f];
+                }
+                fail[child] = next < 0 || next == child ? 0 : next;
+                int[] own = toArray(ends.get(child));
+                int[] inherited = outputs[fail[child]];
+                int[] merged = Arrays.copyOf(own, own.length + inherited.length);
+                System.arraycopy(inherited, 0, merged, own.length, inherited.length);
+                outputs[child] = merged;
+                queue.add(child);
+            }
+        }
+        return new TermMatcher(terms, lengths, keys, targets, fail, outputs);
+    }
+
+    public boolean isEmpty() {
+        return terms.length == 0;
+    }
+
+    /**
+     * Términos (tal como se configuraron) presentes en el texto como palabra o frase completa.
+     */
+    public Set<String> find(CharSequence text) {
+        if (terms.length == 0 || text == null) return Set.of();
+        char[] buf = new char[text.length()];
+        int len = foldInto(text, buf);
+        Set<String> found = null;
+        int state = 0;
+        for (int i = 0; i < len; i++) {
+            char c = buf[i];
+            int next;
+            while ((next = step(keys, targets, state, c)) < 0 && state != 0) {
+                state = fail[state];
+            }
+            state = next < 0 ? 0 : next;
+            for (int t : outputs[state]) {
+                int start = i - termLengths[t] + 1;
+                if (isBoundary(buf, start - 1, len) && isBoundary(buf, i + 1, len)) {
+                    if (found == null) found = new LinkedHashSet<>();
+                    found.add(terms[t]);
+                }
+            }
+        }
+        return found == null ? Set.of() : found;
+    }
+
+    /** Plegado usado tanto para términos como para mensajes. */
+    public static String fold(CharSequence text) {
+        char[] buf = new char[text.length()];
+        int n = foldInto(text, buf);
+        while (n > 0 && buf[n - 1] == ' ') n--;
+        return new String(buf, 0, n);
+    }
+
+    /** Pliega en el buffer (del largo del texto) y devuelve cuántos caracteres escribió. */
+    private static int foldInto(CharSequence text, char[] buf) {
+        int n = 0;
+        boolean space = true;
+        for (int i = 0; i < text.length(); i++) {
+            char c = foldChar(text.charAt(i));
+            if (Character.isWhitespace(c)) {
+                if (!space) buf[n++] = ' ';
+                space = true;
+            } else {
+                buf[n++] = c;
+                space = false;
+            }
+        }
+        return n;
+    }
+
+    private static boolean isBoundary(char[] buf, int index, int len) {
+        return index < 0 || index >= len || !Character.isLetterOrDigit(buf[index]);
+    }
+
+    private static int step(char[][] keys, int[][] targets, int state, char c) {
+        int idx = Arrays.binarySearch(keys[state], c);
+        return idx < 0 ? -1 : targets[state][idx];
+    }
+
+    private static char foldChar(char c) {
+        return c < FOLD.length ? FOLD[c] : Character.toLowerCase(c);
+    }
+
+    private static char[] buildFoldTable() {
+        // Latin-1 y Latin Extended-A: letra base en minúscula (á→a, Ñ→n, ü→u)
+        char[] table = new char[0x250];
+        for (char c = 0; c < table.length; c++) {
+            char lower = Character.toLowerCase(c);
+            String decomposed = Normalizer.normalize(String.valueOf(lower), Normalizer.Form.NFD);
+            table[c] = decomposed.isEmpty() ? lower : decomposed.charAt(0);
+        }
+        return table;
+    }
+
+    private static int[] toArray(List<Integer> values) {
+        int[] out = new int[values.size()];
+        for (int i = 0; i < out.length; i++) out[i] = values.get(i);
+        return out;
+    }
+}
@@ -0,0 +1,142 @@
+package com.notiflow.util;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Timer de rueda (hashed timing wheel): agenda miles de tareas con costo O(1) por alta y por tick.
+ * La precisión es la del tick; pensado para expiraciones y recordatorios, no para tiempos finos.
+ * Un único hilo daemon avanza la rueda y entrega las tareas vencidas al executor indicado.
+ */
+public final class TimerWheel implements AutoCloseable {
+
+    private static final Logger log = LoggerFactory.getLogger(TimerWheel.class);
+
+    private final long tickNanos;
+    private final Queue<Timeout>[] buckets;
+    private final Queue<Timeout> pending = new ConcurrentLinkedQueue<>();
+    private final Executor executor;
+    private final Thread worker;
+    private volatile boolean running = true;
+    private long tick;
+
+    public TimerWheel(String name, Duration tickDuration, int wheelSize) {
+        this(name, tickDuration, wheelSize, Runnable::run);
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public TimerWheel(String name, Duration tickDuration, int wheelSize, Executor executor) {
+        if (tickDuration.isNegative() || tickDuration.isZero() || wheelSize <= 0) {
+            throw new IllegalArgumentException("Tick y tamaño de rueda deben ser positivos");
+        }
+        this.tickNanos = tickDuration.toNanos();
+        this.buckets = new Queue[wheelSize];
+        for (int i = 0; i < wheelSize; i++) {
+            buckets[i] = new ArrayDeque<>();
+        }
+        this.executor = executor;
+        this.worker = new Thread(this::run, name);
+        this.worker.setDaemon(true);
+        this.worker.start();
+    }
+
+    public Timeout schedule(Runnable task, Duration delay) {
+        Timeout timeout = new Timeout(task, System.nanoTime() + Math.max(0, delay.toNanos()));
+        pending.add(timeout);
+        return timeout;
+    }
+
+    public int pendingCount() {
+        int count = pending.size();
+        synchronized (buckets) {
+            for (Queue<Timeout> bucket : buckets) {
+                count += bucket.size();
+            }
+        }
+        return count;
+    }
+
+    @Override
+    public void close() {
+        running = false;
+        worker.interrupt();
+    }
+
+    private void run() {
+        long start = System.nanoTime();
+        while (running) {
+            long next = start + (tick + 1) * tickNanos;
+            long sleep = next - System.nanoTime();
+            if (sleep > 0) {
+                try {
+                    TimeUnit.NANOSECONDS.sleep(sleep);
+                } catch (InterruptedException e) {
+                    if (!running) return;
+                }
+            }
+            synchronized (buckets) {
+                transferPending();
+                expire(buckets[(int) (tick % buckets.length)]);
+            }
+            tick++;
+        }
+    }
+
+    private void transferPending() {
+        Timeout timeout;
+        while ((timeout = pending.poll()) != null) {
+            if (timeout.cancelled) continue;
+            long remaining = Math.max(0, (timeout.deadlineNanos - System.nanoTime() + tickNanos - 1) / tickNanos);
+            long target = tick + remaining;
+            timeout.rounds = remaining / buckets.length;
+            buckets[(int) (target % buckets.length)].add(timeout);
+        }
+    }
+
+    private void expire(Queue<Timeout> bucket) {
+        Iterator<Timeout> it = bucket.iterator();
+        while (it.hasNext()) {
+            Timeout timeout = it.next();
+            if (timeout.cancelled) {
+                it.remove();
+            } else if (timeout.rounds <= 0) {
+                it.remove();
+                try {
+                    executor.execute(timeout.task);
+                } catch (Exception e) {
+                    log.warn("Tarea de TimerWheel falló: {}", e.getMessage());
+                }
+            } else {
+                timeout.rounds--;
+            }
+        }
+    }
+
+    public static final class Timeout {
+        private final Runnable task;
+        private final long deadlineNanos;
+        private long rounds;
+        private volatile boolean cancelled;
+
+        private Timeout(Runnable task, long deadlineNanos) {
+            this.task = task;
+            this.deadlineNanos = deadlineNanos;
+        }
+
+        public void cancel() {
+            cancelled = true;
+        }
+
+        public boolean isCancelled() {
+            return cancelled;
+        }
+    }
+}
@@ -0,0 +1,156 @@
+package com.notiflow.service;
+
+import com.notiflow.dto.AiPolicyResponse;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.http.HttpStatus;
+import org.springframework.web.server.ResponseStatusException;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * AiCallGuard frente a un Vertex simulado con el HttpServer del JDK: un modelo colgado no debe retener más
+ * hilos que el bulkhead, y un modelo que responde 5xx debe abrir el breaker.
+ */
+class AiCallGuardTest {
+
+    private static final long ACQUIRE_WAIT_MS = 200;
+
+    private final AtomicInteger hits = new AtomicInteger();
+    private final CountDownLatch received = new CountDownLatch(1);
+    private final CountDownLatch release = new CountDownLatch(1);
+    private HttpServer server;
+
+    @AfterEach
+    void stop() {
+        release.countDown();
+        if (server != null) {
+            server.stop(0);
+        }
+    }
+
+    @Test
+    void saturatedBulkheadFailsWith503WithinAcquireWait() throws Exception {
+        start(exchange -> {
+            received.countDown();
+            await(release);
+            respond(exchange, 200, "{\"candidates\":[{\"content\":{\"parts\":[{\"text\":\"listo\"}]}}]}");
+        });
+        AiCallGuard guard = guard(1, 5);
+        VertexAiService service = service(guard);
+        ExecutorService pool = Executors.newSingleThreadExecutor();
+        try {
+            Future<String> hanging = pool.submit(() -> service.rewrite("uno", "neutro"));
+            assertTrue(received.await(5, TimeUnit.SECONDS));
+
+            long started = System.nanoTime();
+            ResponseStatusException rejected = assertThrows(ResponseStatusException.class,
+                    () -> service.rewrite("dos", "neutro"));
+            long elapsedMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started);
+
+            assertEquals(HttpStatus.SERVICE_UNAVAILABLE, rejected.getStatusCode());
+            assertTrue(elapsedMs < ACQUIRE_WAIT_MS + 500, "tardó " + elapsedMs + " ms");
+            assertEquals(1, hits.get());
+            assertEquals(1, guard.stats().get("inFlight"));
+
+            release.countDown();
+            assertEquals("listo", hanging.get(5, TimeUnit.SECONDS));
+            assertEquals(0, guard.stats().get("inFlight"));
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    @Test
+    void serverErrorsOpenTheBreaker() throws Exception {
+        start(exchange -> respond(exchange, 503, "{\"error\":{\"status\":\"UNAVAILABLE\"}}"));
+        AiCallGuard guard = guard(4, 3);
+        VertexAiService service = service(guard);
+
+        for (int i = 0; i < 3; i++) {
+            String text = "texto " + i;
+            RuntimeException failed = assertThrows(RuntimeException.class, () -> service.rewrite(text, "neutro"));
+            assertFalse(failed instanceof ResponseStatusException, "el fallo " + i + " debe venir de Vertex");
+        }
+        assertEquals(3, hits.get());
+        assertEquals(Map.of("gemini-test", "OPEN"), guard.stats().get("breakers"));
+
+        // abierto: se rechaza sin llegar al servidor
+        ResponseStatusException rejected = assertThrows(ResponseStatusException.class,
+                () -> service.rewrite("otro", "neutro"));
+        assertEquals(HttpStatus.SERVICE_UNAVAILABLE, rejected.getStatusCode());
+        assertEquals(3, hits.get());
+    }
+
+    private void start(Handler handler) throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.setExecutor(Executors.newCachedThreadPool());
+        server.createContext("/", exchange -> {
+            hits.incrementAndGet();
+            handler.handle(exchange);
+        });
+        server.start();
+    }
+
+    private AiCallGuard guard(int maxConcurrent, int failureThreshold) {
+        return new AiCallGuard(maxConcurrent, ACQUIRE_WAIT_MS, failureThreshold, 30, 5, 5, 5, new SimpleMeterRegistry());
+    }
+
+    private VertexAiService service(AiCallGuard guard) {
+        AiPolicyService policies = new AiPolicyService(null, 600) {
+            @Override
+            public AiPolicyResponse getPolicy(String schoolId) {
+                return new AiPolicyResponse("global", "Reescribe en tono {tone}: {texto}", List.of("sin insultos"),
+                        List.of(), null, Instant.EPOCH, 1);
+            }
+        };
+        GoogleAccessTokenProvider tokens = new GoogleAccessTokenProvider() {
+            @Override
+            public String getToken() {
+                return "token-de-prueba";
+            }
+        };
+        String endpoint = "http://127.0.0.1:" + server.getAddress().getPort();
+        return new VertexAiService("proyecto", "us-central1", "gemini-test", "gemini-test", 100, 60, 20, 24000,
+                endpoint, policies, tokens, guard, new SimpleMeterRegistry());
+    }
+
+    private static void respond(HttpExchange exchange, int status, String body) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().add("Content-Type", "application/json");
+        exchange.sendResponseHeaders(status, bytes.length);
+        exchange.getResponseBody().write(bytes);
+        exchange.close();
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private interface Handler {
+        void handle(HttpExchange exchange) throws IOException;
+    }
+}
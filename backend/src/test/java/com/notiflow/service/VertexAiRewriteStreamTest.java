@@ -0,0 +1,161 @@
+package com.notiflow.service;
+
+import com.notiflow.dto.AiPolicyResponse;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * rewriteStream contra un streamGenerateContent?alt=sse simulado con el HttpServer del JDK.
+ */
+class VertexAiRewriteStreamTest {
+
+    private final List<String> paths = new CopyOnWriteArrayList<>();
+    private final CountDownLatch firstChunkSent = new CountDownLatch(1);
+    private final CountDownLatch upstreamClosed = new CountDownLatch(1);
+    private HttpServer server;
+
+    @AfterEach
+    void stop() {
+        if (server != null) {
+            server.stop(0);
+        }
+    }
+
+    @Test
+    void relaysChunksInOrderAndCompletesWithTheFullText() throws Exception {
+        start(exchange -> {
+            exchange.sendResponseHeaders(200, 0);
+            try (OutputStream out = exchange.getResponseBody()) {
+                for (String chunk : List.of("Estimadas ", "familias, ", "mañana no hay clases.")) {
+                    out.write(event(chunk));
+                    out.flush();
+                }
+                out.write("data: {\"candidates\":[{\"finishReason\":\"STOP\"}]}\n\n".getBytes(StandardCharsets.UTF_8));
+            }
+        });
+        AiCallGuard guard = guard();
+        VertexAiService service = service(guard);
+        List<String> tokens = new CopyOnWriteArrayList<>();
+
+        String full = service.rewriteStream("mañana no hay clases", "cercano", "global", tokens::add)
+                .get(5, TimeUnit.SECONDS);
+
+        assertEquals(List.of("Estimadas ", "familias, ", "mañana no hay clases."), tokens);
+        // con este valor el controlador emite el evento "done"
+        assertEquals("Estimadas familias, mañana no hay clases.", full);
+        assertTrue(paths.get(0).endsWith(":streamGenerateContent"), paths.get(0));
+        // el permiso y la caché se resuelven en una etapa dependiente del futuro
+        awaitUntil(() -> service.cacheStats().get("rewrite").size() == 1);
+        assertEquals(0, guard.stats().get("inFlight"));
+
+        // la sugerencia completa queda en caché: la segunda vez no se llama al modelo
+        List<String> again = new CopyOnWriteArrayList<>();
+        assertEquals(full, service.rewriteStream("mañana no hay clases", "cercano", "global", again::add).get());
+        assertEquals(List.of(full), again);
+        assertEquals(1, paths.size());
+    }
+
+    @Test
+    void cancellingTheFutureClosesTheUpstreamExchange() throws Exception {
+        start(exchange -> {
+            exchange.sendResponseHeaders(200, 0);
+            OutputStream out = exchange.getResponseBody();
+            out.write(event("Hola"));
+            out.flush();
+            firstChunkSent.countDown();
+            // Vertex sigue generando hasta que el cliente corta la conexión
+            try {
+                for (int i = 0; i < 200; i++) {
+                    Thread.sleep(50);
+                    out.write(event(" más"));
+                    out.flush();
+                }
+            } catch (IOException e) {
+                upstreamClosed.countDown();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        AiCallGuard guard = guard();
+        VertexAiService service = service(guard);
+        CountDownLatch firstToken = new CountDownLatch(1);
+
+        CompletableFuture<String> stream = service.rewriteStream("hola", "neutro", "global", t -> firstToken.countDown());
+        assertTrue(firstChunkSent.await(5, TimeUnit.SECONDS));
+        assertTrue(firstToken.await(5, TimeUnit.SECONDS));
+        stream.cancel(true);
+
+        assertTrue(upstreamClosed.await(5, TimeUnit.SECONDS), "la conexión hacia Vertex sigue abierta");
+        awaitUntil(() -> Integer.valueOf(0).equals(guard.stats().get("inFlight")));
+        assertEquals(Map.of("gemini-test", "CLOSED"), guard.stats().get("breakers"));
+    }
+
+    private void start(Handler handler) throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.setExecutor(Executors.newCachedThreadPool());
+        server.createContext("/", exchange -> {
+            paths.add(exchange.getRequestURI().getPath());
+            handler.handle(exchange);
+        });
+        server.start();
+    }
+
+    private AiCallGuard guard() {
+        return new AiCallGuard(4, 200, 3, 30, 5, 5, 10, new SimpleMeterRegistry());
+    }
+
+    private VertexAiService service(AiCallGuard guard) {
+        AiPolicyService policies = new AiPolicyService(null, 600) {
+            @Override
+            public AiPolicyResponse getPolicy(String schoolId) {
+                return new AiPolicyResponse("global", "Reescribe en tono {tone}: {texto}", List.of("sin insultos"),
+                        List.of(), null, Instant.EPOCH, 1);
+            }
+        };
+        GoogleAccessTokenProvider tokens = new GoogleAccessTokenProvider() {
+            @Override
+            public String getToken() {
+                return "token-de-prueba";
+            }
+        };
+        String endpoint = "http://127.0.0.1:" + server.getAddress().getPort();
+        return new VertexAiService("proyecto", "us-central1", "gemini-test", "gemini-test", 100, 60, 20, 24000,
+                endpoint, policies, tokens, guard, new SimpleMeterRegistry());
+    }
+
+    private static void awaitUntil(java.util.function.BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (!condition.getAsBoolean() && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        assertTrue(condition.getAsBoolean(), "la condición no se cumplió a tiempo");
+    }
+
+    private static byte[] event(String text) {
+        String json = "{\"candidates\":[{\"content\":{\"parts\":[{\"text\":\"" + text + "\"}]}}]}";
+        return ("data: " + json + "\n\n").getBytes(StandardCharsets.UTF_8);
+    }
+
+    private interface Handler {
+        void handle(HttpExchange exchange) throws IOException;
+    }
+}
@@ -0,0 +1,108 @@
+package com.notiflow.service;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Flow;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class VertexAiStreamSubscriberTest {
+
+    private final ObjectMapper mapper = new ObjectMapper();
+
+    @Test
+    void relaysTextChunksOneLineAtATime() throws Exception {
+        List<String> tokens = new ArrayList<>();
+        CompletableFuture<String> result = new CompletableFuture<>();
+        FakeSubscription subscription = new FakeSubscription();
+        VertexAiService.StreamSubscriber subscriber = new VertexAiService.StreamSubscriber(mapper, tokens::add, result);
+
+        subscriber.onSubscribe(subscription);
+        assertEquals(1, subscription.requested);
+        subscriber.onNext(data("Hola ", "a "));
+        subscriber.onNext("");
+        subscriber.onNext(": keep-alive");
+        subscriber.onNext(data("todos"));
+        subscriber.onNext("data: {\"candidates\":[{\"finishReason\":\"STOP\"}]}");
+        subscriber.onComplete();
+
+        assertEquals(List.of("Hola a ", "todos"), tokens);
+        assertEquals("Hola a todos", result.get());
+        // una línea por vez: cada onNext pide solo la siguiente
+        assertEquals(6, subscription.requested);
+    }
+
+    @Test
+    void malformedChunkFailsTheStreamAndStopsRequesting() {
+        CompletableFuture<String> result = new CompletableFuture<>();
+        FakeSubscription subscription = new FakeSubscription();
+        VertexAiService.StreamSubscriber subscriber = new VertexAiService.StreamSubscriber(mapper, t -> { }, result);
+
+        subscriber.onSubscribe(subscription);
+        subscriber.onNext("data: {no es json");
+
+        assertTrue(result.isCompletedExceptionally());
+        assertEquals(1, subscription.requested);
+        assertThrows(ExecutionException.class, result::get);
+    }
+
+    @Test
+    void cancelledStreamIgnoresLateChunksAndCancelsUpstream() throws Exception {
+        List<String> tokens = new ArrayList<>();
+        CompletableFuture<String> result = new CompletableFuture<>();
+        FakeSubscription subscription = new FakeSubscription();
+        VertexAiService.StreamSubscriber subscriber = new VertexAiService.StreamSubscriber(mapper, tokens::add, result);
+        subscriber.onSubscribe(subscription);
+
+        result.cancel(false);
+        subscriber.cancel();
+        subscriber.onNext(data("tarde"));
+
+        assertTrue(subscription.cancelled);
+        assertTrue(tokens.isEmpty());
+    }
+
+    @Test
+    void subscriptionArrivingAfterCancellationIsCancelledRightAway() {
+        CompletableFuture<String> result = new CompletableFuture<>();
+        result.cancel(false);
+        FakeSubscription subscription = new FakeSubscription();
+
+        new VertexAiService.StreamSubscriber(mapper, t -> { }, result).onSubscribe(subscription);
+
+        assertTrue(subscription.cancelled);
+        assertFalse(subscription.requested > 0);
+    }
+
+    private String data(String... parts) throws Exception {
+        var root = mapper.createObjectNode();
+        var array = root.putArray("candidates").addObject().putObject("content").putArray("parts");
+        for (String part : parts) {
+            array.addObject().put("text", part);
+        }
+        return "data: " + mapper.writeValueAsString(root);
+    }
+
+    private static final class FakeSubscription implements Flow.Subscription {
+        long requested;
+        boolean cancelled;
+
+        @Override
+        public void request(long n) {
+            requested += n;
+        }
+
+        @Override
+        public void cancel() {
+            cancelled = true;
+        }
+    }
+}
@@ -0,0 +1,72 @@
+package com.notiflow.util;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ActiveUserSketchTest {
+
+    private static final int DENSE_BYTES = 1 + 4096;
+
+    @Test
+    void countsExactlyWhileSmall() {
+        ActiveUserSketch sketch = new ActiveUserSketch();
+        for (int i = 0; i < 512; i++) {
+            sketch.add("user" + i + "@colegio.cl");
+        }
+        sketch.add("USER0@colegio.cl ");
+        sketch.add(" ");
+        sketch.add(null);
+
+        assertEquals(512, sketch.estimate());
+        assertEquals(1 + 4 + 512 * 8, sketch.toBytes().length);
+    }
+
+    @Test
+    void switchesToHyperLogLogPastTheSparseLimit() {
+        ActiveUserSketch sketch = new ActiveUserSketch();
+        for (int i = 0; i < 513; i++) {
+            sketch.add("user" + i + "@colegio.cl");
+        }
+        assertEquals(DENSE_BYTES, sketch.toBytes().length);
+        assertWithin(513, sketch.estimate(), 0.05);
+
+        for (int i = 513; i < 20_000; i++) {
+            sketch.add("user" + i + "@colegio.cl");
+        }
+        assertEquals(DENSE_BYTES, sketch.toBytes().length);
+        assertWithin(20_000, sketch.estimate(), 0.05);
+    }
+
+    @Test
+    void mergesSparseIntoDenseAndSurvivesSerialization() {
+        ActiveUserSketch large = new ActiveUserSketch();
+        ActiveUserSketch small = new ActiveUserSketch();
+        for (int i = 0; i < 5_000; i++) {
+            large.add("a" + i);
+        }
+        for (int i = 4_900; i < 5_100; i++) {
+            small.add("a" + i);
+        }
+
+        ActiveUserSketch union = ActiveUserSketch.fromBytes(small.toBytes());
+        union.merge(ActiveUserSketch.fromBytes(large.toBytes()));
+
+        assertEquals(DENSE_BYTES, union.toBytes().length);
+        assertWithin(5_100, union.estimate(), 0.05);
+        assertEquals(200, ActiveUserSketch.fromBytes(small.toBytes()).estimate());
+    }
+
+    @Test
+    void rejectsUnknownFormat() {
+        assertEquals(0, ActiveUserSketch.fromBytes(new byte[0]).estimate());
+        assertThrows(IllegalArgumentException.class, () -> ActiveUserSketch.fromBytes(new byte[]{7, 0, 0}));
+    }
+
+    private static void assertWithin(long expected, long actual, double tolerance) {
+        assertTrue(Math.abs(actual - expected) <= expected * tolerance,
+                "estimación " + actual + " fuera de ±" + (int) (tolerance * 100) + "% de " + expected);
+    }
+}
@@ -0,0 +1,71 @@
+package com.notiflow.util;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class MergeTemplateTest {
+
+    private static final MergeTemplate.Context ANA =
+            new MergeTemplate.Context("Ana Pérez", "Ana Pérez", "Tomás Soto", "3°B", "Colegio Andes");
+
+    @Test
+    void rendersKnownFieldsAndAliases() {
+        MergeTemplate template = MergeTemplate.compile(
+                "Estimada {{apoderada}}: {{estudiante}} de {{ curso }} ({{COLEGIO}}). Saludos, {{destinatario}}");
+
+        assertEquals("Estimada Ana Pérez: Tomás Soto de 3°B (Colegio Andes). Saludos, Ana Pérez", template.render(ANA));
+        assertTrue(template.uses(MergeTemplate.Field.APODERADO));
+        assertTrue(template.uses(MergeTemplate.Field.ALUMNO));
+        assertTrue(template.uses(MergeTemplate.Field.NOMBRE));
+    }
+
+    @Test
+    void usesDefaultWhenValueIsMissingOrBlank() {
+        MergeTemplate template = MergeTemplate.compile("Hola {{apoderado|familia}}, curso {{curso}}.");
+        MergeTemplate.Context blank = new MergeTemplate.Context(null, "  ", null, null, null);
+
+        assertEquals("Hola familia, curso .", template.render(blank));
+        assertEquals("Hola familia, curso .", template.render(null));
+        assertEquals("Hola Ana Pérez, curso 3°B.", template.render(ANA));
+    }
+
+    @Test
+    void keepsUnknownAndMalformedPlaceholders() {
+        MergeTemplate template = MergeTemplate.compile("{{fecha}} {{nombre}} {{ {{curso}} {{}} {{sin cerrar");
+
+        assertEquals("{{fecha}} Ana Pérez {{ 3°B {{}} {{sin cerrar", template.render(ANA));
+        assertFalse(template.uses(MergeTemplate.Field.COLEGIO));
+    }
+
+    @Test
+    void withoutFieldsReturnsSourceAsIs() {
+        String source = "Reunión de apoderados el jueves {{fecha}}";
+        MergeTemplate template = MergeTemplate.compile(source);
+
+        assertFalse(template.hasFields());
+        assertSame(source, template.render(ANA));
+        assertEquals("", MergeTemplate.compile(null).render(ANA));
+    }
+
+    @Test
+    void rendersTenThousandRecipientsWithReusedBuffer() {
+        MergeTemplate template = MergeTemplate.compile(
+                "Estimado/a {{apoderado|familia}}, le informamos que {{alumno}} de {{curso}} tiene reunión. {{colegio}}");
+        StringBuilder scratch = new StringBuilder();
+        long totalLength = 0;
+        for (int i = 0; i < 10_000; i++) {
+            MergeTemplate.Context ctx = new MergeTemplate.Context(
+                    null, i % 10 == 0 ? null : "Apoderado " + i, "Alumno " + i, "Curso " + (i % 12), "Colegio Andes");
+            String rendered = template.render(ctx, scratch).toString();
+            String guardian = i % 10 == 0 ? "familia" : "Apoderado " + i;
+            assertEquals("Estimado/a " + guardian + ", le informamos que Alumno " + i + " de Curso " + (i % 12)
+                    + " tiene reunión. Colegio Andes", rendered);
+            totalLength += rendered.length();
+        }
+        assertTrue(totalLength > 0);
+    }
+}
@@ -0,0 +1,137 @@
+package com.notiflow.util;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ResultCacheTest {
+
+    @Test
+    void evictsLeastRecentlyUsedEntry() {
+        ResultCache<String, String> cache = new ResultCache<>(2, Duration.ofMinutes(5));
+        cache.put("a", "A");
+        cache.put("b", "B");
+        cache.getIfPresent("a");
+
+        cache.put("c", "C");
+
+        assertEquals("A", cache.getIfPresent("a"));
+        assertNull(cache.getIfPresent("b"));
+        assertEquals("C", cache.getIfPresent("c"));
+        assertEquals(2, cache.stats().size());
+    }
+
+    @Test
+    void expiresEntriesAfterTtl() throws InterruptedException {
+        ResultCache<String, String> cache = new ResultCache<>(10, Duration.ofMillis(30));
+        AtomicInteger loads = new AtomicInteger();
+
+        assertEquals("v1", cache.get("k", () -> "v" + loads.incrementAndGet()));
+        assertEquals("v1", cache.get("k", () -> "v" + loads.incrementAndGet()));
+        TimeUnit.MILLISECONDS.sleep(60);
+
+        assertNull(cache.getIfPresent("k"));
+        assertEquals("v2", cache.get("k", () -> "v" + loads.incrementAndGet()));
+        assertEquals(1, cache.stats().hits());
+        assertEquals(2, cache.stats().misses());
+    }
+
+    @Test
+    void concurrentRequestsShareOneLoad() throws Exception {
+        ResultCache<String, String> cache = new ResultCache<>(10, Duration.ofMinutes(5));
+        AtomicInteger loads = new AtomicInteger();
+        CountDownLatch loading = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        ExecutorService pool = Executors.newFixedThreadPool(4);
+        try {
+            Future<String> first = pool.submit(() -> cache.get("k", () -> {
+                loads.incrementAndGet();
+                loading.countDown();
+                await(release);
+                return "valor";
+            }));
+            assertTrue(loading.await(5, TimeUnit.SECONDS));
+            Future<String> second = pool.submit(() -> cache.get("k", () -> "otro" + loads.incrementAndGet()));
+            Future<String> third = pool.submit(() -> cache.get("k", () -> "otro" + loads.incrementAndGet()));
+            // los dos últimos quedan esperando la carga en curso
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+            while (cache.stats().coalesced() < 2 && System.nanoTime() < deadline) {
+                Thread.onSpinWait();
+            }
+            release.countDown();
+
+            assertEquals("valor", first.get(5, TimeUnit.SECONDS));
+            assertEquals("valor", second.get(5, TimeUnit.SECONDS));
+            assertEquals("valor", third.get(5, TimeUnit.SECONDS));
+            assertEquals(1, loads.get());
+            assertEquals(2, cache.stats().coalesced());
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    @Test
+    void failedOrNullLoadsAreNotCached() {
+        ResultCache<String, String> cache = new ResultCache<>(10, Duration.ofMinutes(5));
+        IllegalStateException failure = new IllegalStateException("modelo caído");
+
+        assertSame(failure, assertThrows(IllegalStateException.class, () -> cache.get("k", () -> {
+            throw failure;
+        })));
+        assertNull(cache.get("k", () -> null));
+        assertNull(cache.getIfPresent("k"));
+        assertEquals("ok", cache.get("k", () -> "ok"));
+        assertEquals(0, cache.stats().hits());
+    }
+
+    @Test
+    void errorsInTheLoaderReleaseWaitingCallers() throws Exception {
+        ResultCache<String, String> cache = new ResultCache<>(10, Duration.ofMinutes(5));
+        CountDownLatch loading = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        ExecutorService pool = Executors.newFixedThreadPool(2);
+        try {
+            Future<String> first = pool.submit(() -> cache.get("k", () -> {
+                loading.countDown();
+                await(release);
+                throw new OutOfMemoryError("simulado");
+            }));
+            assertTrue(loading.await(5, TimeUnit.SECONDS));
+            Future<String> second = pool.submit(() -> cache.get("k", () -> "otro"));
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+            while (cache.stats().coalesced() < 1 && System.nanoTime() < deadline) {
+                Thread.onSpinWait();
+            }
+            release.countDown();
+
+            ExecutionException failed = assertThrows(ExecutionException.class, () -> first.get(5, TimeUnit.SECONDS));
+            assertTrue(failed.getCause() instanceof OutOfMemoryError);
+            ExecutionException waited = assertThrows(ExecutionException.class, () -> second.get(5, TimeUnit.SECONDS));
+            assertTrue(waited.getCause() instanceof OutOfMemoryError);
+            assertEquals("ok", cache.get("k", () -> "ok"));
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
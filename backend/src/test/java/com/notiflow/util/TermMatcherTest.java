@@ -0,0 +1,57 @@
+package com.notiflow.util;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class TermMatcherTest {
+
+    @Test
+    void findsOverlappingTermsThroughFailureLinks() {
+        TermMatcher matcher = TermMatcher.compile(List.of("he", "she", "hers", "his"));
+
+        // dentro de "ushers" aparecen she, he y hers, pero ninguno como palabra completa
+        assertEquals(Set.of(), matcher.find("ushers"));
+        assertEquals(Set.of("she"), matcher.find("she said"));
+        assertEquals(Set.of("he", "hers", "his"), matcher.find("he said hers, not his"));
+    }
+
+    @Test
+    void reportsNestedPhrasesAndKeepsConfiguredSpelling() {
+        TermMatcher matcher = TermMatcher.compile(List.of("Partido X", "partido", "lista Y"));
+
+        assertEquals(Set.of("Partido X", "partido"), matcher.find("Voten por el partido x este domingo"));
+        assertEquals(Set.of("lista Y"), matcher.find("apoyen a la LISTA   y"));
+    }
+
+    @Test
+    void foldsAccentsCaseAndWhitespace() {
+        TermMatcher matcher = TermMatcher.compile(List.of("política partidista", "Ñandú"));
+
+        assertEquals(Set.of("política partidista"), matcher.find("Nada de POLITICA\n  Partidista aquí"));
+        assertEquals(Set.of("Ñandú"), matcher.find("el nandu del zoológico"));
+        assertEquals("politica partidista", TermMatcher.fold("  Política \t PARTIDISTA  "));
+    }
+
+    @Test
+    void matchesOnlyWholeWords() {
+        TermMatcher matcher = TermMatcher.compile(List.of("ana", "sexo"));
+
+        assertEquals(Set.of(), matcher.find("banana y sexología"));
+        assertEquals(Set.of("ana"), matcher.find("Ana, ¿vienes?"));
+        assertEquals(Set.of("ana"), matcher.find("(ana)"));
+    }
+
+    @Test
+    void emptyAndBlankTermsNeverMatch() {
+        TermMatcher matcher = TermMatcher.compile(java.util.Arrays.asList(" ", null, ""));
+
+        assertTrue(matcher.isEmpty());
+        assertEquals(Set.of(), matcher.find("cualquier texto"));
+        assertEquals(Set.of(), TermMatcher.compile(List.of("hola")).find(null));
+    }
+}
@@ -0,0 +1,72 @@
+package com.notiflow.util;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class TimerWheelTest {
+
+    @Test
+    void delaysLongerThanOneTurnWaitTheirRounds() throws InterruptedException {
+        // rueda de 4 ranuras de 10 ms: 120 ms son tres vueltas completas
+        try (TimerWheel wheel = new TimerWheel("test-wheel", Duration.ofMillis(10), 4)) {
+            CountDownLatch fired = new CountDownLatch(1);
+            AtomicLong firedAt = new AtomicLong();
+            long start = System.nanoTime();
+
+            wheel.schedule(() -> {
+                firedAt.set(System.nanoTime());
+                fired.countDown();
+            }, Duration.ofMillis(120));
+
+            assertTrue(fired.await(5, TimeUnit.SECONDS));
+            long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(firedAt.get() - start);
+            assertTrue(elapsedMillis >= 110, "se disparó en la primera vuelta: " + elapsedMillis + " ms");
+        }
+    }
+
+    @Test
+    void shortDelaysFireBeforeLongOnes() throws InterruptedException {
+        try (TimerWheel wheel = new TimerWheel("test-wheel", Duration.ofMillis(5), 8)) {
+            CountDownLatch done = new CountDownLatch(2);
+            StringBuffer order = new StringBuffer();
+
+            wheel.schedule(() -> {
+                order.append("largo");
+                done.countDown();
+            }, Duration.ofMillis(100));
+            wheel.schedule(() -> {
+                order.append("corto,");
+                done.countDown();
+            }, Duration.ofMillis(10));
+
+            assertTrue(done.await(5, TimeUnit.SECONDS));
+            assertEquals("corto,largo", order.toString());
+            assertEquals(0, wheel.pendingCount());
+        }
+    }
+
+    @Test
+    void cancelledTimeoutsNeverRun() throws InterruptedException {
+        try (TimerWheel wheel = new TimerWheel("test-wheel", Duration.ofMillis(5), 8)) {
+            AtomicBoolean ran = new AtomicBoolean();
+            CountDownLatch marker = new CountDownLatch(1);
+
+            TimerWheel.Timeout timeout = wheel.schedule(() -> ran.set(true), Duration.ofMillis(20));
+            timeout.cancel();
+            wheel.schedule(marker::countDown, Duration.ofMillis(60));
+
+            assertTrue(marker.await(5, TimeUnit.SECONDS));
+            assertTrue(timeout.isCancelled());
+            assertFalse(ran.get());
+        }
+    }
+}
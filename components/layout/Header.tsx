@@ -96,7 +96,7 @@ export const Header: React.FC = () => {
       }
       try {
         const res = await apiClient.getSchoolById(user.schoolId);
-        const logo = res?.data?.logoUrl;
+        const logo = res?.data?.logoAppUrl || res?.data?.logoUrl;
         setSchoolLogo(logo || null);
       } catch {
         setSchoolLogo(null);
@@ -108,10 +108,12 @@ class APIClient {
     year?: string;
     reason?: string;
     groupIds?: string[];
+    templateId?: string;
     attachments?: {
       fileName: string;
       mimeType: string;
-      base64: string;
+      uploadId?: string;
+      base64?: string;
       inline?: boolean;
       cid?: string;
     }[];
@@ -217,6 +219,31 @@ class APIClient {
     return this.client.post('/schools', data);
   }
 
+  // Sube un adjunto directo al bucket; el mensaje luego lo referencia por uploadId (su SHA-256).
+  // Si el colegio ya tiene ese contenido se omite la subida.
+  async uploadAttachment(file: File) {
+    if (typeof crypto !== 'undefined' && crypto.subtle) {
+      const hash = await crypto.subtle.digest('SHA-256', await file.arrayBuffer());
+      const digest = Array.from(new Uint8Array(hash))
+        .map((b) => b.toString(16).padStart(2, '0'))
+        .join('');
+      try {
+        return await this.client.get<{ uploadId: string; fileName: string; mimeType: string; sizeBytes: number }>(
+          `/attachments/${digest}`
+        );
+      } catch {
+        // no existe todavía: se sube
+      }
+    }
+    const form = new FormData();
+    form.append('file', file);
+    return this.client.post<{ uploadId: string; fileName: string; mimeType: string; sizeBytes: number }>(
+      '/attachments',
+      form,
+      { headers: { 'Content-Type': 'multipart/form-data' }, timeout: 120000 }
+    );
+  }
+
   async uploadSchoolLogo(id: string, file: File) {
     const form = new FormData();
     form.append('file', file);
@@ -342,6 +369,49 @@ class APIClient {
   }
 
   // IA (Vertex)
+  // Reescritura por SSE: onToken recibe cada fragmento; abortar el signal cancela la generación en el servidor
+  async aiRewriteStream(text: string, tone: string | undefined, onToken: (chunk: string) => void, signal?: AbortSignal) {
+    const token = localStorage.getItem('authToken');
+    const res = await fetch(`${API_BASE_URL}/ai/rewrite/stream`, {
+      method: 'POST',
+      headers: {
+        'Content-Type': 'application/json',
+        Accept: 'text/event-stream',
+        ...(token ? { Authorization: `Bearer ${token}` } : {}),
+      },
+      body: JSON.stringify({ text, tone }),
+      signal,
+    });
+    if (!res.ok || !res.body) {
+      throw new Error(`No se pudo generar la sugerencia (${res.status})`);
+    }
+    const reader = res.body.getReader();
+    const decoder = new TextDecoder();
+    let buffer = '';
+    let suggestion = '';
+    while (true) {
+      const { done, value } = await reader.read();
+      if (done) break;
+      buffer += decoder.decode(value, { stream: true });
+      const events = buffer.split('\n\n');
+      buffer = events.pop() || '';
+      for (const raw of events) {
+        const name = /^event:(.*)$/m.exec(raw)?.[1]?.trim();
+        const data = raw
+          .split('\n')
+          .filter((l) => l.startsWith('data:'))
+          .map((l) => l.slice(5))
+          .join('\n');
+        if (!data) continue;
+        const payload = JSON.parse(data);
+        if (name === 'token') onToken(payload.text);
+        else if (name === 'done') suggestion = payload.suggestion;
+        else if (name === 'error') throw new Error(payload.message);
+      }
+    }
+    return suggestion;
+  }
+
   async aiRewriteModerate(text: string, subject?: string, tone?: string) {
     return this.client.post('/ai/rewrite-moderate', { text, subject, tone }, { timeout: 60000 });
   }
@@ -350,7 +420,7 @@ class APIClient {
     return this.client.get('/ai/policy');
   }
 
-  async updateAiPolicy(data: { rewritePrompt: string; moderationRules: string[] }) {
+  async updateAiPolicy(data: { rewritePrompt: string; moderationRules: string[]; blockedTerms?: string[] }) {
     return this.client.put('/ai/policy', data);
   }
 